@@ -0,0 +1,268 @@
+package banking;
+
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Non blocking front of BankService: every call returns right away with a CompletableFuture
+ * and the database work runs on a dedicated, fixed size pool of threads. A front end that
+ * multiplexes many customers does not need a thread per call, and independent reads
+ * (for example the receptor existence check and the origin balance of a transfer) run at the same time.
+ *
+ * Backpressure: at most maxInFlight calls are accepted at once, past that a call fails right away
+ * with a RejectedExecutionException, so a burst can not queue unbounded work in memory.
+ * With group commit enabled, incomes and transfers go straight to the group commit queue,
+ * they still count as in flight until their batch is committed.
+ */
+public class AsyncBankService {
+
+    public static final int DEFAULT_THREADS = ConnectionPool.DEFAULT_MAX_SIZE;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+
+    private final BankService service;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final LongAdder completedCalls = new LongAdder();
+    private final LongAdder rejectedCalls = new LongAdder();
+
+    /**
+     * @param service - the blocking service
+     */
+    public AsyncBankService(BankService service) {
+        this(service, DEFAULT_THREADS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param service - the blocking service
+     * @param threads - threads running database work, about the connection pool size
+     * @param maxInFlight - maximum calls accepted and not completed yet
+     */
+    public AsyncBankService(BankService service, int threads, int maxInFlight) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and calls in flight should be at least 1");
+        }
+        this.service = service;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bank-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the new card number, completes with null if it failed
+     */
+    public CompletableFuture<CardNumber> createAccount() {
+        return submit(service::createAccount);
+    }
+
+    /**
+     * @param cardNumber
+     * @return the balance, -1 if the card does not exist
+     */
+    public CompletableFuture<Long> getBalance(CardNumber cardNumber) {
+        return submit(() -> service.getBalance(cardNumber));
+    }
+
+    /**
+     * @param cardNumber
+     * @param pinNumber
+     * @return true if the card exists and the pin matches
+     */
+    public CompletableFuture<Boolean> checkPinNumber(CardNumber cardNumber, int pinNumber) {
+        return submit(() -> service.checkPinNumber(cardNumber, pinNumber));
+    }
+
+    /**
+     * @param cardNumber
+     * @return true if the card exists
+     */
+    public CompletableFuture<Boolean> checkIfAccountExist(CardNumber cardNumber) {
+        return submit(() -> service.checkIfAccountExist(cardNumber));
+    }
+
+    /**
+     * @param cardNumber
+     * @return the pin, -1 if the card does not exist
+     */
+    public CompletableFuture<Integer> getPinNumber(CardNumber cardNumber) {
+        return submit(() -> service.getPinNumber(cardNumber));
+    }
+
+    /**
+     * @param cardNumber
+     * @param amount
+     * @return SUCCESS once the income is committed, INVALID_AMOUNT if the amount is not positive
+     */
+    public CompletableFuture<TransferResult> addIncome(CardNumber cardNumber, long amount) {
+        if (amount <= 0) {
+            return service.addIncomeAsync(cardNumber, amount); // INVALID_AMOUNT right away
+        }
+        if (service.isGroupCommitEnabled()) {
+            return queue(() -> service.addIncomeAsync(cardNumber, amount)); // no thread waits for the commit
+        }
+        return submit(() -> service.addIncome(cardNumber, amount) ? TransferResult.SUCCESS : TransferResult.FAILED);
+    }
+
+    /**
+     * @param originCard
+     * @param receptorCard
+     * @param amount
+     * @return the outcome once the transfer is committed
+     */
+    public CompletableFuture<TransferResult> transfer(CardNumber originCard, CardNumber receptorCard, long amount) {
+        if (service.isGroupCommitEnabled()) {
+            return queue(() -> service.transferAsync(originCard, receptorCard, amount));
+        }
+        return submit(() -> service.transfer(originCard, receptorCard, amount));
+    }
+
+    /**
+     * @param originCard
+     * @param receptorCard
+     * @param amount
+     * @return true if the transfer was committed
+     */
+    public CompletableFuture<Boolean> transferMoney(CardNumber originCard, CardNumber receptorCard, long amount) {
+        return transfer(originCard, receptorCard, amount).thenApply(result -> result == TransferResult.SUCCESS);
+    }
+
+    /**
+     * The transfer flow of the menus: the receptor existence check and the origin balance are read
+     * at the same time, and the transfer is only sent when both pass. The transfer itself still checks
+     * the funds atomically, the early balance read only saves a write for a transfer that would fail
+     * @param originCard
+     * @param receptorCard
+     * @param amount
+     * @return NO_SUCH_CARD or INSUFFICIENT_FUNDS from the checks, otherwise the outcome of the transfer
+     */
+    public CompletableFuture<TransferResult> checkedTransfer(CardNumber originCard, CardNumber receptorCard, long amount) {
+        if (!service.checkCardNumberValid(receptorCard)) {
+            return CompletableFuture.completedFuture(TransferResult.NO_SUCH_CARD);
+        }
+        CompletableFuture<Boolean> receptorExists = checkIfAccountExist(receptorCard);
+        CompletableFuture<Long> originBalance = getBalance(originCard);
+        return receptorExists.thenCombine(originBalance, (exists, balance) -> {
+            if (!exists || balance < 0) {
+                return TransferResult.NO_SUCH_CARD;
+            }
+            return balance < amount ? TransferResult.INSUFFICIENT_FUNDS : null;
+        }).thenCompose(checked -> checked != null
+                ? CompletableFuture.completedFuture(checked)
+                : transfer(originCard, receptorCard, amount));
+    }
+
+    /**
+     * @param cardNumber
+     * @return true if it was deleted
+     */
+    public CompletableFuture<Boolean> deleteAccount(CardNumber cardNumber) {
+        return submit(() -> service.deleteAccount(cardNumber));
+    }
+
+    /**
+     * reads one statement page, see BankService.getStatementPage
+     * @return the rows, completes with null if something went wrong
+     */
+    public CompletableFuture<List<Transaction>> getStatementPage(CardNumber cardNumber, long afterTime, long afterId,
+                                                                 long toTime, int pageSize) {
+        return submit(() -> service.getStatementPage(cardNumber, afterTime, afterId, toTime, pageSize));
+    }
+
+    /**
+     * runs a call on the executor if there is room for it
+     * @param work
+     * @return completes with the result of the call, or exceptionally with a RejectedExecutionException
+     * when too many calls are in flight
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        if (!inFlight.tryAcquire()) {
+            return reject();
+        }
+        CompletableFuture<T> result;
+        try {
+            result = CompletableFuture.supplyAsync(work, executor);
+        } catch (RejectedExecutionException ex) { // shut down
+            inFlight.release();
+            rejectedCalls.increment();
+            return CompletableFuture.failedFuture(ex);
+        }
+        return result.whenComplete((value, error) -> {
+            inFlight.release();
+            completedCalls.increment();
+        });
+    }
+
+    /**
+     * starts a call that completes by itself, like a group commit, under the same in flight limit as submit
+     * @param call - returns the future of the call without blocking
+     * @return the future of the call, or failed with a RejectedExecutionException
+     * when too many calls are in flight
+     */
+    private <T> CompletableFuture<T> queue(Supplier<CompletableFuture<T>> call) {
+        if (!inFlight.tryAcquire()) {
+            return reject();
+        }
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+        return result.whenComplete((value, error) -> {
+            inFlight.release();
+            completedCalls.increment();
+        });
+    }
+
+    private <T> CompletableFuture<T> reject() {
+        rejectedCalls.increment();
+        return CompletableFuture.failedFuture(
+                new RejectedExecutionException(maxInFlight + " calls in flight, try again later"));
+    }
+
+    /**
+     * @return calls accepted and not completed yet
+     */
+    public int getCallsInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getCompletedCalls() {
+        return completedCalls.sum();
+    }
+
+    /**
+     * @return calls refused because too many were in flight
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    /**
+     * lets the accepted calls finish and stops the executor
+     * @param timeoutMillis - maximum time to wait
+     * @return true if every call finished in time
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,405 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Balances of cards by card number, in fixed size slots of a memory mapped file.
+ * Nothing lives on the heap per card, so a portfolio of tens of millions of cards stays hot
+ * without making the heap or the GC pauses bigger, and the file is reused after a restart.
+ *
+ * The file has a 64 byte header (magic number BLG2, slot size, state, capacity, used slots and
+ * the change sequence of the store it matches) followed by a hash table of 16 byte slots:
+ * card number (long, 0 for a free slot) and state (long), little endian. The state holds the
+ * ACTIVE bit and the balance, so one compare and set checks the card is still open and changes
+ * its balance. A closed card keeps its number in the slot, so lookups keep probing past it.
+ * Pins are not kept, they stay in the store.
+ *
+ * The ledger only follows the store: BankService changes the store first and then the ledger.
+ * The header says the ledger is synced only after a clean close, a ledger that was open when
+ * the process died has to be loaded again.
+ */
+public class BalanceLedger implements AutoCloseable {
+
+    static final int MAGIC = 0x424C4732; // BLG2
+    static final int HEADER_SIZE = 64; // magic, slot size, state, unused, capacity, used, sequence
+    static final int SLOT_SIZE = 16;
+    static final int SEGMENT_BITS = 22; // 4M slots, 64MB per mapped segment
+    static final long MIN_CAPACITY = 1024;
+    private static final int PAGE_SIZE = 5000;
+
+    // offsets inside the header
+    private static final int HEADER_STATE = 8;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_USED = 24;
+    private static final int HEADER_SEQUENCE = 32;
+    private static final int OPEN = 1; // written when opened, a crash leaves it there
+    private static final int SYNCED = 2; // closed cleanly at the sequence of the header
+
+    // offsets inside a slot
+    private static final int NUMBER = 0;
+    private static final int STATE = 8;
+
+    static final long ACTIVE = 1L << 62; // the slot holds an open card
+    public static final long MAX_BALANCE = ACTIVE - 1;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long SEGMENT_SLOTS = 1L << SEGMENT_BITS;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long capacity; // a power of two
+    private final AtomicLong used; // slots with a card number, open or closed
+    private final boolean synced;
+    private final long syncedSequence;
+
+    private BalanceLedger(Path file, FileChannel channel, MappedByteBuffer header, long capacity, long used,
+                          boolean synced, long syncedSequence) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.header = header;
+        this.capacity = capacity;
+        this.used = new AtomicLong(used);
+        this.synced = synced;
+        this.syncedSequence = syncedSequence;
+        int count = (int) ((capacity + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS);
+        this.segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long slots = Math.min(SEGMENT_SLOTS, capacity - i * SEGMENT_SLOTS);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * SEGMENT_SLOTS * SLOT_SIZE, slots * SLOT_SIZE);
+        }
+        // until the next clean close the slots may not match the store
+        header.putInt(HEADER_STATE, OPEN);
+        header.force();
+    }
+
+    /**
+     * creates an empty ledger, replacing the file if it exists
+     * @param file
+     * @param cards - how many cards it should hold, it gets room for twice as many
+     * @return the ledger
+     * @throws IOException if the file can not be written
+     */
+    public static BalanceLedger create(Path file, long cards) throws IOException {
+        long capacity = Long.highestOneBit(Math.max(MIN_CAPACITY, cards * 2) * 2 - 1); // next power of two
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC).putInt(4, SLOT_SIZE).putLong(HEADER_CAPACITY, capacity)
+                    .putLong(HEADER_USED, 0).putLong(HEADER_SEQUENCE, -1);
+            // mapping past the end grows the file with zeros, free slots
+            return new BalanceLedger(file, channel, header, capacity, 0, false, -1);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * opens an existing ledger file
+     * @param file
+     * @return the ledger, see isSynced to know if it can be used without loading it again
+     * @throws IOException if the file can not be read or is not a ledger
+     */
+    public static BalanceLedger open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a balance ledger");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            long capacity = header.getLong(HEADER_CAPACITY);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != SLOT_SIZE || capacity < MIN_CAPACITY
+                    || Long.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + capacity * SLOT_SIZE) {
+                throw new IOException(file + " is not a balance ledger");
+            }
+            boolean synced = header.getInt(HEADER_STATE) == SYNCED;
+            return new BalanceLedger(file, channel, header, capacity, header.getLong(HEADER_USED), synced,
+                    header.getLong(HEADER_SEQUENCE));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * copies every card of a store into an empty ledger, by pages in id order
+     * @param store
+     * @return how many cards were copied, -1 if the store could not be read or the ledger got full
+     */
+    public long load(CardStore store) {
+        long count = 0;
+        long lastId = -1;
+        while (true) {
+            List<Card> page = store.getCardPage(lastId, PAGE_SIZE);
+            if (page == null) {
+                System.out.println("failed while reading cards for the balance ledger");
+                return -1;
+            }
+            for (Card card : page) {
+                if (!openCard(card.getNumber(), card.getBalance()) && isFull()) {
+                    System.out.println("the balance ledger " + file + " is full");
+                    return -1;
+                }
+                lastId = card.getId();
+            }
+            count += page.size();
+            if (page.size() < PAGE_SIZE) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * adds a card, or opens again a card that was closed
+     * @param cardNumber
+     * @param balance
+     * @return true if it was added, false if it is already open, the balance is out of range
+     * or the ledger is full
+     */
+    public boolean openCard(CardNumber cardNumber, long balance) {
+        if (balance < 0 || balance > MAX_BALANCE) {
+            return false;
+        }
+        long number = cardNumber.getValue();
+        long index = indexOf(number);
+        for (long probes = 0; probes < capacity; probes++, index = (index + 1) & (capacity - 1)) {
+            ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+            int slot = slotOffset(index);
+            long key = (long) LONG.getVolatile(segment, slot + NUMBER);
+            if (key == 0) {
+                if (used.get() >= capacity / 4 * 3) {
+                    return false; // full, probes would get too long
+                }
+                if (!LONG.compareAndSet(segment, slot + NUMBER, 0L, number)) {
+                    key = (long) LONG.getVolatile(segment, slot + NUMBER); // taken meanwhile, maybe by this card
+                    if (key != number) {
+                        continue;
+                    }
+                } else {
+                    used.incrementAndGet();
+                }
+            } else if (key != number) {
+                continue;
+            }
+            long state = (long) LONG.getVolatile(segment, slot + STATE);
+            return (state & ACTIVE) == 0 && LONG.compareAndSet(segment, slot + STATE, state, ACTIVE | balance);
+        }
+        return false;
+    }
+
+    /**
+     * closes a card, its balance is dropped
+     * @param cardNumber
+     * @return true if it was closed, false if it was not open in the ledger
+     */
+    public boolean closeCard(CardNumber cardNumber) {
+        long index = find(cardNumber.getValue());
+        if (index < 0) {
+            return false;
+        }
+        ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+        int offset = slotOffset(index) + STATE;
+        while (true) {
+            long state = (long) LONG.getVolatile(segment, offset);
+            if ((state & ACTIVE) == 0) {
+                return false;
+            }
+            if (LONG.compareAndSet(segment, offset, state, 0L)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param cardNumber
+     * @return the balance, -1 if the card is not open in the ledger
+     */
+    public long getBalance(CardNumber cardNumber) {
+        long index = find(cardNumber.getValue());
+        if (index < 0) {
+            return -1;
+        }
+        long state = (long) LONG.getVolatile(segments[(int) (index >>> SEGMENT_BITS)], slotOffset(index) + STATE);
+        return (state & ACTIVE) == 0 ? -1 : state & MAX_BALANCE;
+    }
+
+    /**
+     * adds an amount to a balance
+     * @param cardNumber
+     * @param amount - it should be positive
+     * @return SUCCESS, NO_SUCH_CARD if the card is not open in the ledger, INVALID_AMOUNT,
+     * or FAILED if the balance would go over MAX_BALANCE
+     */
+    public TransferResult add(CardNumber cardNumber, long amount) {
+        if (amount <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+        long index = find(cardNumber.getValue());
+        if (index < 0) {
+            return TransferResult.NO_SUCH_CARD;
+        }
+        ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+        int offset = slotOffset(index) + STATE;
+        while (true) {
+            long state = (long) LONG.getVolatile(segment, offset);
+            if ((state & ACTIVE) == 0) {
+                return TransferResult.NO_SUCH_CARD; // closed, the money must not land in a closed slot
+            }
+            if ((state & MAX_BALANCE) > MAX_BALANCE - amount) {
+                return TransferResult.FAILED;
+            }
+            if (LONG.compareAndSet(segment, offset, state, state + amount)) {
+                return TransferResult.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * takes an amount from a balance if the card has it
+     * @param cardNumber
+     * @param amount - it should be positive
+     * @return SUCCESS, INSUFFICIENT_FUNDS, NO_SUCH_CARD if the card is not open in the ledger, or INVALID_AMOUNT
+     */
+    public TransferResult debit(CardNumber cardNumber, long amount) {
+        if (amount <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+        long index = find(cardNumber.getValue());
+        if (index < 0) {
+            return TransferResult.NO_SUCH_CARD;
+        }
+        ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+        int offset = slotOffset(index) + STATE;
+        while (true) {
+            long state = (long) LONG.getVolatile(segment, offset);
+            if ((state & ACTIVE) == 0) {
+                return TransferResult.NO_SUCH_CARD;
+            }
+            if ((state & MAX_BALANCE) < amount) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+            if (LONG.compareAndSet(segment, offset, state, state - amount)) {
+                return TransferResult.SUCCESS;
+            }
+        }
+    }
+
+    /**
+     * @return true if no more cards can be added, 3/4 of the slots have a card number
+     */
+    public boolean isFull() {
+        return used.get() >= capacity / 4 * 3;
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return true if the ledger was closed cleanly with markSynced, so it matches the store
+     * as it was at getSyncedSequence
+     */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return the change sequence of the store given to markSynced, -1 if the ledger was not closed cleanly
+     */
+    public long getSyncedSequence() {
+        return synced ? syncedSequence : -1;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * writes every slot to the disk and records that the ledger matches the store at a change sequence.
+     * Call it right before close, once nothing changes the store or the ledger anymore
+     * @param changeSequence - see BankDb.getChangeSequence
+     */
+    public void markSynced(long changeSequence) {
+        force();
+        header.putLong(HEADER_USED, used.get());
+        header.putLong(HEADER_SEQUENCE, changeSequence);
+        header.putInt(HEADER_STATE, SYNCED);
+        header.force();
+    }
+
+    /**
+     * writes every changed slot to the disk
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * writes the changes to the disk and closes the file, the ledger can not be used after this.
+     * Without markSynced before, the next open finds it not synced.
+     * The mapped segments are released when they are garbage collected
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * @return the slot index of a card number, -1 if it has no slot
+     */
+    private long find(long number) {
+        long index = indexOf(number);
+        for (long probes = 0; probes < capacity; probes++, index = (index + 1) & (capacity - 1)) {
+            long key = (long) LONG.getVolatile(segments[(int) (index >>> SEGMENT_BITS)], slotOffset(index) + NUMBER);
+            if (key == number) {
+                return index;
+            }
+            if (key == 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first slot to probe for a card number, the bits are mixed because card numbers
+     * share their BIN and differ in a few digits
+     */
+    private long indexOf(long number) {
+        long hash = number;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash & (capacity - 1);
+    }
+
+    private static int slotOffset(long index) {
+        return (int) (index & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+}
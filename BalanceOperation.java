@@ -0,0 +1,64 @@
+package banking;
+
+import banking.dto.CardNumber;
+
+/**
+ * A balance change waiting to be written: an income into a card or a transfer between two cards
+ */
+public class BalanceOperation {
+
+    public enum Kind {
+        INCOME,
+        TRANSFER
+    }
+
+    private final Kind kind;
+    private final CardNumber originCard;
+    private final CardNumber receptorCard;
+    private final long amount;
+
+    private BalanceOperation(Kind kind, CardNumber originCard, CardNumber receptorCard, long amount) {
+        this.kind = kind;
+        this.originCard = originCard;
+        this.receptorCard = receptorCard;
+        this.amount = amount;
+    }
+
+    /**
+     * @param cardNumber - the card receiving the income
+     * @param amount
+     * @return an income operation
+     */
+    public static BalanceOperation income(CardNumber cardNumber, long amount) {
+        return new BalanceOperation(Kind.INCOME, null, cardNumber, amount);
+    }
+
+    /**
+     * @param originCard - the card that pays
+     * @param receptorCard - the card that gets the money
+     * @param amount
+     * @return a transfer operation, it only succeeds if the origin has enough balance
+     */
+    public static BalanceOperation transfer(CardNumber originCard, CardNumber receptorCard, long amount) {
+        return new BalanceOperation(Kind.TRANSFER, originCard, receptorCard, amount);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the paying card, null for an income
+     */
+    public CardNumber getOriginCard() {
+        return originCard;
+    }
+
+    public CardNumber getReceptorCard() {
+        return receptorCard;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
@@ -0,0 +1,188 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A compact binary copy of every card (id, number, account number, pin and balance),
+ * so startup reads one file sequentially instead of scanning the card table.
+ *
+ * The file has a header with the magic number BSN1, the card change sequence it was taken at and
+ * the number of cards, followed by fixed size records. Changes made after the snapshot are read
+ * from the card change log of the database, see BankDb.forEachChangedCard.
+ * A snapshot is written to a temporary file and then moved over the previous one,
+ * so a crash while writing leaves the previous snapshot in place.
+ */
+public class BalanceSnapshot {
+
+    static final int MAGIC = 0x42534E31; // BSN1
+    static final int HEADER_SIZE = 24; // magic, record size, change sequence, card count
+    static final int RECORD_SIZE = 32; // id, number, account, pin, unused, balance
+    private static final int PAGE_SIZE = 5000;
+
+    private final Path file;
+    private final long changeSequence;
+    private final long count;
+
+    private BalanceSnapshot(Path file, long changeSequence, long count) {
+        this.file = file;
+        this.changeSequence = changeSequence;
+        this.count = count;
+    }
+
+    /**
+     * writes every card of the database to a snapshot file, and then trims the change log
+     * up to the sequence the snapshot was taken at
+     * @param dataBase
+     * @param file
+     * @return the written snapshot
+     * @throws IOException if the file can not be written, a card can not be stored in the binary format,
+     * or the database could not be read
+     */
+    public static BalanceSnapshot write(BankDb dataBase, Path file) throws IOException {
+        // read before the scan, a card changed during the scan is read again from the change log when loading
+        long changeSequence = dataBase.getChangeSequence();
+        if (changeSequence < 0) {
+            throw new IOException("failed while reading the card change sequence");
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(PAGE_SIZE * RECORD_SIZE);
+            channel.position(HEADER_SIZE);
+            long lastId = -1;
+            while (true) {
+                List<Card> page = dataBase.getCardPage(lastId, PAGE_SIZE);
+                if (page == null) {
+                    throw new IOException("failed while reading cards from the database");
+                }
+                buffer.clear();
+                for (Card card : page) {
+                    putRecord(buffer, card);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                count += page.size();
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(RECORD_SIZE).putLong(changeSequence).putLong(count).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (!dataBase.trimChangeLog(changeSequence)) {
+            System.out.println("the snapshot was written but the card change log keeps growing");
+        }
+        return new BalanceSnapshot(file, changeSequence, count);
+    }
+
+    /**
+     * reads the header of a snapshot file
+     * @param file
+     * @return the snapshot
+     * @throws IOException if the file can not be read or is not a complete snapshot
+     */
+    public static BalanceSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != RECORD_SIZE) {
+                throw new IOException(file + " is not a balance snapshot");
+            }
+            long changeSequence = header.getLong();
+            long count = header.getLong();
+            if (channel.size() != HEADER_SIZE + count * RECORD_SIZE) {
+                throw new IOException(file + " is truncated");
+            }
+            return new BalanceSnapshot(file, changeSequence, count);
+        }
+    }
+
+    /**
+     * Reads every card of the snapshot through a memory mapping of the file, in id order
+     * @param consumer - receives each card with its account number (null if it has none)
+     * @throws IOException if the file can not be read
+     */
+    public void forEach(Consumer<Card> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = HEADER_SIZE;
+            long end = HEADER_SIZE + count * RECORD_SIZE;
+            // a single mapping can not be larger than 2GB
+            long maxRegion = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+            while (position < end) {
+                long size = Math.min(maxRegion, end - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                while (region.hasRemaining()) {
+                    consumer.accept(getRecord(region));
+                }
+                position += size;
+            }
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, Card card) throws IOException {
+        try {
+            buffer.putLong(card.getId());
+            buffer.putLong(card.getNumber().getValue());
+            buffer.putInt(card.getAccount() == null ? -1 : Integer.parseInt(card.getAccount()));
+            buffer.putShort((short) card.getPin());
+            buffer.putShort((short) 0);
+            buffer.putLong(card.getBalance());
+        } catch (NumberFormatException ex) {
+            throw new IOException("card " + card.getNumber() + " can not be written in the snapshot");
+        }
+    }
+
+    private static Card getRecord(ByteBuffer buffer) {
+        Card card = new Card();
+        card.setId(buffer.getLong());
+        card.setNumber(CardNumber.of(buffer.getLong()));
+        int account = buffer.getInt();
+        card.setAccount(account < 0 ? null : Integer.toString(account));
+        card.setPin(buffer.getShort());
+        buffer.getShort();
+        card.setBalance(buffer.getLong());
+        return card;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the card change sequence the snapshot was taken at, later changes are not in the file
+     */
+    public long getChangeSequence() {
+        return changeSequence;
+    }
+
+    /**
+     * @return the number of cards in the file
+     */
+    public long getCount() {
+        return count;
+    }
+}
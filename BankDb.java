@@ -1,19 +1,98 @@
 package banking;
 
 import banking.dto.Card;
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
 import org.sqlite.SQLiteDataSource;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Database interface service class.
- * It inits the database connection and provides APIs to interact with Data Base data
+ * It inits the database connection and provides APIs to interact with Data Base data.
+ * This is the SQLite backend of CardStore
+ *
+ * Queries run on a pool of read only connections and every change goes through a single writer
+ * connection. The database is kept in WAL mode, so readers see the last commit and never wait
+ * for a write transaction, and writers queue for the writer connection instead of failing
+ * with SQLITE_BUSY when two of them try to take the database lock at once
  */
-public class BankDb {
+public class BankDb implements CardStore {
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10_000;
+    private static final String HISTORY_QUERY =
+            "INSERT INTO transaction_history (card, time, type, amount, counterparty) VALUES (?, ?, ?, ?, ?)";
+    // a deleted card has no row left to carry its version, the change log keeps it for the next snapshot
+    private static final String DELETED_CARD_QUERY =
+            "INSERT OR REPLACE INTO card_change_log (number, sequence) SELECT number, ? FROM card WHERE ";
+    // the latest committed change, trimmed change log rows included
+    private static final String CHANGE_SEQUENCE_QUERY = "SELECT MAX("
+            + "(SELECT COALESCE(MAX(version), 0) FROM card), "
+            + "(SELECT COALESCE(MAX(sequence), 0) FROM card_change_log), "
+            + "(SELECT sequence FROM card_change_log_start WHERE id = 0), "
+            + "(SELECT next_value FROM id_sequence WHERE name = 'card_change'))";
 
     private String url;
     private SQLiteDataSource dataSource;
+    private SQLiteDataSource readDataSource;
+    private ConnectionPool pool; // read only connections
+    private ConnectionPool writerPool; // the single writer connection
+    private int poolSize;
+    private IdAllocator cardIds;
+    private DurabilityProfile profile; // null keeps the SQLite defaults
+
+    // journal mode: balance changes are appended to the journal and kept in memory until a checkpoint
+    private String journalDirectory;
+    private TransactionJournal journal; // null unless the journal is enabled
+    private final Object journalLock = new Object(); // appends and checkpoints
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock(); // balance reads vs checkpoints
+    private final Map<CardNumber, Long> pendingBalances = new ConcurrentHashMap<>(); // journaled, not checkpointed yet
+    private final Set<CardNumber> pendingCloses = ConcurrentHashMap.newKeySet(); // journaled, not checkpointed yet
+    private final AtomicLong changeVersion = new AtomicLong(); // last version written to a changed card
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long recordsSinceCheckpoint = 0;
+    private long checkpointSequence = 0; // last journal record applied to the database
 
+    // latency and error counters of every public operation, plus the time spent waiting for connections
+    private final Metrics metrics = new Metrics("db");
+    private final Metrics.Operation checkCardNumberOp = metrics.operation("checkCardNumber");
+    private final Metrics.Operation createCardOp = metrics.operation("createCard");
+    private final Metrics.Operation createCardsOp = metrics.operation("createCards");
+    private final Metrics.Operation importCardsOp = metrics.operation("importCards");
+    private final Metrics.Operation getCardOp = metrics.operation("getCard");
+    private final Metrics.Operation updateBalanceOp = metrics.operation("updateBalance");
+    private final Metrics.Operation transferOp = metrics.operation("transfer");
+    private final Metrics.Operation transferIfFundsOp = metrics.operation("transferIfFunds");
+    private final Metrics.Operation applyBatchOp = metrics.operation("applyBatch");
+    private final Metrics.Operation deleteAccountOp = metrics.operation("deleteAccount");
+    private final Metrics.Operation getAccountOp = metrics.operation("getAccount");
+    private final Metrics.Operation getCardFromAccountOp = metrics.operation("getCardFromAccount");
+    private final Metrics.Operation getCardPageOp = metrics.operation("getCardPage");
+    private final Metrics.Operation countCardsOp = metrics.operation("countCards");
+    private final Metrics.Operation forEachCardAndAccountOp = metrics.operation("forEachCardAndAccount");
+    private final Metrics.Operation getChangeSequenceOp = metrics.operation("getChangeSequence");
+    private final Metrics.Operation getChangeLogStartOp = metrics.operation("getChangeLogStart");
+    private final Metrics.Operation forEachChangedCardOp = metrics.operation("forEachChangedCard");
+    private final Metrics.Operation trimChangeLogOp = metrics.operation("trimChangeLog");
+    private final Metrics.Operation getStatementPageOp = metrics.operation("getStatementPage");
+    private final Metrics.Operation prepareTransferOp = metrics.operation("prepareTransfer");
+    private final Metrics.Operation finishTransferOp = metrics.operation("finishTransfer");
+    private final Metrics.Operation bucketOp = metrics.operation("moveBucket");
 
     /**
      * Create an instance of BankDb API
@@ -23,7 +102,47 @@ public class BankDb {
      * @param url
      */
     public BankDb(String url) {
+        this(url, ConnectionPool.DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create an instance of BankDb API with a custom connection pool size
+     *
+     * @param url
+     * @param poolSize - maximum number of read only connections, the writer connection is extra
+     */
+    public BankDb(String url, int poolSize) {
+        this(url, poolSize, null);
+    }
+
+    /**
+     * Create an instance of BankDb API that keeps money movements in a transaction journal.
+     * Incomes, transfers and closed cards are appended to the journal, which is the system of record,
+     * and applied to the card balances in periodic checkpoints. On startup the records after the last
+     * checkpoint are replayed into the balances
+     *
+     * @param url
+     * @param poolSize - maximum number of read only connections, the writer connection is extra
+     * @param journalDirectory - where the journal segments are kept, null to update balances in place
+     */
+    public BankDb(String url, int poolSize, String journalDirectory) {
+        this(url, poolSize, journalDirectory, null);
+    }
+
+    /**
+     * Create an instance of BankDb API with a durability profile
+     *
+     * @param url
+     * @param poolSize - maximum number of read only connections, the writer connection is extra
+     * @param journalDirectory - where the journal segments are kept, null to update balances in place
+     * @param profile - SQLite settings applied to every connection, null to keep the SQLite defaults
+     * (other than WAL, which is always on)
+     */
+    public BankDb(String url, int poolSize, String journalDirectory, DurabilityProfile profile) {
         this.url = url;
+        this.poolSize = poolSize;
+        this.journalDirectory = journalDirectory;
+        this.profile = profile;
         init();
     }
 
@@ -34,13 +153,38 @@ public class BankDb {
     private void init() {
         this.dataSource = new SQLiteDataSource();
         this.dataSource.setUrl("jdbc:sqlite:" + this.url);
-        this.createDefaultTables();
+        this.readDataSource = new SQLiteDataSource();
+        this.readDataSource.setUrl("jdbc:sqlite:" + this.url);
+        this.readDataSource.setReadOnly(true);
+        this.pool = new ConnectionPool(this.readDataSource, this.poolSize, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                ConnectionPool.DEFAULT_LEAK_THRESHOLD_MILLIS, ConnectionPool.DEFAULT_WAIT_TIMEOUT_MILLIS);
+        this.writerPool = new ConnectionPool(this.dataSource, 1, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                ConnectionPool.DEFAULT_LEAK_THRESHOLD_MILLIS, ConnectionPool.DEFAULT_WAIT_TIMEOUT_MILLIS);
+        this.metrics.operation("connectionWait", this.pool.getWaitHistogram());
+        this.metrics.operation("writerWait", this.writerPool.getWaitHistogram());
+        // foreign keys are off by default in SQLite and it is a per connection setting, like the profile ones
+        ConnectionPool.ConnectionCustomizer customizer = con -> {
+            try (Statement statement = con.createStatement()) {
+                statement.execute("PRAGMA foreign_keys = ON");
+            }
+            if (this.profile != null) {
+                this.profile.apply(con);
+            }
+        };
+        this.pool.setConnectionCustomizer(customizer);
+        this.writerPool.setConnectionCustomizer(customizer);
+        this.migrateSchema(); // the writer opens first, so the file exists and is in WAL mode for the readers
+        this.changeVersion.set(readSequence(CHANGE_SEQUENCE_QUERY, getChangeSequenceOp));
+        this.cardIds = new IdAllocator("card", IdAllocator.DEFAULT_BLOCK_SIZE, this::reserveIdBlock);
+        if (this.journalDirectory != null) {
+            this.openJournal();
+        }
     }
 
     /**
-     * creates a Connection and
+     * borrows a read only Connection from the pool and
      * doesnt close it giving another method the independence to close it
-     * in different contexts
+     * in different contexts. Closing it gives it back to the pool
      *
      * @return the Connection if it was established,
      *
@@ -49,7 +193,7 @@ public class BankDb {
     private Connection getConnection() {
         Connection con = null;
         try {
-            con = this.dataSource.getConnection();
+            con = this.pool.getConnection();
         } catch (SQLException ex) {
             ex.printStackTrace();
         } finally {
@@ -58,48 +202,36 @@ public class BankDb {
     }
 
     /**
-     * closes the connection with the database
-     * @param con - The connection with the database
-     * @return true if it was succesfully closed, null if it did fail
+     * borrows the writer Connection, waiting while another change holds it.
+     * A caller holding it should not borrow it again (for example through cardIds.next()),
+     * it would wait for itself
+     *
+     * @return the Connection if it was established,
+     *
+     * null if there was an error
      */
-    private boolean closeConnection(Connection con) {
+    private Connection getWriteConnection() {
         try {
-            if (con != null && !con.isClosed()) {
-                con.close();
-            }
-            if (con.isClosed()) {
-                return true;
-            } else {
-                return false;
-            }
+            return this.writerPool.getConnection();
         } catch (SQLException ex) {
             ex.printStackTrace();
-            return false;
+            System.out.println("failed while getting the writer connection");
+            return null;
         }
     }
 
     /**
-     * Creates default tables needed in the database
+     * Creates or upgrades the tables needed in the database to the latest schema version
      * If this fails, it exits the application
      */
-    private void createDefaultTables () {
-        try (Connection con = this.getConnection()) {
-            try (Statement statement = con.createStatement()) {
-                String cardQuery = "CREATE TABLE IF NOT EXISTS card (\n"
-                        + "	id integer NOT NULL PRIMARY KEY,\n"
-                        + "	number text NOT NULL,\n"
-                        + "	pin text NOT NULL,\n"
-                        + " balance INTEGER DEFAULT 0\n"
-                        + ");";
-                statement.executeUpdate(cardQuery);
-            }
-            try (Statement st = con.createStatement()) {
-                String accountQuery = "CREATE TABLE IF NOT EXISTS account (\n"
-                        + "	id integer NOT NULL,\n"
-                        + "	account text NOT NULL\n"
-                        + ");";
-                st.executeUpdate(accountQuery);
+    private void migrateSchema() {
+        try (Connection con = this.getWriteConnection()) {
+            if (this.profile == null) {
+                try (Statement statement = con.createStatement()) {
+                    statement.execute("PRAGMA journal_mode = WAL"); // persistent, the profiles set it themselves
+                }
             }
+            new SchemaMigrator().migrate(con);
         } catch (SQLException se) {
             se.printStackTrace();
             System.out.println("failed to create default tables");
@@ -108,64 +240,296 @@ public class BankDb {
     }
 
     /**
-     * checks in the database if the card exist by executing
-     * a count query.
-     * @return true if everything is fine, false if it does not exist or there is a database error (more than 1 result)
-     * @param card
+     * takes the version written to every card changed by a transaction, see getChangeSequence.
+     * Only called while holding the writer connection, so versions are committed in increasing order
+     * @return the version
      */
-    public boolean checkCardNumber(String card) {
-        try (Connection con = this.getConnection()) {
-            String countQuery = "SELECT COUNT(*) AS count FROM card "
-                    + "WHERE number = ?";
-            // first we count the results
-            try (PreparedStatement countStatement = con.prepareStatement(countQuery)) {
-                countStatement.setString(1, card);
-                ResultSet countResult = countStatement.executeQuery();
-
-                if (countResult.next()) {
-                    int cardResults = countResult.getInt("count");
-
-                    if (cardResults == 1) { // we should not have more than one result
-                        return true; // card exist
-                    } else if (cardResults == 0) {
-                        return false; // card does not exist case
-                    } else {
-                        throw new Exception("More than one result, Database error!!");
+    private long nextChangeVersion() {
+        return changeVersion.incrementAndGet();
+    }
+
+    /**
+     * Opens the journal and replays the records after the last checkpoint into the card balances
+     * If this fails, it exits the application
+     */
+    private void openJournal() {
+        synchronized (journalLock) {
+            try {
+                long checkpoint = readCheckpoint();
+                checkpointSequence = checkpoint;
+                journal = new TransactionJournal(Paths.get(journalDirectory),
+                        TransactionJournal.DEFAULT_RECORDS_PER_SEGMENT, checkpoint);
+
+                journal.replay(checkpoint, record -> {
+                    switch (record.getType()) {
+                        case INCOME:
+                            addPending(pendingBalances, record.getReceptorCard(), record.getAmount());
+                            break;
+                        case TRANSFER:
+                            addPending(pendingBalances, record.getOriginCard(), -record.getAmount());
+                            addPending(pendingBalances, record.getReceptorCard(), record.getAmount());
+                            break;
+                        case CLOSE:
+                            // the delete did not commit, the card goes away with everything it had
+                            pendingBalances.remove(record.getReceptorCard());
+                            pendingCloses.add(record.getReceptorCard());
+                            break;
+                    }
+                });
+                if (!checkpoint()) {
+                    throw new SQLException("could not apply the journal to the card balances");
+                }
+            } catch (IOException | SQLException ex) {
+                ex.printStackTrace();
+                System.out.println("failed to recover the transaction journal");
+                System.exit(0);
+            }
+        }
+    }
+
+    /**
+     * @return the last journal sequence number applied to the card balances
+     * @throws SQLException
+     */
+    private long readCheckpoint() throws SQLException {
+        try (Connection con = this.pool.getConnection();
+             PreparedStatement statement = con.prepareStatement("SELECT sequence FROM journal_checkpoint WHERE id = 0");
+             ResultSet rs = statement.executeQuery()) {
+            return rs.next() ? rs.getLong("sequence") : 0;
+        }
+    }
+
+    /**
+     * Applies the journaled balance changes to the card table, writes their transaction history
+     * and records the last applied sequence number, in one transaction.
+     * Journal segments that are no longer needed are deleted
+     * The journaled closes are applied in the same transaction, deleting their cards
+     * The caller holds the journal lock
+     * @return true if it was successful, false if not (the changes stay pending)
+     */
+    private boolean checkpoint() {
+        // the connection is borrowed before the lock, so a checkpoint never holds readers back while it waits
+        try (Connection con = this.getWriteConnection()) {
+            checkpointLock.writeLock().lock();
+            try {
+                con.setAutoCommit(false);
+                long version = nextChangeVersion();
+                String balanceQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+                String accountQuery = "DELETE FROM account WHERE id = (SELECT id FROM card WHERE number = ?)";
+                String cardQuery = "DELETE FROM card WHERE number = ?";
+                String checkpointQuery = "UPDATE journal_checkpoint SET sequence = ? WHERE id = 0";
+                try (PreparedStatement balanceStatement = con.prepareStatement(balanceQuery);
+                     PreparedStatement deletedStatement = con.prepareStatement(DELETED_CARD_QUERY + "number = ?");
+                     PreparedStatement accountStatement = con.prepareStatement(accountQuery);
+                     PreparedStatement cardStatement = con.prepareStatement(cardQuery);
+                     PreparedStatement checkpointStatement = con.prepareStatement(checkpointQuery);
+                     PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                    for (Map.Entry<CardNumber, Long> pending : pendingBalances.entrySet()) {
+                        balanceStatement.setLong(1, pending.getValue());
+                        balanceStatement.setLong(2, version);
+                        balanceStatement.setLong(3, pending.getKey().getValue());
+                        balanceStatement.addBatch();
+                    }
+                    balanceStatement.executeBatch();
+
+                    // the journal records keep the time of each change, the history is written from them
+                    long lastSequence = journal.getLastSequence();
+                    try {
+                        journal.replay(checkpointSequence, record -> {
+                            if (record.getType() != TransactionJournal.Type.CLOSE
+                                    && record.getSequence() <= lastSequence) {
+                                try {
+                                    addHistory(history, record.getTimestamp(), record.getOriginCard(),
+                                            record.getReceptorCard(), record.getAmount());
+                                } catch (SQLException se) {
+                                    throw new IllegalStateException(se);
+                                }
+                            }
+                        });
+                    } catch (IOException | IllegalStateException ex) {
+                        throw new SQLException("failed while reading the journal history", ex);
                     }
-                } else {
-                    throw new Exception("No result set, error!!");
+                    history.executeBatch();
+
+                    for (CardNumber cardNumber : pendingCloses) {
+                        deletedStatement.setLong(1, version);
+                        deletedStatement.setLong(2, cardNumber.getValue());
+                        deletedStatement.executeUpdate();
+                        accountStatement.setLong(1, cardNumber.getValue());
+                        accountStatement.executeUpdate();
+                        cardStatement.setLong(1, cardNumber.getValue());
+                        cardStatement.executeUpdate();
+                    }
+
+                    checkpointStatement.setLong(1, lastSequence);
+                    checkpointStatement.executeUpdate();
+                    con.commit();
+                    pendingBalances.clear();
+                    pendingCloses.clear();
+                    checkpointSequence = lastSequence;
                 }
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while writing a journal checkpoint");
+            return false;
+        }
+        recordsSinceCheckpoint = 0;
+        journal.compact(checkpointSequence);
+        return true;
+    }
+
+    /**
+     * sets how many journal records are appended between two checkpoints
+     * @param checkpointInterval
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("checkpoint interval should be at least 1");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
 
-            } catch (Exception ex) {
-                System.out.println(ex.getMessage());
+    /**
+     * closes every pooled connection and the writer, the instance can not be used after this.
+     * In journal mode the pending balance changes are checkpointed first
+     */
+    public void close() {
+        if (journal != null) {
+            synchronized (journalLock) {
+                checkpoint();
+                journal.close();
             }
+        }
+        this.pool.close();
+        this.writerPool.close();
+    }
+
+    /**
+     * @return the SQLite settings of the connections, null if they are the SQLite defaults
+     */
+    public DurabilityProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * @return the latency and error counters of the database operations
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return read connection pool usage and wait time metrics
+     */
+    public ConnectionPool.Stats getPoolStats() {
+        return this.pool.getStats();
+    }
+
+    /**
+     * @return how long changes waited for the writer connection
+     */
+    public ConnectionPool.Stats getWriterStats() {
+        return this.writerPool.getStats();
+    }
+
+    /**
+     * checks in the database if the card exist
+     * @return true if everything is fine, false if it does not exist or there is a database error (more than 1 result)
+     * @param card
+     */
+    public boolean checkCardNumber(CardNumber card) {
+        return checkCardNumberOp.timeBoolean(() -> doCheckCardNumber(card));
+    }
+
+    private boolean doCheckCardNumber(CardNumber card) {
+        try (Connection con = this.getConnection()) {
+            return findCard(con, card) != null;
         } catch (SQLException se) {
             se.printStackTrace();
+            checkCardNumberOp.error();
             System.out.println("failed while getting card from database");
         }
         return false;
     }
 
     /**
-     * gets next card index by executing a count query
-     * @return the next DB index or -1 if something went wrong
+     * looks a card up by number with a single query. Existence, duplicate detection and
+     * mapping are resolved from the same result, LIMIT 2 is enough to spot a duplicated number
+     * @param con - the connection of the caller
+     * @param cardNumber
+     * @return the card, null if it does not exist
+     * @throws SQLException if the query fails or the number is duplicated
      */
-    private int getNextCardIndex() {
-        int nextIndex = -1;
-        try (Connection con = this.getConnection()) {
-            // first we find next id
-            try (Statement statement = con.createStatement()) {
-                String countStatement = "SELECT COUNT(*) AS count FROM card";
-                ResultSet rs = statement.executeQuery(countStatement);
-                if (rs.next()) {
-                    nextIndex = rs.getInt("count");
+    private Card findCard(Connection con, CardNumber cardNumber) throws SQLException {
+        String query = "SELECT id, number, pin, balance FROM card WHERE number = ? LIMIT 2";
+        // a checkpoint moves pending changes into the table, the balance is read on one side of it
+        checkpointLock.readLock().lock();
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setLong(1, cardNumber.getValue());
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null; // card does not exist case
+                }
+                Card card = mapCard(rs);
+                if (rs.next()) { // we should not have more than one result
+                    throw new SQLException("More than one result, Database error!!");
                 }
+                return card;
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * maps the current row of a card query, the balance includes journaled changes not checkpointed yet
+     * @param rs - result set positioned in a card row
+     * @return the Card dto
+     * @throws SQLException
+     */
+    private Card mapCard(ResultSet rs) throws SQLException {
+        Card card = new Card();
+        card.setId(rs.getLong("id"));
+        card.setNumber(CardNumber.of(rs.getLong("number")));
+        card.setBalance(rs.getLong("balance") + pendingBalances.getOrDefault(card.getNumber(), 0L));
+        card.setPin(rs.getInt("pin"));
+        return card;
+    }
+
+    /**
+     * reserves a block of ids from a persisted sequence in its own transaction.
+     * The sequence is bumped before reading it, so the write lock is taken first
+     * and two processes sharing the file can not reserve the same block
+     * @param sequenceName
+     * @param size - how many ids to reserve
+     * @return the first id of the block
+     * @throws SQLException if the sequence does not exist or the database failed
+     */
+    private long reserveIdBlock(String sequenceName, int size) throws SQLException {
+        try (Connection con = this.writerPool.getConnection()) {
+            con.setAutoCommit(false);
+            String updateQuery = "UPDATE id_sequence SET next_value = next_value + ? WHERE name = ?";
+            String selectQuery = "SELECT next_value FROM id_sequence WHERE name = ?";
+            try (PreparedStatement update = con.prepareStatement(updateQuery);
+                 PreparedStatement select = con.prepareStatement(selectQuery)) {
+                update.setInt(1, size);
+                update.setString(2, sequenceName);
+                if (update.executeUpdate() != 1) {
+                    throw new SQLException("missing id sequence " + sequenceName);
+                }
+                select.setString(1, sequenceName);
+                long end;
+                try (ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                    end = rs.getLong("next_value");
+                }
+                con.commit();
+                return end - size;
             }
-        } catch(SQLException se) {
-            se.printStackTrace();
-            System.out.println("failed while getting next Index");
         }
-        return nextIndex;
     }
 
     /**
@@ -175,29 +539,42 @@ public class BankDb {
      * @param accountNumber - the account number
      * @return true if it was successful, false if there was an issue
      */
-    public boolean createCard (String cardNumber, String pin, String accountNumber) {
+    public boolean createCard (CardNumber cardNumber, int pin, String accountNumber) {
+        return createCardOp.timeBoolean(() -> doCreateCard(cardNumber, pin, accountNumber));
+    }
+
+    private boolean doCreateCard(CardNumber cardNumber, int pin, String accountNumber) {
         boolean wasSuccessful = false;
-        try (Connection con = this.getConnection()) {
+        long nextIndex;
+        try {
+            // first we find next id, before opening the transaction because it may reserve a new block
+            nextIndex = cardIds.next();
+        } catch (SQLException se) {
+            se.printStackTrace();
+            createCardOp.error();
+            System.out.println("failed while getting next Index");
+            return false;
+        }
+
+        try (Connection con = this.getWriteConnection()) {
             // init transaction
             con.setAutoCommit(false);
 
-            // first we find next id
-            int nextIndex = getNextCardIndex();
-
             // now that we have the next ID we can insert into the table
-            String queryCard = "INSERT INTO card (id, number, pin, balance) VALUES (?, ?, ?, ?)";
+            String queryCard = "INSERT INTO card (id, number, pin, balance, version) VALUES (?, ?, ?, ?, ?)";
             String queryAccount = "INSERT INTO account (id, account) VALUES (?, ?)";
 
             try (PreparedStatement pstmt = con.prepareStatement(queryCard);
 
                 PreparedStatement accountPstmt = con.prepareStatement(queryAccount)) {
-                pstmt.setInt(1, nextIndex);
-                pstmt.setString(2, cardNumber);
-                pstmt.setString(3, pin);
+                pstmt.setLong(1, nextIndex);
+                pstmt.setLong(2, cardNumber.getValue());
+                pstmt.setInt(3, pin);
                 pstmt.setLong(4, 0); // default balance
+                pstmt.setLong(5, nextChangeVersion());
                 pstmt.executeUpdate();
 
-                accountPstmt.setInt(1, nextIndex);
+                accountPstmt.setLong(1, nextIndex);
                 accountPstmt.setString(2, accountNumber);
                 accountPstmt.executeUpdate();
 
@@ -206,51 +583,144 @@ public class BankDb {
             }
         } catch(SQLException se) {
           se.printStackTrace();
+          createCardOp.error();
           System.out.println("failed while creating new card number");
         }
         return wasSuccessful;
     }
 
     /**
-     * Gets a card Object from the Database
-     * @param cardNumber
-     * @return Card dto if exits, null if it doesnt
+     * INSERT many new cards using JDBC batches, committing one transaction per chunk.
+     * A failing chunk is rolled back and stops the insertion, chunks before it stay committed
+     * @param cards - cards with number, pin and account set, balance is ignored
+     * @param chunkSize - how many cards are inserted per transaction
+     * @return how many cards were inserted, always the first ones of the list
      */
-    public Card getCard (String cardNumber) {
-        try (Connection con = this.getConnection()) {
-            // first we check if the card exist and there is only one result
-            boolean cardExist = checkCardNumber(cardNumber);
+    public int createCards(List<Card> cards, int chunkSize) {
+        return createCardsOp.timeInt(() -> insertCards(cards, chunkSize, false, null, createCardsOp));
+    }
 
-            if(cardExist) { // happy case
-                String query = "SELECT * FROM card "
-                + "WHERE number = ?";
-                try (PreparedStatement statement = con.prepareStatement(query)) {
-                    statement.setString(1, cardNumber);
-                    ResultSet rs = statement.executeQuery();
+    /**
+     * INSERT cards coming from another database, keeping their balances.
+     * Same chunked transactions as createCards, but a card whose number or account already exists
+     * (in the database or earlier in the list) is skipped instead of failing its chunk
+     * @param cards - cards with number, pin, account and balance set
+     * @param chunkSize - how many cards are inserted per transaction
+     * @param skipped - receives every card that was skipped, once its chunk is committed
+     * @return how many cards were inserted, a failing chunk is rolled back and stops the import
+     */
+    public int importCards(List<Card> cards, int chunkSize, Consumer<Card> skipped) {
+        return importCardsOp.timeInt(() -> insertCards(cards, chunkSize, true, skipped, importCardsOp));
+    }
 
-                    if (rs.next()) {
-                        Card card = new Card();
-
-                        card.setBalance(rs.getLong("balance"));
-                        card.setNumber(rs.getString("number"));
-                        card.setPin(rs.getString("pin"));
-                        return card;
-                    } else {
-                        throw new Exception("error while getting card Number");
+    /**
+     * @param skipped - null to fail the chunk of a card that exists, as createCards does
+     */
+    private int insertCards(List<Card> cards, int chunkSize, boolean keepBalance, Consumer<Card> skipped,
+                            Metrics.Operation operation) {
+        int position = 0;
+        int inserted = 0;
+        String queryCard = "INSERT INTO card (id, number, pin, balance, version) VALUES (?, ?, ?, ?, ?)";
+        // an import checks the unique columns row by row, so a taken card is left out instead of failing
+        String queryImportCard = "INSERT INTO card (id, number, pin, balance, version) SELECT ?, ?, ?, ?, ? "
+                + "WHERE NOT EXISTS (SELECT 1 FROM card WHERE number = ?) "
+                + "AND NOT EXISTS (SELECT 1 FROM account WHERE account = ?)";
+        String queryAccount = "INSERT INTO account (id, account) VALUES (?, ?)";
+        try {
+            while (position < cards.size()) {
+                int end = Math.min(cards.size(), position + chunkSize);
+                // ids are taken before the writer is borrowed, a new id block needs the writer too
+                long[] ids = new long[end - position];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = cardIds.next();
+                }
+                List<Card> skippedInChunk = new ArrayList<>();
+                int insertedInChunk = 0;
+
+                // the writer is borrowed per chunk, so other changes get in between chunks
+                try (Connection con = this.getWriteConnection()) {
+                    con.setAutoCommit(false);
+                    long version = nextChangeVersion();
+                    try (PreparedStatement pstmt = con.prepareStatement(skipped == null ? queryCard : queryImportCard);
+                         PreparedStatement accountPstmt = con.prepareStatement(queryAccount)) {
+                        // the database only knows the earlier chunks, repeats inside this one are caught here
+                        List<Card> chunk = cards.subList(position, end);
+                        boolean[] taken = new boolean[chunk.size()];
+                        Set<Long> numbersInChunk = new HashSet<>();
+                        Set<String> accountsInChunk = new HashSet<>();
+                        List<Integer> batchedRows = new ArrayList<>();
+                        for (int row = 0; row < chunk.size(); row++) {
+                            Card card = chunk.get(row);
+                            if (skipped != null && (!numbersInChunk.add(card.getNumber().getValue())
+                                    || !accountsInChunk.add(card.getAccount()))) {
+                                taken[row] = true;
+                                continue;
+                            }
+                            pstmt.setLong(1, ids[row]);
+                            pstmt.setLong(2, card.getNumber().getValue());
+                            pstmt.setInt(3, card.getPin());
+                            pstmt.setLong(4, keepBalance ? card.getBalance() : 0); // default balance
+                            pstmt.setLong(5, version);
+                            if (skipped != null) {
+                                pstmt.setLong(6, card.getNumber().getValue());
+                                pstmt.setString(7, card.getAccount());
+                            }
+                            pstmt.addBatch();
+                            batchedRows.add(row);
+                        }
+                        // an import row that found its card or account taken inserts nothing
+                        int[] counts = pstmt.executeBatch();
+                        for (int i = 0; i < batchedRows.size(); i++) {
+                            int row = batchedRows.get(i);
+                            if (skipped != null && counts[i] == 0) {
+                                taken[row] = true;
+                                continue;
+                            }
+                            accountPstmt.setLong(1, ids[row]);
+                            accountPstmt.setString(2, chunk.get(row).getAccount());
+                            accountPstmt.addBatch();
+                            insertedInChunk++;
+                        }
+                        for (int row = 0; row < chunk.size(); row++) {
+                            if (taken[row]) {
+                                skippedInChunk.add(chunk.get(row));
+                            }
+                        }
+                        accountPstmt.executeBatch();
+                        con.commit(); // one transaction per chunk
+                        position = end;
+                        inserted += insertedInChunk;
                     }
                 }
-            } else {
-                return null; // card does not exist, that is not bad
+                if (skipped != null) {
+                    skippedInChunk.forEach(skipped);
+                }
             }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            operation.error();
+            System.out.println("failed while creating new card numbers");
+        }
+        return inserted;
+    }
+
+    /**
+     * Gets a card Object from the Database
+     * @param cardNumber
+     * @return Card dto if exits, null if it doesnt
+     */
+    public Card getCard (CardNumber cardNumber) {
+        return getCardOp.time(() -> doGetCard(cardNumber));
+    }
 
+    private Card doGetCard(CardNumber cardNumber) {
+        try (Connection con = this.getConnection()) {
+            return findCard(con, cardNumber); // null if card does not exist, that is not bad
         } catch (SQLException se) {
             se.printStackTrace();
+            getCardOp.error();
             System.out.println("failed while getting card from database");
             return null;
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println(ex.getMessage());
-            return null; // wasnt able to create card
         }
     }
 
@@ -259,30 +729,42 @@ public class BankDb {
      * @param cardNumber
      * @return true if it was successful, false if not
      */
-    public boolean updateBalance(String cardNumber, long amount) {
-        try (Connection con = this.getConnection()) {
-            // check if card number exist
-            boolean cardCorrect = checkCardNumber(cardNumber);
-
-            if (cardCorrect) {
-                String updateQuery = "UPDATE card SET balance = balance + ? WHERE number = ?";
-                try (PreparedStatement pstmt = con.prepareStatement(updateQuery)) {
-                    pstmt.setLong(1, amount);
-                    pstmt.setString(2, cardNumber);
-                    pstmt.executeUpdate();
+    public boolean updateBalance(CardNumber cardNumber, long amount) {
+        return updateBalanceOp.timeBoolean(() -> doUpdateBalance(cardNumber, amount));
+    }
+
+    private boolean doUpdateBalance(CardNumber cardNumber, long amount) {
+        if (journal != null) {
+            TransferResult result = journalBalanceChange(BalanceOperation.income(cardNumber, amount), false, updateBalanceOp);
+            if (result == TransferResult.NO_SUCH_CARD) {
+                System.out.println("card does not exist or not correct");
+            }
+            return result == TransferResult.SUCCESS;
+        }
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            String updateQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+            try (PreparedStatement pstmt = con.prepareStatement(updateQuery);
+                 PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                pstmt.setLong(1, amount);
+                pstmt.setLong(2, nextChangeVersion());
+                pstmt.setLong(3, cardNumber.getValue());
+                // no pre-check needed, a missing card just updates no rows
+                if (pstmt.executeUpdate() == 1) {
+                    addHistory(history, System.currentTimeMillis(), null, cardNumber, amount);
+                    history.executeBatch();
+                    con.commit();
                     return true;
                 }
-            } else {
-                throw new Exception("card does not exist or not correct");
+                con.rollback();
+                System.out.println("card does not exist or not correct");
+                return false;
             }
         } catch (SQLException sqlEx) {
             sqlEx.printStackTrace();
+            updateBalanceOp.error();
             System.out.println("failed to add income into data base to current card number");
             return false;
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Server error - failed to add income into current card number");
-            return false;
         }
     }
 
@@ -293,151 +775,1048 @@ public class BankDb {
      * @param amount - The amount to transfer
      * @return true if it was successful, false if not
      */
-    public boolean transfer(String originCard, String receptor, long amount) {
-        try (Connection con = this.getConnection()) {
+    public boolean transfer(CardNumber originCard, CardNumber receptor, long amount) {
+        return transferOp.timeBoolean(() -> doTransfer(originCard, receptor, amount));
+    }
+
+    private boolean doTransfer(CardNumber originCard, CardNumber receptor, long amount) {
+        if (journal != null) {
+            TransferResult result = journalBalanceChange(BalanceOperation.transfer(originCard, receptor, amount), false, transferOp);
+            if (result == TransferResult.NO_SUCH_CARD) {
+                System.out.println("card does not exist or not correct");
+            }
+            return result == TransferResult.SUCCESS;
+        }
+        try (Connection con = this.getWriteConnection()) {
             con.setAutoCommit(false);
-            // check if card number exist
-            boolean cardCorrect = checkCardNumber(originCard) && checkCardNumber(receptor);
-
-            if (cardCorrect) {
-                String originAccountQuery = "UPDATE card SET balance = balance - ? WHERE number = ?";
-                String receptorAccountQuery = "UPDATE card SET balance = balance + ? WHERE number = ?";
-                try (PreparedStatement originAccountStatement = con.prepareStatement(originAccountQuery) ;
-                     PreparedStatement receptorAccountStatement = con.prepareStatement(receptorAccountQuery)) {
-                    originAccountStatement.setLong(1, amount);
-                    originAccountStatement.setString(2, originCard);
-                    originAccountStatement.executeUpdate();
-
-                    receptorAccountStatement.setLong(1, amount);
-                    receptorAccountStatement.setString(2, receptor);
-                    receptorAccountStatement.executeUpdate();
-                    con.commit();
-                    return true;
+            long version = nextChangeVersion();
+            String originAccountQuery = "UPDATE card SET balance = balance - ?, version = ? WHERE number = ?";
+            String receptorAccountQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+            try (PreparedStatement originAccountStatement = con.prepareStatement(originAccountQuery) ;
+                 PreparedStatement receptorAccountStatement = con.prepareStatement(receptorAccountQuery);
+                 PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                originAccountStatement.setLong(1, amount);
+                originAccountStatement.setLong(2, version);
+                originAccountStatement.setLong(3, originCard.getValue());
+                int originRows = originAccountStatement.executeUpdate();
+
+                receptorAccountStatement.setLong(1, amount);
+                receptorAccountStatement.setLong(2, version);
+                receptorAccountStatement.setLong(3, receptor.getValue());
+                int receptorRows = receptorAccountStatement.executeUpdate();
+
+                // each card should match exactly one row, otherwise one of them does not exist
+                if (originRows != 1 || receptorRows != 1) {
+                    con.rollback();
+                    System.out.println("card does not exist or not correct");
+                    return false;
                 }
-            } else {
-                throw new Exception("card does not exist or not correct");
+                addHistory(history, System.currentTimeMillis(), originCard, receptor, amount);
+                history.executeBatch();
+                con.commit();
+                return true;
             }
         } catch (SQLException sqlEx) {
+            // the pool rolls back the uncommitted transaction when the connection is released
             sqlEx.printStackTrace();
-            try {
-                getConnection().rollback();
-            } catch (SQLException sqlException) {
-                System.out.println("Failed to make rollback to transfer transaction!!");
-            }
+            transferOp.error();
             System.out.println("failed to add income into data base to current card number");
             return false;
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            System.out.println("Server error - failed to add income into current card number");
-            return false;
         }
     }
 
     /**
-     * Delete the selected account / card number
-     * @param cardNumber
-     * @return true if it was successful, false if not
+     * transfer money from an account to other only if the origin has enough balance.
+     * The funds check and the debit are a single conditional UPDATE, so no other writer
+     * can spend the same money between the check and the debit
+     * @param originCard - The account that will transfer his balance
+     * @param receptor - the account number that will get the money
+     * @param amount - The amount to transfer
+     * @return the outcome of the transfer
      */
-    public boolean deleteAccount (String cardNumber) {
-        boolean wasSuccessful = false;
-        try (Connection con = this.getConnection()) {
-            // init transaction
+    public TransferResult transferIfFunds(CardNumber originCard, CardNumber receptor, long amount) {
+        return transferIfFundsOp.time(() -> doTransferIfFunds(originCard, receptor, amount));
+    }
+
+    private TransferResult doTransferIfFunds(CardNumber originCard, CardNumber receptor, long amount) {
+        if (journal != null) {
+            return journalBalanceChange(BalanceOperation.transfer(originCard, receptor, amount), true, transferIfFundsOp);
+        }
+        try (Connection con = this.getWriteConnection()) {
             con.setAutoCommit(false);
+            long version = nextChangeVersion();
+            String originAccountQuery =
+                    "UPDATE card SET balance = balance - ?, version = ? WHERE number = ? AND balance >= ?";
+            String receptorAccountQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+            try (PreparedStatement originAccountStatement = con.prepareStatement(originAccountQuery);
+                 PreparedStatement receptorAccountStatement = con.prepareStatement(receptorAccountQuery);
+                 PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                originAccountStatement.setLong(1, amount);
+                originAccountStatement.setLong(2, version);
+                originAccountStatement.setLong(3, originCard.getValue());
+                originAccountStatement.setLong(4, amount);
+                if (originAccountStatement.executeUpdate() != 1) {
+                    con.rollback();
+                    // not debited, find out why, it is not the common path
+                    return findCard(con, originCard) == null
+                            ? TransferResult.NO_SUCH_CARD : TransferResult.INSUFFICIENT_FUNDS;
+                }
 
-            // now that we have the next ID we can insert into the table
-            String queryCard = "DELETE FROM card WHERE number = ?";
-            String queryAccount = "DELETE FROM account WHERE account = ?";
+                receptorAccountStatement.setLong(1, amount);
+                receptorAccountStatement.setLong(2, version);
+                receptorAccountStatement.setLong(3, receptor.getValue());
+                if (receptorAccountStatement.executeUpdate() != 1) {
+                    con.rollback();
+                    return TransferResult.NO_SUCH_CARD;
+                }
+                addHistory(history, System.currentTimeMillis(), originCard, receptor, amount);
+                history.executeBatch();
+                con.commit();
+                return TransferResult.SUCCESS;
+            }
+        } catch (SQLException sqlEx) {
+            // the pool rolls back the uncommitted transaction when the connection is released
+            sqlEx.printStackTrace();
+            transferIfFundsOp.error();
+            System.out.println("failed while transferring money");
+            return TransferResult.FAILED;
+        }
+    }
 
-            try (PreparedStatement pstmt = con.prepareStatement(queryCard);
-                 PreparedStatement accountPstmt = con.prepareStatement(queryAccount)) {
+    /**
+     * Applies many balance operations in a single transaction, so they share one commit.
+     * Each operation succeeds or fails on its own: a transfer without enough funds or
+     * with a missing card leaves no change, and the rest of the batch still commits
+     * @param operations
+     * @return the outcome of each operation, in the same order. Every operation is FAILED
+     * if the transaction could not be committed
+     */
+    public TransferResult[] applyBatch(List<BalanceOperation> operations) {
+        return applyBatchOp.time(() -> doApplyBatch(operations));
+    }
 
-                pstmt.setString(1, cardNumber);
-                pstmt.executeUpdate();
+    private TransferResult[] doApplyBatch(List<BalanceOperation> operations) {
+        if (journal != null) {
+            return journalBatch(operations, applyBatchOp);
+        }
+        TransferResult[] results = new TransferResult[operations.size()];
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            long version = nextChangeVersion(); // one for the whole batch
+            String creditQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+            String debitQuery = "UPDATE card SET balance = balance - ?, version = ? WHERE number = ? AND balance >= ?";
+            try (PreparedStatement credit = con.prepareStatement(creditQuery);
+                 PreparedStatement debit = con.prepareStatement(debitQuery);
+                 PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                long time = System.currentTimeMillis();
+                credit.setLong(2, version);
+                debit.setLong(2, version);
+                for (int i = 0; i < operations.size(); i++) {
+                    BalanceOperation operation = operations.get(i);
 
-                accountPstmt.setString(1, cardNumber);
-                accountPstmt.executeUpdate();
+                    credit.setLong(1, operation.getAmount());
+                    credit.setLong(3, operation.getReceptorCard().getValue());
+                    if (credit.executeUpdate() != 1) {
+                        results[i] = TransferResult.NO_SUCH_CARD;
+                        continue;
+                    }
+                    if (operation.getKind() == BalanceOperation.Kind.INCOME) {
+                        addHistory(history, time, null, operation.getReceptorCard(), operation.getAmount());
+                        results[i] = TransferResult.SUCCESS;
+                        continue;
+                    }
 
-                con.commit(); // execute transaction
-                wasSuccessful = true;
+                    debit.setLong(1, operation.getAmount());
+                    debit.setLong(3, operation.getOriginCard().getValue());
+                    debit.setLong(4, operation.getAmount());
+                    if (debit.executeUpdate() == 1) {
+                        addHistory(history, time, operation.getOriginCard(), operation.getReceptorCard(),
+                                operation.getAmount());
+                        results[i] = TransferResult.SUCCESS;
+                        continue;
+                    }
+                    // not debited, take the credit back so the rest of the batch is not affected
+                    credit.setLong(1, -operation.getAmount());
+                    credit.setLong(3, operation.getReceptorCard().getValue());
+                    credit.executeUpdate();
+                    results[i] = findCard(con, operation.getOriginCard()) == null
+                            ? TransferResult.NO_SUCH_CARD : TransferResult.INSUFFICIENT_FUNDS;
+                }
+                history.executeBatch();
+                con.commit();
             }
-        } catch(SQLException se) {
-            se.printStackTrace();
-            System.out.println("failed while deleting account");
+        } catch (SQLException sqlEx) {
+            sqlEx.printStackTrace();
+            applyBatchOp.error();
+            System.out.println("failed while writing a batch of balance changes");
+            Arrays.fill(results, TransferResult.FAILED);
         }
-        return wasSuccessful;
+        return results;
     }
 
     /**
-     * Gets an account from database
-     * @param accountNumber
-     * @return Card dto if exits, null if it doesnt
+     * appends a balance change to the journal and keeps it pending until the next checkpoint
+     * @param operation
+     * @param checkFunds - true if a transfer needs the origin to have the amount
+     * @param metric - where a failure is counted
+     * @return the outcome, SUCCESS once the record is durable
      */
-    public String getAccount (String accountNumber) {
-        String account = "";
-        try (Connection con = this.getConnection()) {
-            String query = "SELECT * FROM account "
-                    + "WHERE account = ?";
-            try (PreparedStatement statement = con.prepareStatement(query)) {
-                statement.setString(1, accountNumber);
-                ResultSet rs = statement.executeQuery();
-
-                if (rs.next()) {
-                    account = rs.getString("account");
+    private TransferResult journalBalanceChange(BalanceOperation operation, boolean checkFunds,
+                                                Metrics.Operation metric) {
+        synchronized (journalLock) {
+            try (Connection con = this.getConnection()) {
+                TransferResult result = checkJournaledOperation(con, operation, checkFunds, Collections.emptyMap());
+                if (result == TransferResult.SUCCESS) {
+                    appendToJournal(operation);
+                    journal.force();
+                    addPending(pendingBalances, operation);
+                    checkpointIfDue();
                 }
+                return result;
+            } catch (SQLException | IOException ex) {
+                ex.printStackTrace();
+                metric.error();
+                System.out.println("failed while writing to the transaction journal");
+                return TransferResult.FAILED;
             }
-        } catch (SQLException se) {
-            se.printStackTrace();
         }
-        return account;
     }
 
     /**
-     * Gets an account from database
+     * journal mode version of applyBatch: every operation is appended and the journal is forced once
+     * @param operations
+     * @param metric - where a failure is counted
+     * @return the outcome of each operation, in the same order
+     */
+    private TransferResult[] journalBatch(List<BalanceOperation> operations, Metrics.Operation metric) {
+        TransferResult[] results = new TransferResult[operations.size()];
+        synchronized (journalLock) {
+            try (Connection con = this.getConnection()) {
+                // changes of this batch, they are not visible to readers until the journal is forced
+                Map<CardNumber, Long> batchBalances = new HashMap<>();
+                for (int i = 0; i < operations.size(); i++) {
+                    BalanceOperation operation = operations.get(i);
+                    results[i] = checkJournaledOperation(con, operation, true, batchBalances);
+                    if (results[i] == TransferResult.SUCCESS) {
+                        appendToJournal(operation);
+                        addPending(batchBalances, operation);
+                    }
+                }
+                journal.force();
+                for (Map.Entry<CardNumber, Long> change : batchBalances.entrySet()) {
+                    addPending(pendingBalances, change.getKey(), change.getValue());
+                }
+                checkpointIfDue();
+            } catch (SQLException | IOException ex) {
+                ex.printStackTrace();
+                metric.error();
+                System.out.println("failed while writing a batch to the transaction journal");
+                Arrays.fill(results, TransferResult.FAILED);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * checks that the cards of an operation exist and, for a transfer, that the origin has the amount
+     * @param con
+     * @param operation
+     * @param checkFunds
+     * @param unforcedBalances - changes appended but not pending yet, they count for the funds check
+     * @return SUCCESS if the operation can be journaled
+     * @throws SQLException
+     */
+    private TransferResult checkJournaledOperation(Connection con, BalanceOperation operation, boolean checkFunds,
+                                                   Map<CardNumber, Long> unforcedBalances) throws SQLException {
+        if (operation.getKind() == BalanceOperation.Kind.TRANSFER) {
+            Card origin = findCard(con, operation.getOriginCard());
+            if (origin == null) {
+                return TransferResult.NO_SUCH_CARD;
+            }
+            long balance = origin.getBalance() + unforcedBalances.getOrDefault(origin.getNumber(), 0L);
+            if (checkFunds && balance < operation.getAmount()) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+        }
+        return findCard(con, operation.getReceptorCard()) == null
+                ? TransferResult.NO_SUCH_CARD : TransferResult.SUCCESS;
+    }
+
+    /**
+     * adds the history rows of a balance change to a batch: one for an income,
+     * one for each card of a transfer
+     * @param history - a statement of HISTORY_QUERY
+     * @param time - epoch milliseconds
+     * @param originCard - the paying card of a transfer, null for an income
+     * @param receptorCard - the card that gets the money
+     * @param amount
+     * @throws SQLException
+     */
+    private static void addHistory(PreparedStatement history, long time, CardNumber originCard, CardNumber receptorCard,
+                                   long amount) throws SQLException {
+        if (originCard == null) {
+            addHistoryRow(history, receptorCard, time, Transaction.Type.INCOME, amount, null);
+            return;
+        }
+        addHistoryRow(history, originCard, time, Transaction.Type.TRANSFER_OUT, -amount, receptorCard);
+        addHistoryRow(history, receptorCard, time, Transaction.Type.TRANSFER_IN, amount, originCard);
+    }
+
+    private static void addHistoryRow(PreparedStatement history, CardNumber card, long time, Transaction.Type type,
+                                      long amount, CardNumber counterparty) throws SQLException {
+        history.setLong(1, card.getValue());
+        history.setLong(2, time);
+        history.setString(3, type.name());
+        history.setLong(4, amount);
+        if (counterparty == null) {
+            history.setNull(5, Types.INTEGER);
+        } else {
+            history.setLong(5, counterparty.getValue());
+        }
+        history.addBatch();
+    }
+
+    private void appendToJournal(BalanceOperation operation) throws IOException {
+        TransactionJournal.Type type = operation.getKind() == BalanceOperation.Kind.INCOME
+                ? TransactionJournal.Type.INCOME : TransactionJournal.Type.TRANSFER;
+        journal.append(type, operation.getOriginCard(), operation.getReceptorCard(), operation.getAmount());
+        recordsSinceCheckpoint++;
+    }
+
+    private void checkpointIfDue() {
+        if (recordsSinceCheckpoint >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    private static void addPending(Map<CardNumber, Long> balances, BalanceOperation operation) {
+        if (operation.getOriginCard() != null) {
+            addPending(balances, operation.getOriginCard(), -operation.getAmount());
+        }
+        addPending(balances, operation.getReceptorCard(), operation.getAmount());
+    }
+
+    private static void addPending(Map<CardNumber, Long> balances, CardNumber cardNumber, long amount) {
+        balances.merge(cardNumber, amount, Long::sum);
+    }
+
+    /**
+     * Delete the selected account / card number
+     * @param cardNumber
+     * @return the account of the deleted card, an empty String if it had none,
+     * null if the card did not exist or the delete failed
+     */
+    public String deleteAccount (CardNumber cardNumber) {
+        return deleteAccountOp.time(() -> doDeleteAccount(cardNumber));
+    }
+
+    private String doDeleteAccount(CardNumber cardNumber) {
+        if (journal != null) {
+            return closeJournaledCard(cardNumber, deleteAccountOp);
+        }
+        try (Connection con = this.getWriteConnection()) {
+            // init transaction
+            con.setAutoCommit(false);
+
+            // the account is read on the writer, nothing can change the card between this and the delete
+            String account = findAccountOfCard(con, cardNumber);
+            if (account == null) {
+                con.rollback();
+                return null; // nothing to delete
+            }
+            if (hasTransferHold(con, cardNumber)) {
+                // finishTransfer still has to give the card its money, or take it back
+                con.rollback();
+                System.out.println("card " + cardNumber + " has a transfer in progress, it can not be closed yet");
+                return null;
+            }
+            String queryCard = "DELETE FROM card WHERE number = ?";
+            String queryAccount = "DELETE FROM account WHERE id = (SELECT id FROM card WHERE number = ?)";
+
+            try (PreparedStatement pstmt = con.prepareStatement(queryCard);
+                 PreparedStatement accountPstmt = con.prepareStatement(queryAccount);
+                 PreparedStatement deletedPstmt = con.prepareStatement(DELETED_CARD_QUERY + "number = ?")) {
+
+                deletedPstmt.setLong(1, nextChangeVersion());
+                deletedPstmt.setLong(2, cardNumber.getValue());
+                deletedPstmt.executeUpdate();
+
+                // the account goes first, it references the card
+                accountPstmt.setLong(1, cardNumber.getValue());
+                accountPstmt.executeUpdate();
+
+                pstmt.setLong(1, cardNumber.getValue());
+                if (pstmt.executeUpdate() != 1) {
+                    throw new SQLException("card " + cardNumber + " was not deleted");
+                }
+
+                con.commit(); // execute transaction
+                return account;
+            }
+        } catch(SQLException se) {
+            se.printStackTrace();
+            deleteAccountOp.error();
+            System.out.println("failed while deleting account");
+            return null;
+        }
+    }
+
+    /**
+     * @param con - the connection of the caller
+     * @param cardNumber
+     * @return the account of the card, an empty String if it has none, null if the card does not exist
+     * @throws SQLException
+     */
+    private String findAccountOfCard(Connection con, CardNumber cardNumber) throws SQLException {
+        String query = "SELECT account.account FROM card LEFT JOIN account ON account.id = card.id "
+                + "WHERE card.number = ?";
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setLong(1, cardNumber.getValue());
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                String account = rs.getString(1);
+                return account == null ? "" : account;
+            }
+        }
+    }
+
+    /**
+     * @param con - the connection of the caller
+     * @param cardNumber
+     * @return true if a transfer between databases holds money of the card, or for it
+     * @throws SQLException
+     */
+    private static boolean hasTransferHold(Connection con, CardNumber cardNumber) throws SQLException {
+        // the table only has the transfers in flight, a scan is cheap
+        try (PreparedStatement statement = con.prepareStatement("SELECT 1 FROM transfer_hold WHERE card = ? LIMIT 1")) {
+            statement.setLong(1, cardNumber.getValue());
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * journal mode version of deleteAccount: the close is journaled, then the card is deleted
+     * in a checkpoint so no pending change of it is replayed later
+     * @param cardNumber
+     * @param metric - where a failure is counted
+     * @return the account of the deleted card, an empty String if it had none,
+     * null if the card did not exist or the delete failed
+     */
+    private String closeJournaledCard(CardNumber cardNumber, Metrics.Operation metric) {
+        synchronized (journalLock) {
+            String account;
+            try (Connection con = this.getConnection()) {
+                account = findAccountOfCard(con, cardNumber);
+            } catch (SQLException se) {
+                se.printStackTrace();
+                metric.error();
+                System.out.println("failed while deleting account");
+                return null;
+            }
+            if (account == null) {
+                return null; // nothing to delete
+            }
+            try {
+                journal.append(TransactionJournal.Type.CLOSE, null, cardNumber, 0);
+                journal.force();
+                recordsSinceCheckpoint++;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                metric.error();
+                System.out.println("failed while deleting account");
+                return null;
+            }
+            // the close is durable once journaled, a failed checkpoint leaves it pending for the next
+            // checkpoint or the replay after a restart, so the delete is still reported as done
+            pendingCloses.add(cardNumber);
+            if (!checkpoint()) {
+                System.out.println("the close of " + cardNumber + " is journaled, it is applied on the next checkpoint");
+            }
+            return account;
+        }
+    }
+
+    /**
+     * Gets an account from database
+     * @param accountNumber
+     * @return the account number if exits, empty String if it doesnt
+     */
+    public String getAccount (String accountNumber) {
+        return getAccountOp.time(() -> doGetAccount(accountNumber));
+    }
+
+    private String doGetAccount(String accountNumber) {
+        String account = "";
+        try (Connection con = this.getConnection()) {
+            String query = "SELECT account FROM account "
+                    + "WHERE account = ?";
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setString(1, accountNumber);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        account = rs.getString("account");
+                    }
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            getAccountOp.error();
+        }
+        return account;
+    }
+
+    /**
+     * Gets the card of an account from database
      * @param accountNumber
      * @return Card dto if exits, null if it doesnt
      */
     public Card getCardFromAccount (String accountNumber) {
+        return getCardFromAccountOp.time(() -> doGetCardFromAccount(accountNumber));
+    }
+
+    private Card doGetCardFromAccount(String accountNumber) {
         Card card = null;
         try (Connection con = this.getConnection()) {
-            String query = "SELECT * FROM account "
-                    + "WHERE account = ?";
+            String query = "SELECT card.id, card.number, card.pin, card.balance FROM account "
+                    + "JOIN card ON card.id = account.id "
+                    + "WHERE account.account = ?";
+            checkpointLock.readLock().lock();
             try (PreparedStatement statement = con.prepareStatement(query)) {
                 statement.setString(1, accountNumber);
-                ResultSet rs = statement.executeQuery();
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        card = mapCard(rs);
+                    }
+                }
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            getCardFromAccountOp.error();
+        }
+        return card;
+    }
+
+    /**
+     * Reads a page of cards with their account number, in id order, for streaming exports.
+     * Pages are read with keyset pagination: the next page starts after the last id of this one,
+     * so every page is a range scan of the primary key no matter how deep in the table it is
+     * @param afterId - last id of the previous page, -1 for the first page
+     * @param pageSize - maximum cards in the page
+     * @return the cards, empty when there are no more. null if the query failed
+     */
+    public List<Card> getCardPage(long afterId, int pageSize) {
+        return getCardPageOp.time(() -> doGetCardPage(afterId, pageSize));
+    }
+
+    private List<Card> doGetCardPage(long afterId, int pageSize) {
+        List<Card> page = new ArrayList<>(pageSize);
+        try (Connection con = this.getConnection()) {
+            String query = "SELECT card.id, card.number, card.pin, card.balance, account.account FROM card "
+                    + "LEFT JOIN account ON account.id = card.id "
+                    + "WHERE card.id > ? ORDER BY card.id LIMIT ?";
+            checkpointLock.readLock().lock();
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setLong(1, afterId);
+                statement.setInt(2, pageSize);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        Card card = mapCard(rs);
+                        card.setAccount(rs.getString("account"));
+                        page.add(card);
+                    }
+                }
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            getCardPageOp.error();
+            System.out.println("failed while reading a page of cards");
+            return null;
+        }
+        return page;
+    }
 
+    /**
+     * counts the cards in the database
+     * @return the number of cards, -1 if something went wrong
+     */
+    public long countCards() {
+        return countCardsOp.timeLong(() -> doCountCards());
+    }
+
+    private long doCountCards() {
+        try (Connection con = this.getConnection()) {
+            try (PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) AS count FROM card");
+                 ResultSet rs = statement.executeQuery()) {
                 if (rs.next()) {
-                    String account = rs.getString("account");
-                    int id = rs.getInt("id");
-
-                    if (account != null && account.length() > 0) {
-
-                        String cardQuery = "SELECT * FROM card "
-                                + "WHERE id = ?";
-                        try (PreparedStatement cardStatement = con.prepareStatement(cardQuery)) {
-                            cardStatement.setInt(1, id);
-                            ResultSet cardResultSet = cardStatement.executeQuery();
-
-                            if (cardResultSet.next()) {
-                                card = new Card();
-
-                                card.setBalance(cardResultSet.getLong("balance"));
-                                card.setNumber(cardResultSet.getString("number"));
-                                card.setPin(cardResultSet.getString("pin"));
-                                return card;
-                            } else {
-                                throw new Exception("error while getting card Number");
-                            }
+                    return rs.getLong("count");
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            countCardsOp.error();
+        }
+        return -1;
+    }
 
+    /**
+     * Streams every card number with its account number, one row at a time
+     * @param consumer - receives the card number and the account number (null if the card has no account)
+     * @return true if every card was visited, false if the scan failed
+     */
+    public boolean forEachCardAndAccount(BiConsumer<CardNumber, String> consumer) {
+        return forEachCardAndAccountOp.timeBoolean(() -> doForEachCardAndAccount(consumer));
+    }
+
+    private boolean doForEachCardAndAccount(BiConsumer<CardNumber, String> consumer) {
+        try (Connection con = this.getConnection()) {
+            String query = "SELECT card.number, account.account FROM card "
+                    + "LEFT JOIN account ON account.id = card.id";
+            try (PreparedStatement statement = con.prepareStatement(query);
+                 ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(CardNumber.of(rs.getLong(1)), rs.getString(2));
+                }
+                return true;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            forEachCardAndAccountOp.error();
+            System.out.println("failed while scanning cards");
+            return false;
+        }
+    }
+
+    /**
+     * Every transaction changing cards writes a new version to them, a deleted card gets its version in the
+     * change log. Versions are taken while holding the writer, so a change committed later has a bigger one
+     * @return the version of the latest committed card change (insert, balance update or delete),
+     * -1 if something went wrong
+     */
+    public long getChangeSequence() {
+        return getChangeSequenceOp.timeLong(() -> readSequence(CHANGE_SEQUENCE_QUERY, getChangeSequenceOp));
+    }
+
+    /**
+     * @return the sequence up to which the change log was trimmed, changes after it are all kept,
+     * -1 if something went wrong
+     */
+    public long getChangeLogStart() {
+        return getChangeLogStartOp.timeLong(() -> readSequence("SELECT sequence FROM card_change_log_start WHERE id = 0", getChangeLogStartOp));
+    }
+
+    private long readSequence(String query, Metrics.Operation metric) {
+        try (Connection con = this.getConnection()) {
+            try (PreparedStatement statement = con.prepareStatement(query);
+                 ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            metric.error();
+        }
+        return -1;
+    }
+
+    /**
+     * Streams the current state of every card changed after a sequence
+     * @param afterSequence - changes up to this sequence are skipped
+     * @param consumer - receives the card number and the card with its account, or null if it was deleted
+     * @return true if every change was visited, false if the scan failed
+     */
+    public boolean forEachChangedCard(long afterSequence, BiConsumer<CardNumber, Card> consumer) {
+        return forEachChangedCardOp.timeBoolean(() -> doForEachChangedCard(afterSequence, consumer));
+    }
+
+    private boolean doForEachChangedCard(long afterSequence, BiConsumer<CardNumber, Card> consumer) {
+        try (Connection con = this.getConnection()) {
+            // cards by their version, deleted ones (and changes logged before there were versions) by the log
+            String query = "SELECT card.number AS changed, card.id, card.number, card.pin, card.balance, "
+                    + "account.account FROM card "
+                    + "LEFT JOIN account ON account.id = card.id "
+                    + "WHERE card.version > ? "
+                    + "UNION ALL "
+                    + "SELECT card_change_log.number AS changed, card.id, card.number, card.pin, card.balance, "
+                    + "account.account FROM card_change_log "
+                    + "LEFT JOIN card ON card.number = card_change_log.number "
+                    + "LEFT JOIN account ON account.id = card.id "
+                    + "WHERE card_change_log.sequence > ?";
+            checkpointLock.readLock().lock();
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setLong(1, afterSequence);
+                statement.setLong(2, afterSequence);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        Card card = null;
+                        if (rs.getObject("number") != null) {
+                            card = mapCard(rs);
+                            card.setAccount(rs.getString("account"));
                         }
+                        consumer.accept(CardNumber.of(rs.getLong("changed")), card);
                     }
                 }
+            } finally {
+                checkpointLock.readLock().unlock();
             }
+            return true;
         } catch (SQLException se) {
             se.printStackTrace();
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage());
+            forEachChangedCardOp.error();
+            System.out.println("failed while reading card changes");
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the card changes up to a sequence, once a snapshot holds them
+     * @param upToSequence
+     * @return true if it was successful, false if not
+     */
+    public boolean trimChangeLog(long upToSequence) {
+        return trimChangeLogOp.timeBoolean(() -> doTrimChangeLog(upToSequence));
+    }
+
+    private boolean doTrimChangeLog(long upToSequence) {
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement delete = con.prepareStatement("DELETE FROM card_change_log WHERE sequence <= ?");
+                 PreparedStatement logStart = con.prepareStatement(
+                         "UPDATE card_change_log_start SET sequence = MAX(sequence, ?) WHERE id = 0")) {
+                delete.setLong(1, upToSequence);
+                delete.executeUpdate();
+                logStart.setLong(1, upToSequence);
+                logStart.executeUpdate();
+                con.commit();
+                return true;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            trimChangeLogOp.error();
+            System.out.println("failed while trimming the card change log");
+            return false;
+        }
+    }
+
+    /**
+     * First phase of a transfer to a card of another database: the amount is taken from the origin
+     * and kept in a hold until finishTransfer commits or aborts it. Used by ShardedCardStore,
+     * it does not go through the journal
+     * @param transferId - id of the transfer in the coordinator log
+     * @param originCard - a card of this database
+     * @param receptorCard - the card of the other database
+     * @param amount
+     * @param checkFunds - true if the origin needs to have the amount
+     * @param time - time of the transfer, written to the history when it commits
+     * @return SUCCESS if the amount is held, NO_SUCH_CARD or INSUFFICIENT_FUNDS if not, FAILED if the database failed
+     */
+    public TransferResult prepareTransferOut(long transferId, CardNumber originCard, CardNumber receptorCard,
+                                             long amount, boolean checkFunds, long time) {
+        long start = System.nanoTime();
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            String debitQuery = checkFunds
+                    ? "UPDATE card SET balance = balance - ?, version = ? WHERE number = ? AND balance >= ?"
+                    : "UPDATE card SET balance = balance - ?, version = ? WHERE number = ?";
+            try (PreparedStatement debit = con.prepareStatement(debitQuery)) {
+                debit.setLong(1, amount);
+                debit.setLong(2, nextChangeVersion());
+                debit.setLong(3, originCard.getValue());
+                if (checkFunds) {
+                    debit.setLong(4, amount);
+                }
+                if (debit.executeUpdate() != 1) {
+                    con.rollback();
+                    return findCard(con, originCard) == null
+                            ? TransferResult.NO_SUCH_CARD : TransferResult.INSUFFICIENT_FUNDS;
+                }
+                insertHold(con, transferId, originCard, -amount, receptorCard, time);
+                con.commit();
+                return TransferResult.SUCCESS;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            prepareTransferOp.error();
+            System.out.println("failed while preparing a transfer");
+            return TransferResult.FAILED;
+        } finally {
+            prepareTransferOp.record(start);
+        }
+    }
+
+    /**
+     * First phase of a transfer from a card of another database: checks the receptor exists and
+     * records the amount it will get once finishTransfer commits
+     * @param transferId - id of the transfer in the coordinator log
+     * @param receptorCard - a card of this database
+     * @param originCard - the card of the other database
+     * @param amount
+     * @param time - time of the transfer, written to the history when it commits
+     * @return SUCCESS if the credit is recorded, NO_SUCH_CARD if not, FAILED if the database failed
+     */
+    public TransferResult prepareTransferIn(long transferId, CardNumber receptorCard, CardNumber originCard,
+                                            long amount, long time) {
+        long start = System.nanoTime();
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            if (findCard(con, receptorCard) == null) {
+                con.rollback();
+                return TransferResult.NO_SUCH_CARD;
+            }
+            insertHold(con, transferId, receptorCard, amount, originCard, time);
+            con.commit();
+            return TransferResult.SUCCESS;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            prepareTransferOp.error();
+            System.out.println("failed while preparing a transfer");
+            return TransferResult.FAILED;
+        } finally {
+            prepareTransferOp.record(start);
+        }
+    }
+
+    private static void insertHold(Connection con, long transferId, CardNumber card, long amount,
+                                   CardNumber counterparty, long time) throws SQLException {
+        String query = "INSERT INTO transfer_hold (transfer_id, card, amount, counterparty, time) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setLong(1, transferId);
+            statement.setLong(2, card.getValue());
+            statement.setLong(3, amount);
+            statement.setLong(4, counterparty.getValue());
+            statement.setLong(5, time);
+            statement.executeUpdate();
         }
-        return card;
     }
 
+    /**
+     * Second phase of a transfer between databases. On commit the receptor gets its credit and the
+     * history of the card is written, on abort the origin gets its amount back. The hold is deleted in
+     * the same transaction, so calling it again (for example while recovering) changes nothing.
+     * If the card of the hold does not exist anymore the hold is kept, so the money is not lost
+     * @param transferId
+     * @param commit - true to commit, false to abort
+     * @return true if the transfer has no hold left in this database, false if the database failed
+     * or the card is gone
+     */
+    public boolean finishTransfer(long transferId, boolean commit) {
+        long start = System.nanoTime();
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            String holdQuery = "SELECT card, amount, counterparty, time FROM transfer_hold WHERE transfer_id = ?";
+            String balanceQuery = "UPDATE card SET balance = balance + ?, version = ? WHERE number = ?";
+            String deleteQuery = "DELETE FROM transfer_hold WHERE transfer_id = ?";
+            try (PreparedStatement hold = con.prepareStatement(holdQuery);
+                 PreparedStatement balance = con.prepareStatement(balanceQuery);
+                 PreparedStatement delete = con.prepareStatement(deleteQuery);
+                 PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                hold.setLong(1, transferId);
+                try (ResultSet rs = hold.executeQuery()) {
+                    if (!rs.next()) {
+                        con.rollback();
+                        return true; // finished already, or never prepared here
+                    }
+                    CardNumber card = CardNumber.of(rs.getLong("card"));
+                    long amount = rs.getLong("amount");
+                    CardNumber counterparty = CardNumber.of(rs.getLong("counterparty"));
+                    boolean credit = amount > 0;
+                    if (commit == credit) {
+                        // a commit credits the receptor, an abort gives the amount back to the origin
+                        balance.setLong(1, Math.abs(amount));
+                        balance.setLong(2, nextChangeVersion());
+                        balance.setLong(3, card.getValue());
+                        if (balance.executeUpdate() != 1) {
+                            con.rollback();
+                            System.out.println("card " + card + " of transfer " + transferId
+                                    + " does not exist, its hold of " + amount + " is kept");
+                            return false;
+                        }
+                    }
+                    if (commit) {
+                        addHistoryRow(history, card, rs.getLong("time"),
+                                credit ? Transaction.Type.TRANSFER_IN : Transaction.Type.TRANSFER_OUT,
+                                amount, counterparty);
+                        history.executeBatch();
+                    }
+                }
+                delete.setLong(1, transferId);
+                delete.executeUpdate();
+                con.commit();
+                return true;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            finishTransferOp.error();
+            System.out.println("failed while finishing a transfer");
+            return false;
+        } finally {
+            finishTransferOp.record(start);
+        }
+    }
+
+    /**
+     * @param bucket - a shard bucket, see SchemaMigrator.CARD_BUCKET
+     * @return the cards of the bucket with their account set, null if something went wrong
+     */
+    public List<Card> getBucketCards(int bucket) {
+        long start = System.nanoTime();
+        try (Connection con = this.getConnection()) {
+            List<Card> cards = new ArrayList<>();
+            String query = "SELECT card.id, card.number, card.pin, card.balance, account.account FROM card "
+                    + "LEFT JOIN account ON account.id = card.id "
+                    + "WHERE " + SchemaMigrator.CARD_BUCKET + " = ?";
+            checkpointLock.readLock().lock();
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setInt(1, bucket);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        Card card = mapCard(rs);
+                        card.setAccount(rs.getString("account"));
+                        cards.add(card);
+                    }
+                }
+            } finally {
+                checkpointLock.readLock().unlock();
+            }
+            return cards;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            bucketOp.error();
+            System.out.println("failed while reading the cards of a bucket");
+            return null;
+        } finally {
+            bucketOp.record(start);
+        }
+    }
+
+    /**
+     * deletes the cards of a bucket with their accounts and history, after they moved to another database
+     * @param bucket - a shard bucket, see SchemaMigrator.CARD_BUCKET
+     * @return true if it was successful, false if not
+     */
+    public boolean deleteBucket(int bucket) {
+        long start = System.nanoTime();
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            String accountQuery = "DELETE FROM account WHERE id IN (SELECT id FROM card WHERE "
+                    + SchemaMigrator.CARD_BUCKET + " = ?)";
+            String cardQuery = "DELETE FROM card WHERE " + SchemaMigrator.CARD_BUCKET + " = ?";
+            try (PreparedStatement deleted = con.prepareStatement(DELETED_CARD_QUERY + SchemaMigrator.CARD_BUCKET + " = ?");
+                 PreparedStatement account = con.prepareStatement(accountQuery);
+                 PreparedStatement card = con.prepareStatement(cardQuery)) {
+                deleted.setLong(1, nextChangeVersion());
+                deleted.setInt(2, bucket);
+                deleted.executeUpdate();
+                account.setInt(1, bucket);
+                account.executeUpdate();
+                card.setInt(1, bucket);
+                card.executeUpdate(); // the history goes with the cards
+                con.commit();
+                return true;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            bucketOp.error();
+            System.out.println("failed while deleting the cards of a bucket");
+            return false;
+        } finally {
+            bucketOp.record(start);
+        }
+    }
+
+    /**
+     * copies history rows read from another database, for cards that moved here
+     * @param rows
+     * @return true if it was successful, false if not
+     */
+    public boolean importHistory(List<Transaction> rows) {
+        long start = System.nanoTime();
+        try (Connection con = this.getWriteConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement history = con.prepareStatement(HISTORY_QUERY)) {
+                for (Transaction row : rows) {
+                    addHistoryRow(history, row.getCard(), row.getTime(), row.getType(), row.getAmount(),
+                            row.getCounterparty());
+                }
+                history.executeBatch();
+                con.commit();
+                return true;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            bucketOp.error();
+            System.out.println("failed while copying the transaction history");
+            return false;
+        } finally {
+            bucketOp.record(start);
+        }
+    }
+
+    /**
+     * Reads a page of the transaction history of a card, oldest first, using keyset pagination:
+     * the page starts right after the last row of the previous one, so reading a page costs the same
+     * at any depth of the history. In journal mode the history is written by checkpoints, so the first
+     * page of a statement checkpoints the journaled changes first
+     * @param cardNumber
+     * @param afterTime - time of the last row of the previous page, or the statement start minus one
+     * @param afterId - id of the last row of the previous page, -1 for the first page
+     * @param toTime - the statement end, rows after this time are not read
+     * @param pageSize - maximum rows in the page, a shorter page is the last one
+     * @return the rows, null if something went wrong
+     */
+    public List<Transaction> getStatementPage(CardNumber cardNumber, long afterTime, long afterId, long toTime,
+                                              int pageSize) {
+        return getStatementPageOp.time(() -> doGetStatementPage(cardNumber, afterTime, afterId, toTime, pageSize));
+    }
+
+    private List<Transaction> doGetStatementPage(CardNumber cardNumber, long afterTime, long afterId, long toTime,
+                                              int pageSize) {
+        if (journal != null && afterId < 0) {
+            synchronized (journalLock) {
+                if (recordsSinceCheckpoint > 0 && !checkpoint()) {
+                    getStatementPageOp.error();
+                    return null;
+                }
+            }
+        }
+        List<Transaction> page = new ArrayList<>(pageSize);
+        try (Connection con = this.getConnection()) {
+            String query = "SELECT id, card, time, type, amount, counterparty FROM transaction_history "
+                    + "WHERE card = ? AND (time, id) > (?, ?) AND time <= ? ORDER BY time, id LIMIT ?";
+            try (PreparedStatement statement = con.prepareStatement(query)) {
+                statement.setLong(1, cardNumber.getValue());
+                statement.setLong(2, afterTime);
+                statement.setLong(3, afterId);
+                statement.setLong(4, toTime);
+                statement.setInt(5, pageSize);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        Transaction transaction = new Transaction();
+                        transaction.setId(rs.getLong("id"));
+                        transaction.setCard(CardNumber.of(rs.getLong("card")));
+                        transaction.setTime(rs.getLong("time"));
+                        transaction.setType(Transaction.Type.valueOf(rs.getString("type")));
+                        transaction.setAmount(rs.getLong("amount"));
+                        long counterparty = rs.getLong("counterparty");
+                        transaction.setCounterparty(rs.wasNull() ? null : CardNumber.of(counterparty));
+                        page.add(transaction);
+                    }
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            getStatementPageOp.error();
+            System.out.println("failed while reading the transaction history");
+            return null;
+        }
+        return page;
+    }
 }
@@ -0,0 +1,203 @@
+package banking;
+
+import banking.dto.CardNumber;
+
+import java.util.concurrent.CompletionException;
+
+/**
+ * Text line protocol of the bank server.
+ * Every request is one line with a command and its arguments separated by spaces, and every
+ * response is one line starting with OK or ERR. Commands are case insensitive:
+ *
+ * CREATE                      -> OK card pin
+ * LOGIN card pin              -> OK
+ * BALANCE                     -> OK balance
+ * INCOME amount               -> OK
+ * TRANSFER card amount        -> OK
+ * CLOSE                       -> OK (closes the account and logs out)
+ * LOGOUT                      -> OK
+ * METRICS                     -> OK operation=count/errors/p50_us/p99_us ... (every operation called so far)
+ * FILTERS [rate]              -> OK (rebuilds the card lookup filters, with a new false positive rate if given)
+ * QUIT                        -> OK bye (the server closes the connection)
+ *
+ * One instance per connection, it keeps the logged in card of that connection.
+ * Not thread safe, a connection handles one request at a time.
+ */
+public class BankProtocol {
+
+    private final BankService service;
+    private final AsyncBankService asyncService; // null to run every call on the calling thread
+    private CardNumber cardNumber = null; // logged in card, null if logged out
+    private boolean finished = false;
+
+    public BankProtocol(BankService service) {
+        this(service, null);
+    }
+
+    /**
+     * @param service
+     * @param asyncService - runs the checks of a transfer at the same time, null to run them one after the other
+     */
+    public BankProtocol(BankService service, AsyncBankService asyncService) {
+        this.service = service;
+        this.asyncService = asyncService;
+    }
+
+    /**
+     * handles a request
+     * @param line - the request, without line terminator
+     * @return the response, without line terminator
+     */
+    public String handle(String line) {
+        String[] parts = line.trim().split("\\s+");
+        String command = parts[0].toUpperCase();
+        try {
+            switch (command) {
+                case "CREATE":
+                    return create();
+                case "LOGIN":
+                    return parts.length == 3 ? login(parts[1], parts[2]) : "ERR usage: LOGIN card pin";
+                case "BALANCE":
+                    return loggedIn() ? "OK " + service.getBalance(cardNumber) : "ERR not logged in";
+                case "INCOME":
+                    return parts.length == 2 ? income(Long.parseLong(parts[1])) : "ERR usage: INCOME amount";
+                case "TRANSFER":
+                    return parts.length == 3 ? transfer(parts[1], Long.parseLong(parts[2]))
+                            : "ERR usage: TRANSFER card amount";
+                case "CLOSE":
+                    return close();
+                case "METRICS":
+                    return "OK " + Metrics.summary(service.getMetrics(), service.getDataBaseMetrics());
+                case "FILTERS":
+                    return parts.length <= 2 ? rebuildFilters(parts.length == 2 ? parts[1] : null)
+                            : "ERR usage: FILTERS [rate]";
+                case "LOGOUT":
+                    cardNumber = null;
+                    return "OK";
+                case "QUIT":
+                    cardNumber = null;
+                    finished = true;
+                    return "OK bye";
+                default:
+                    return "ERR unknown command " + parts[0];
+            }
+        } catch (NumberFormatException ex) {
+            return "ERR invalid amount";
+        }
+    }
+
+    /**
+     * @return true once the client asked to quit
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the logged in card, null if logged out
+     */
+    public CardNumber getCardNumber() {
+        return cardNumber;
+    }
+
+    private boolean loggedIn() {
+        return cardNumber != null;
+    }
+
+    private String create() {
+        CardNumber newCard = service.createAccount();
+        if (newCard == null || service.getPinNumber(newCard) == -1) {
+            return "ERR failed to create new account";
+        }
+        return String.format("OK %s %04d", newCard, service.getPinNumber(newCard));
+    }
+
+    private String login(String cardText, String pin) {
+        CardNumber card = CardNumber.parse(cardText);
+        if (card == null) {
+            return "ERR wrong card number or pin";
+        }
+        int pinNumber;
+        try {
+            pinNumber = Integer.parseInt(pin);
+        } catch (NumberFormatException ex) {
+            return "ERR wrong card number or pin";
+        }
+        if (!service.checkPinNumber(card, pinNumber)) {
+            return "ERR wrong card number or pin";
+        }
+        cardNumber = card;
+        return "OK";
+    }
+
+    private String income(long amount) {
+        if (!loggedIn()) {
+            return "ERR not logged in";
+        }
+        if (amount <= 0) {
+            return "ERR invalid amount";
+        }
+        return service.addIncome(cardNumber, amount) ? "OK" : "ERR failed while adding income";
+    }
+
+    private String transfer(String receptorText, long amount) {
+        if (!loggedIn()) {
+            return "ERR not logged in";
+        }
+        CardNumber receptorCard = CardNumber.parse(receptorText);
+        if (cardNumber.equals(receptorCard)) {
+            return "ERR you can't transfer money to the same account";
+        }
+        if (!service.checkCardNumberValid(receptorCard)) {
+            return "ERR probably you made a mistake in the card number";
+        }
+        TransferResult result;
+        if (asyncService != null) {
+            try {
+                result = asyncService.checkedTransfer(cardNumber, receptorCard, amount).join();
+            } catch (CompletionException ex) {
+                // more calls in flight than the async service accepts
+                return "ERR the bank is busy, try again later";
+            }
+        } else if (!service.checkIfAccountExist(receptorCard)) {
+            result = TransferResult.NO_SUCH_CARD;
+        } else {
+            result = service.transfer(cardNumber, receptorCard, amount);
+        }
+        switch (result) {
+            case SUCCESS:
+                return "OK";
+            case NO_SUCH_CARD:
+                return "ERR such a card does not exist";
+            case INSUFFICIENT_FUNDS:
+                return "ERR not enough money";
+            case INVALID_AMOUNT:
+                return "ERR invalid amount";
+            default:
+                return "ERR failed while doing money transfer";
+        }
+    }
+
+    private String close() {
+        if (!loggedIn()) {
+            return "ERR not logged in";
+        }
+        if (!service.deleteAccount(cardNumber)) {
+            return "ERR failed while closing the account";
+        }
+        cardNumber = null;
+        return "OK";
+    }
+
+    private String rebuildFilters(String rate) {
+        if (rate != null) {
+            try {
+                service.setLookupFilterFalsePositiveRate(Double.parseDouble(rate));
+            } catch (IllegalArgumentException ex) {
+                // also covers NumberFormatException
+                return "ERR false positive rate should be between 0 and 1";
+            }
+        }
+        return service.rebuildLookupFilters() ? "OK" : "ERR failed while rebuilding the lookup filters";
+    }
+}
@@ -0,0 +1,338 @@
+package banking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Network server exposing the BankService operations with the BankProtocol line protocol.
+ * It listens on the loopback interface only. A single selector thread does all the socket I/O
+ * with non blocking channels, so thousands of idle connections cost no threads. Requests are
+ * handed to a small worker pool because they block on the database; each connection has its
+ * own protocol state and handles its requests one at a time, in order.
+ */
+public class BankServer {
+
+    public static final int DEFAULT_WORKER_THREADS = 16;
+    static final int MAX_LINE_LENGTH = 1024;
+    static final int MAX_QUEUED_REQUESTS = 64; // per connection, reading stops until they are handled
+
+    private final BankService service;
+    private final int port;
+    private final int workerThreads;
+    private final ConcurrentLinkedQueue<Connection> finishedRequests = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private AsyncBankService asyncService; // transfer checks of the workers run on it in parallel
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+
+    /**
+     * @param service
+     * @param port - port to listen on, 0 to pick a free one
+     */
+    public BankServer(BankService service, int port) {
+        this(service, port, DEFAULT_WORKER_THREADS);
+    }
+
+    /**
+     * @param service
+     * @param port - port to listen on, 0 to pick a free one
+     * @param workerThreads - threads running requests against the service
+     */
+    public BankServer(BankService service, int port, int workerThreads) {
+        this.service = service;
+        this.port = port;
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * binds the port and starts serving in the background
+     * @throws IOException if the port can not be bound
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "bank-server-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        asyncService = new AsyncBankService(service);
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "bank-server-selector");
+        selectorThread.start();
+    }
+
+    /**
+     * stops accepting connections, closes the open ones and waits for the running requests
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+            asyncService.shutdown(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * waits until the server is stopped
+     * @throws InterruptedException
+     */
+    public void awaitStop() throws InterruptedException {
+        selectorThread.join();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException ex) {
+                        if (key.attachment() instanceof Connection) {
+                            // the client went away, the other connections are not affected
+                            close(key);
+                        } else {
+                            ex.printStackTrace();
+                            System.out.println("failed while accepting a connection");
+                        }
+                    }
+                }
+                Connection connection;
+                while ((connection = finishedRequests.poll()) != null) {
+                    requestFinished(connection);
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("bank server stopped because of an error");
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key, new BankProtocol(service, asyncService)));
+            openConnections.incrementAndGet();
+            acceptedConnections.increment();
+        }
+    }
+
+    /**
+     * reads what the client sent and queues every complete line as a request
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        int read = channel.read(connection.input);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+        ByteBuffer input = connection.input;
+        input.flip();
+        int lineStart = input.position();
+        for (int i = input.position(); i < input.limit(); i++) {
+            if (input.get(i) == '\n') {
+                byte[] line = new byte[i - lineStart];
+                input.get(lineStart, line);
+                connection.requests.add(new String(line, StandardCharsets.UTF_8).replace("\r", ""));
+                lineStart = i + 1;
+            }
+        }
+        input.position(lineStart);
+        input.compact();
+        if (!input.hasRemaining()) {
+            // a line longer than the buffer, the client is not speaking the protocol
+            close(key);
+            return;
+        }
+        if (connection.requests.size() >= MAX_QUEUED_REQUESTS) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        dispatchNext(connection);
+    }
+
+    /**
+     * sends the next queued request of a connection to the workers, if it is not busy
+     */
+    private void dispatchNext(Connection connection) {
+        if (connection.busy || connection.closing) {
+            return;
+        }
+        String line;
+        do {
+            line = connection.requests.poll();
+            if (line == null) {
+                return;
+            }
+        } while (line.trim().isEmpty());
+
+        connection.busy = true;
+        requests.increment();
+        String request = line;
+        workers.execute(() -> {
+            String response;
+            try {
+                response = connection.protocol.handle(request);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+                response = "ERR internal error";
+            }
+            connection.response = response;
+            finishedRequests.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * queues the response of a finished request and starts the next one
+     */
+    private void requestFinished(Connection connection) {
+        connection.busy = false;
+        if (!connection.key.isValid()) {
+            return; // closed while the request was running
+        }
+        connection.output.add(ByteBuffer.wrap((connection.response + "\n").getBytes(StandardCharsets.UTF_8)));
+        connection.response = null;
+        if (connection.protocol.isFinished()) {
+            connection.closing = true;
+        }
+        int interest = connection.key.interestOps() | SelectionKey.OP_WRITE;
+        if (connection.requests.size() < MAX_QUEUED_REQUESTS && !connection.closing) {
+            interest |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(interest);
+        dispatchNext(connection);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!connection.output.isEmpty()) {
+            ByteBuffer buffer = connection.output.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return; // the socket is full, wait until it is writable again
+            }
+            connection.output.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (connection.closing) {
+            close(key);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && key.isValid()) {
+            openConnections.decrementAndGet();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * State of a client connection, only used from the selector thread except the response
+     */
+    private static class Connection {
+        private final SelectionKey key;
+        private final BankProtocol protocol;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        private final Queue<String> requests = new ArrayDeque<>();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        private boolean busy = false; // a request is running on a worker
+        private boolean closing = false; // close once the output is written
+        private volatile String response;
+
+        Connection(SelectionKey key, BankProtocol protocol) {
+            this.key = key;
+            this.protocol = protocol;
+        }
+    }
+}
@@ -1,9 +1,27 @@
 package banking;
 
 import banking.dto.Card;
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /*
     Singleton Bank service to simulate a data base and a static service
@@ -11,6 +29,8 @@ import java.util.Random;
 public class BankService {
 
     final  int BIN_NUMBER = 400000;
+    final int BULK_CHUNK_SIZE = 5000; // cards inserted per transaction in bulk provisioning
+    final int STATEMENT_PAGE_SIZE = 500; // history rows read per query when streaming a statement
     Random randomSeedGenerator = new Random(); // only used to generate a random seed for each program run
     Random random = new Random(randomSeedGenerator.nextLong());
 
@@ -19,75 +39,187 @@ public class BankService {
     private  String[] accountNumbers;
     private  HashMap<String, Integer> pinAccountHm = new HashMap <String, Integer>();
     private  int balance = 0;
-    private static BankService instance = null;
-    private BankDb dataBase;
+    private CardStore dataBase;
+    private CardCache cardCache = new CardCache(CardCache.DEFAULT_MAX_ENTRIES);
+    // null until built, when missing every lookup goes to the database
+    private volatile CountingBloomFilter cardFilter;
+    private volatile CountingBloomFilter accountFilter;
+    private volatile double lookupFilterFalsePositiveRate = 0.01;
+    private final Object lookupFilterLock = new Object(); // rebuilds and updates of the filters
+    private final TransferEngine transferEngine = new TransferEngine(TransferEngine.DEFAULT_STRIPES);
+    private volatile GroupCommitter groupCommitter; // null unless group commit is enabled
+    private volatile BalanceLedger balanceLedger; // null unless balances are kept in a ledger file
+    private ScheduledExecutorService snapshotScheduler; // null unless periodic snapshots are enabled
+    // latency and error counters of the public operations
+    private final Metrics metrics = new Metrics("service");
+    private final Metrics.Operation createAccountOp = metrics.operation("createAccount");
+    private final Metrics.Operation createAccountsOp = metrics.operation("createAccounts");
+    private final Metrics.Operation checkPinNumberOp = metrics.operation("checkPinNumber");
+    private final Metrics.Operation checkIfAccountExistOp = metrics.operation("checkIfAccountExist");
+    private final Metrics.Operation getPinNumberOp = metrics.operation("getPinNumber");
+    private final Metrics.Operation getBalanceOp = metrics.operation("getBalance");
+    private final Metrics.Operation addIncomeOp = metrics.operation("addIncome");
+    private final Metrics.Operation transferOp = metrics.operation("transfer");
+    private final Metrics.Operation deleteAccountOp = metrics.operation("deleteAccount");
+    private final Metrics.Operation rebuildLookupFiltersOp = metrics.operation("rebuildLookupFilters");
+    private final Metrics.Operation writeSnapshotOp = metrics.operation("writeSnapshot");
+    private final Metrics.Operation getStatementPageOp = metrics.operation("getStatementPage");
 
     private BankService() {}
 
     public static BankService getInstance() {
-        if (instance == null) {
-            instance = new BankService();
-        }
-        return instance;
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * the class loader initializes the instance once, on first use, without locking afterwards
+     */
+    private static class InstanceHolder {
+        private static final BankService INSTANCE = new BankService();
     }
 
     /**
      * Creates an account and insert it into the database
-     * @return the account number, null if it fails
+     * @return the card number, null if it fails
      */
-    public String createAccount() {
-        String cardNumber = "";
-        boolean numberCreated = false;
-        boolean successCreation = true;
-        int pinNumber = 0;
+    public CardNumber createAccount() {
+        long start = System.nanoTime();
+        try {
+            CardNumber cardNumber = null;
+            boolean numberCreated = false;
+            boolean successCreation = true;
+            int pinNumber = 0;
+
+            int accountNumber = 0;
 
-        int accountNumber = 0;
+            while (!numberCreated) {
+                accountNumber = createRandomAccountNumber();
+                numberCreated = true;
 
-        while (!numberCreated) {
-            accountNumber = createRandomAccountNumber();
-            numberCreated = true;
+                String accountString = Integer.toString(accountNumber);
+                CountingBloomFilter accounts = accountFilter;
+                if (accounts != null && !accounts.mightContain(accountString)) {
+                    break; // surely a new account, no need to ask the database
+                }
 
-            String tempAccount = dataBase.getAccount(Integer.toString(accountNumber)); // check if account already exist
+                String tempAccount = dataBase.getAccount(accountString); // check if account already exist
 
-            if (tempAccount.length() > 0) {
-                // account exists, we continue
-                numberCreated = false;
-                continue;
+                if (tempAccount.length() > 0) {
+                    // account exists, we continue
+                    numberCreated = false;
+                    continue;
+                }
+            }
+            // checking if accountNumber was created and adding checksum
+            if (accountNumber > 0) {
+                // card number will be BIN + accountNumber + random checksum
+                cardNumber = CardNumber.build(BIN_NUMBER, accountNumber);
+            } else { // this should not happen, but here we go
+                successCreation = false;
             }
-        }
-        // checking if accountNumber was created and adding checksum
-        if (accountNumber > 0) {
-            // card number will be BIN + accountNumber + random checksum
-            String cardNumberWithoutChecksum = String.format("%d%d", BIN_NUMBER, accountNumber);
 
-            int checksum = generateChecksum(cardNumberWithoutChecksum);
-            cardNumber = String.format("%s%d", cardNumberWithoutChecksum, checksum);
-        } else { // this should not happen, but here we go
-            successCreation = false;
+            // we have now a new cardNumber. lets check if already exists in our database (it should not happen after the
+            // first check
+            if(cardNumber != null) {
+                CountingBloomFilter cards = cardFilter;
+                boolean exist = (cards == null || cards.mightContain(cardNumber.getValue())) && dataBase.checkCardNumber(cardNumber);
+                if (exist) { // something went wrong and card already exist
+                    successCreation = false;
+                }
+            } else { // this should not happen
+                successCreation = false;
+            }
+
+            // finally we create pin number
+            int pinInterval = 9999 - 1000 + 1;
+            pinNumber = random.nextInt(pinInterval) + 1000;
+
+            if(successCreation) { // last check
+                // we add everything to the database
+                String accountString = Integer.toString(accountNumber);
+                if (dataBase.createCard(cardNumber, pinNumber, accountString)) {
+                    addToLookupFilters(cardNumber, accountString);
+                    // write through, the new card is usually read right away
+                    Card card = new Card();
+                    card.setNumber(cardNumber);
+                    card.setPin(pinNumber);
+                    cardCache.put(card);
+                    openInLedger(cardNumber);
+                } else {
+                    createAccountOp.error();
+                }
+                return cardNumber;
+            } else { // we will just re-execute
+                return createAccount();
+            }
+        } finally {
+            createAccountOp.record(start);
         }
+    }
 
-        // we have now a new cardNumber. lets check if already exists in our database (it should not happen after the
-        // first check
-        if(cardNumber != null && cardNumber.length() > 0) {
-            boolean exist = dataBase.checkCardNumber(cardNumber);
-            if (exist) { // something went wrong and card already exist
-                successCreation = false;
+    /**
+     * Creates many accounts at once, for bulk provisioning.
+     * Numbers are generated and checked for uniqueness in memory (using the lookup filters,
+     * the database is only asked when a filter reports a possible match), then inserted
+     * in batches with one transaction per chunk
+     * @param count - how many accounts to create
+     * @return the created cards, with number, pin and account set. If the database fails
+     * part way the stream only has the cards that were created
+     */
+    public Stream<Card> createAccounts(int count) {
+        long start = System.nanoTime();
+        try {
+            List<Card> created = new ArrayList<>(count);
+            while (created.size() < count) {
+                int chunkSize = Math.min(BULK_CHUNK_SIZE, count - created.size());
+                List<Card> chunk = generateNewCards(chunkSize);
+
+                int inserted = dataBase.createCards(chunk, BULK_CHUNK_SIZE);
+                addToLookupFilters(chunk.subList(0, inserted));
+                for (Card card : chunk.subList(0, inserted)) {
+                    openInLedger(card.getNumber());
+                }
+                created.addAll(chunk.subList(0, inserted));
+                if (inserted < chunk.size()) {
+                    createAccountsOp.error();
+                    break; // database failure, already reported by the store
+                }
             }
-        } else { // this should not happen
-            successCreation = false;
+            return created.stream();
+        } finally {
+            createAccountsOp.record(start);
         }
+    }
 
-        // finally we create pin number
+    /**
+     * generates cards with numbers that are not in the database yet
+     * @param count - how many cards
+     * @return the new cards, not inserted
+     */
+    private List<Card> generateNewCards(int count) {
+        List<Card> cards = new ArrayList<>(count);
+        Set<Integer> usedAccounts = new HashSet<>();
         int pinInterval = 9999 - 1000 + 1;
-        pinNumber = random.nextInt(pinInterval) + 1000;
 
-        if(successCreation) { // last check
-            // we add everything to the database
-            dataBase.createCard(cardNumber, Integer.toString(pinNumber), Integer.toString(accountNumber));
-            return cardNumber;
-        } else { // we will just re-execute
-            return createAccount();
+        while (cards.size() < count) {
+            int accountNumber = createRandomAccountNumber();
+            String accountString = Integer.toString(accountNumber);
+            if (!usedAccounts.add(accountNumber)) {
+                continue; // already generated in this batch
+            }
+            CountingBloomFilter accounts = accountFilter;
+            if ((accounts == null || accounts.mightContain(accountString))
+                    && dataBase.getAccount(accountString).length() > 0) {
+                continue; // account exists
+            }
+            // the card number is derived from the account number, so a new account means a new card number
+            Card card = new Card();
+            card.setNumber(CardNumber.build(BIN_NUMBER, accountNumber));
+            card.setPin(random.nextInt(pinInterval) + 1000);
+            card.setAccount(accountString);
+            cards.add(card);
         }
+        return cards;
     }
 
     /**
@@ -96,17 +228,22 @@ public class BankService {
      * @param pinNumber
      * @return true if Card exists and pin number matches, false if not
      */
-    public boolean checkPinNumber(String cardNumber, int pinNumber) {
-        boolean correct = false;
+    public boolean checkPinNumber(CardNumber cardNumber, int pinNumber) {
+        long start = System.nanoTime();
+        try {
+            boolean correct = false;
 
-        Card card = dataBase.getCard(cardNumber);
+            Card card = findCard(cardNumber);
 
-        if(card != null) {
-            if (card.getPin().equalsIgnoreCase(Integer.toString(pinNumber))){
-                correct = true;
+            if(card != null) {
+                if (card.getPin() == pinNumber){
+                    correct = true;
+                }
             }
+            return correct;
+        } finally {
+            checkPinNumberOp.record(start);
         }
-        return correct;
     }
 
     /**
@@ -114,8 +251,37 @@ public class BankService {
      * @param cardNumber
      * @return true if it exist, false if not
      */
-    public boolean checkIfAccountExist(String cardNumber) {
-        return dataBase.getCard(cardNumber) != null ? true : false;
+    public boolean checkIfAccountExist(CardNumber cardNumber) {
+        long start = System.nanoTime();
+        try {
+            return findCard(cardNumber) != null ? true : false;
+        } finally {
+            checkIfAccountExistOp.record(start);
+        }
+    }
+
+    /**
+     * Gets a card from the cache, or from the database on a cache miss
+     * @param cardNumber
+     * @return the Card, null if it does not exist
+     */
+    private Card findCard(CardNumber cardNumber) {
+        CountingBloomFilter cards = cardFilter;
+        if (cards != null && !cards.mightContain(cardNumber.getValue())) {
+            return null; // surely does not exist
+        }
+        Card card = cardCache.get(cardNumber);
+        if (card == null) {
+            // loaded under the card lock, so a balance change can not slip in between the read and the put
+            card = transferEngine.withCardLock(cardNumber, () -> {
+                Card loaded = dataBase.getCard(cardNumber);
+                if (loaded != null) {
+                    cardCache.put(loaded);
+                }
+                return loaded;
+            });
+        }
+        return card;
     }
 
 
@@ -125,49 +291,21 @@ public class BankService {
      * @return the checksum or -1 if it fails
      */
     public int generateChecksum(String cardNumberWithoutChecksum) {
-        // first we need to calculate the control number, for that, we will summ all digits of the cardNumber
-        int sum = 0;
-        int checksum = -1;
-        try {
-            for (int i = 0; i < cardNumberWithoutChecksum.length(); i++) {
-                // if odd index (i+1) we will multiply it by 2
-                int currentNumber = Character.getNumericValue(cardNumberWithoutChecksum.charAt(i));
-                int digitToSum = (i + 1) % 2 == 0 ? currentNumber : currentNumber * 2;
-                // if result number is higher than 10, we substract 9
-                digitToSum = digitToSum > 9 ? (digitToSum - 9) : digitToSum;
-                sum += digitToSum;
-            }
-            // now that we have the sum, we need to find the next number that suming it to the total, will be multiple of 10
-            for (int i = 0; i < 10; i++) {
-                if ((sum + i) % 10 == 0) {
-                    checksum = i;
-                    break;
-                }
-            }
-        } catch (NumberFormatException nfe) {
+        int checksum = Luhn.checkDigit(cardNumberWithoutChecksum);
+        if (checksum < 0) {
             System.out.println(String.format("Invalid card number while generating checksum -> %s"
                     , cardNumberWithoutChecksum));
         }
-
         return checksum;
     }
 
     /**
      * Check if card number is valid by applying the Luhn algorithm
      * @param cardNumber
-     * @return true if the card is valid, valse if not
+     * @return true if the card is valid, valse if not (also when it is null)
      */
-    public boolean checkCardNumberValid(String cardNumber) {
-        String cardNumberWithoutChecksum = cardNumber.substring(0, cardNumber.length() -1); // removes the checksum
-        int checksum = generateChecksum(cardNumberWithoutChecksum);
-
-        if (checksum >= 0) {
-            // generated checksum should match cardNumber
-            if ((cardNumberWithoutChecksum + checksum).equalsIgnoreCase(cardNumber)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean checkCardNumberValid(CardNumber cardNumber) {
+        return cardNumber != null && cardNumber.isValid();
     }
 
     /**
@@ -175,14 +313,19 @@ public class BankService {
      * @param cardNumber
      * @return pinNumber
      */
-    public Integer getPinNumber(String cardNumber) {
-        Integer pinNumber = -1;
-        Card card = dataBase.getCard(cardNumber);
+    public Integer getPinNumber(CardNumber cardNumber) {
+        long start = System.nanoTime();
+        try {
+            Integer pinNumber = -1;
+            Card card = findCard(cardNumber);
 
-        if (card != null) {
-            pinNumber = Integer.parseInt(card.getPin());
+            if (card != null) {
+                pinNumber = card.getPin();
+            }
+            return pinNumber;
+        } finally {
+            getPinNumberOp.record(start);
         }
-        return pinNumber;
     }
 
     /**
@@ -199,24 +342,71 @@ public class BankService {
      * @param cardNumber
      * @return the balance or -1 i somethign went wrong
      */
-    public long getBalance(String cardNumber) {
-        long balance = -1;
-        Card card = dataBase.getCard(cardNumber);
+    public long getBalance(CardNumber cardNumber) {
+        long start = System.nanoTime();
+        try {
+            BalanceLedger ledger = balanceLedger;
+            long balance = ledger != null ? ledger.getBalance(cardNumber) : -1;
+            if (balance >= 0) {
+                return balance; // no card object needed
+            }
+            Card card = findCard(cardNumber);
 
-        if (card != null) {
-            balance = card.getBalance();
+            if (card != null) {
+                balance = card.getBalance();
+            }
+            return balance;
+        } finally {
+            getBalanceOp.record(start);
         }
-        return balance;
     }
 
     /**
      * adds an income into the database
      * @param cardNumber
+     * @param amount - it should be positive
+     * @return true if it was successful, false if the amount is not positive or it failed
+     */
+    public boolean addIncome(CardNumber cardNumber, long amount) {
+        long start = System.nanoTime();
+        try {
+            if (amount <= 0) {
+                return false;
+            }
+            CompletableFuture<TransferResult> queued = submitToGroupCommit(BalanceOperation.income(cardNumber, amount));
+            if (queued != null) {
+                return queued.join() == TransferResult.SUCCESS;
+            }
+            return transferEngine.withCardLock(cardNumber, () -> {
+                boolean success = this.dataBase.updateBalance(cardNumber, amount);
+                if (success) {
+                    cardCache.adjustBalance(cardNumber, amount);
+                    adjustLedger(cardNumber, amount);
+                }
+                return success;
+            });
+        } finally {
+            addIncomeOp.record(start);
+        }
+    }
+
+    /**
+     * adds an income through the group commit pipeline
+     * @param cardNumber
      * @param amount
-     * @return true if it was successful, false if it failed
+     * @return completes once the income is committed, right away when group commit is disabled
+     * or the amount is not positive (INVALID_AMOUNT)
      */
-    public boolean addIncome(String cardNumber, long amount) {
-        return this.dataBase.updateBalance(cardNumber, amount);
+    public CompletableFuture<TransferResult> addIncomeAsync(CardNumber cardNumber, long amount) {
+        if (amount <= 0) {
+            return CompletableFuture.completedFuture(TransferResult.INVALID_AMOUNT);
+        }
+        CompletableFuture<TransferResult> queued = submitToGroupCommit(BalanceOperation.income(cardNumber, amount));
+        if (queued == null) {
+            boolean success = addIncome(cardNumber, amount);
+            return CompletableFuture.completedFuture(success ? TransferResult.SUCCESS : TransferResult.FAILED);
+        }
+        return queued;
     }
 
 
@@ -227,15 +417,682 @@ public class BankService {
      * @param amount - the amount to transfer (will be summed in the receptor and substracted in the origin)
      * @return true if succesful
      */
-    public boolean transferMoney(String originCard, String receptorCard, long amount) {
-        return this.dataBase.transfer(originCard, receptorCard, amount);
+    public boolean transferMoney(CardNumber originCard, CardNumber receptorCard, long amount) {
+        return transfer(originCard, receptorCard, amount) == TransferResult.SUCCESS;
     }
 
-    public void setDataBase(BankDb dataBase) {
+    /**
+     * transfer money between accounts, safe to call from many threads.
+     * The balance check and the debit happen atomically, and both cards are locked
+     * (in a fixed order) while the database and the cache are updated
+     * @param originCard - the original account
+     * @param receptorCard - the receptor account
+     * @param amount - the amount to transfer, it should be positive
+     * @return the outcome, INSUFFICIENT_FUNDS if the origin does not have the amount
+     */
+    public TransferResult transfer(CardNumber originCard, CardNumber receptorCard, long amount) {
+        long start = System.nanoTime();
+        try {
+            TransferResult result;
+            if (amount <= 0) {
+                result = TransferResult.INVALID_AMOUNT;
+            } else if (originCard.equals(receptorCard)) {
+                result = TransferResult.SAME_CARD;
+            } else if (lacksFundsInLedger(originCard, amount)) {
+                result = TransferResult.INSUFFICIENT_FUNDS;
+            } else {
+                CompletableFuture<TransferResult> queued =
+                        submitToGroupCommit(BalanceOperation.transfer(originCard, receptorCard, amount));
+                if (queued != null) {
+                    // counted by writeBatch
+                    return queued.join();
+                }
+                result = transferEngine.withCardLocks(originCard, receptorCard, () -> {
+                    BalanceLedger ledger = balanceLedger;
+                    // the ledger takes the money first, so a transfer without funds never reaches the store
+                    TransferResult debited = ledger != null
+                            ? ledger.debit(originCard, amount) : TransferResult.NO_SUCH_CARD;
+                    if (debited == TransferResult.INSUFFICIENT_FUNDS) {
+                        return debited;
+                    }
+                    TransferResult outcome = this.dataBase.transferIfFunds(originCard, receptorCard, amount);
+                    if (outcome == TransferResult.SUCCESS) {
+                        cardCache.adjustBalance(originCard, -amount);
+                        cardCache.adjustBalance(receptorCard, amount);
+                        adjustLedger(receptorCard, amount);
+                    } else if (debited == TransferResult.SUCCESS) {
+                        adjustLedger(originCard, amount); // the store refused it, give the money back
+                    }
+                    return outcome;
+                });
+            }
+            transferEngine.recordTransfer(result);
+            if (result == TransferResult.FAILED) {
+                transferOp.error();
+            }
+            return result;
+        } finally {
+            transferOp.record(start);
+        }
+    }
+
+    /**
+     * transfer money through the group commit pipeline
+     * @param originCard - the original account
+     * @param receptorCard - the receptor account
+     * @param amount - the amount to transfer, it should be positive
+     * @return completes with the outcome once the transfer is committed,
+     * right away when group commit is disabled or the transfer is rejected
+     */
+    public CompletableFuture<TransferResult> transferAsync(CardNumber originCard, CardNumber receptorCard, long amount) {
+        if (amount <= 0 || originCard.equals(receptorCard) || lacksFundsInLedger(originCard, amount)) {
+            return CompletableFuture.completedFuture(transfer(originCard, receptorCard, amount));
+        }
+        CompletableFuture<TransferResult> queued =
+                submitToGroupCommit(BalanceOperation.transfer(originCard, receptorCard, amount));
+        if (queued == null) {
+            return CompletableFuture.completedFuture(transfer(originCard, receptorCard, amount));
+        }
+        return queued;
+    }
+
+    /**
+     * queues an operation when group commit is enabled
+     * @param operation
+     * @return completes once the operation is committed, null if group commit is disabled or
+     * being disabled, the caller then writes the operation itself
+     */
+    private CompletableFuture<TransferResult> submitToGroupCommit(BalanceOperation operation) {
+        GroupCommitter committer = groupCommitter;
+        // a committer being shut down refuses the operation instead of losing it
+        return committer != null ? committer.submit(operation) : null;
+    }
+
+    /**
+     * Switches addIncome and transfers to group commit: operations are queued and a single
+     * writer commits them in batches, so many operations share one commit (and one fsync)
+     * @param maxBatchSize - maximum operations per transaction
+     * @param maxWaitMillis - maximum time an operation waits for its batch to fill
+     */
+    public synchronized void enableGroupCommit(int maxBatchSize, long maxWaitMillis) {
+        disableGroupCommit();
+        groupCommitter = new GroupCommitter(this::writeBatch, maxBatchSize, maxWaitMillis);
+    }
+
+    /**
+     * writes what is still queued and goes back to one transaction per operation
+     */
+    public synchronized void disableGroupCommit() {
+        GroupCommitter committer = groupCommitter;
+        if (committer != null) {
+            groupCommitter = null;
+            committer.shutdown();
+        }
+    }
+
+    /**
+     * @return true if incomes and transfers go through group commit
+     */
+    public boolean isGroupCommitEnabled() {
+        return groupCommitter != null;
+    }
+
+    /**
+     * @return the batch size and queue depth statistics, null if group commit is disabled
+     */
+    public GroupCommitter.Stats getGroupCommitStats() {
+        GroupCommitter committer = groupCommitter;
+        return committer != null ? committer.getStats() : null;
+    }
+
+    /**
+     * writes a batch holding the locks of every card in it, then updates the cache
+     * @param operations
+     * @return the outcome of each operation
+     */
+    private TransferResult[] writeBatch(List<BalanceOperation> operations) {
+        Set<CardNumber> cards = new HashSet<>();
+        for (BalanceOperation operation : operations) {
+            cards.add(operation.getReceptorCard());
+            if (operation.getOriginCard() != null) {
+                cards.add(operation.getOriginCard());
+            }
+        }
+        return transferEngine.withCardLocks(cards, () -> {
+            TransferResult[] results = dataBase.applyBatch(operations);
+            for (int i = 0; i < results.length; i++) {
+                BalanceOperation operation = operations.get(i);
+                if (results[i] == TransferResult.SUCCESS) {
+                    cardCache.adjustBalance(operation.getReceptorCard(), operation.getAmount());
+                    adjustLedger(operation.getReceptorCard(), operation.getAmount());
+                    if (operation.getOriginCard() != null) {
+                        cardCache.adjustBalance(operation.getOriginCard(), -operation.getAmount());
+                        adjustLedger(operation.getOriginCard(), -operation.getAmount());
+                    }
+                }
+                if (operation.getKind() == BalanceOperation.Kind.TRANSFER) {
+                    transferEngine.recordTransfer(results[i]);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Keeps the balances in a ledger file next to the store, so balance reads and transfers without funds
+     * are answered from it. The store is still changed first and keeps the transaction history.
+     * A ledger closed cleanly with closeBalanceLedger at the current change sequence of a BankDb is used as it is,
+     * otherwise it is filled again from the store.
+     * Call it before serving customers, cards changed while it loads may be missed
+     * @param ledgerFile
+     * @return true if the ledger file was reused, false if it was filled from the store or could not be opened
+     * (see getBalanceLedger)
+     */
+    public synchronized boolean useBalanceLedger(Path ledgerFile) {
+        closeBalanceLedger();
+        long cards = dataBase.countCards();
+        if (cards < 0) {
+            System.out.println("failed while counting the cards for the balance ledger");
+            return false;
+        }
+        try {
+            if (Files.exists(ledgerFile)) {
+                BalanceLedger ledger = BalanceLedger.open(ledgerFile);
+                long sequence = dataBase instanceof BankDb ? ((BankDb) dataBase).getChangeSequence() : -1;
+                if (ledger.isSynced() && sequence >= 0 && ledger.getSyncedSequence() == sequence
+                        && ledger.getCapacity() / 2 >= cards) {
+                    balanceLedger = ledger;
+                    return true;
+                }
+                ledger.close();
+                System.out.println(ledgerFile + " does not match the cards, loading it again");
+            }
+            BalanceLedger ledger = BalanceLedger.create(ledgerFile, cards);
+            if (ledger.load(dataBase) < 0) {
+                ledger.close();
+                return false;
+            }
+            balanceLedger = ledger;
+            return false;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("failed while opening the balance ledger " + ledgerFile);
+            return false;
+        }
+    }
+
+    /**
+     * closes the balance ledger, marking it synced with the store so the next start can reuse it.
+     * Call it once customers are not served anymore
+     */
+    public void closeBalanceLedger() {
+        closeBalanceLedger(true);
+    }
+
+    /**
+     * @param synced - false to leave the ledger unsynced, it is then loaded again by the next useBalanceLedger
+     */
+    private synchronized void closeBalanceLedger(boolean synced) {
+        BalanceLedger ledger = balanceLedger;
+        if (ledger == null) {
+            return;
+        }
+        balanceLedger = null;
+        try {
+            long sequence = synced && dataBase instanceof BankDb ? ((BankDb) dataBase).getChangeSequence() : -1;
+            if (sequence >= 0) {
+                ledger.markSynced(sequence);
+            }
+            ledger.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("failed while closing the balance ledger " + ledger.getFile());
+        }
+    }
+
+    /**
+     * @return the balance ledger, null if balances are only kept in the store
+     */
+    public BalanceLedger getBalanceLedger() {
+        return balanceLedger;
+    }
+
+    /**
+     * adds a new card to the ledger. When it is full the ledger is closed without marking it synced,
+     * balances go back to the store and the next useBalanceLedger creates a bigger one
+     * @param cardNumber
+     */
+    private void openInLedger(CardNumber cardNumber) {
+        BalanceLedger ledger = balanceLedger;
+        if (ledger != null && !ledger.openCard(cardNumber, 0) && ledger.isFull()) {
+            synchronized (this) {
+                if (balanceLedger == ledger) {
+                    balanceLedger = null;
+                    System.out.println("the balance ledger " + ledger.getFile()
+                            + " is full, balances are read from the store");
+                    try {
+                        ledger.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * applies a balance change the store already made to the ledger. A card the ledger can not follow
+     * is closed in it, so its balance is read from the store again
+     * @param cardNumber
+     * @param amount - positive to add, negative to take
+     */
+    private void adjustLedger(CardNumber cardNumber, long amount) {
+        BalanceLedger ledger = balanceLedger;
+        if (ledger == null) {
+            return;
+        }
+        TransferResult result = amount >= 0 ? ledger.add(cardNumber, amount) : ledger.debit(cardNumber, -amount);
+        if (result != TransferResult.SUCCESS && result != TransferResult.NO_SUCH_CARD) {
+            ledger.closeCard(cardNumber);
+        }
+    }
+
+    /**
+     * @return true if the ledger says the origin can not pay the amount, the store is then not asked
+     */
+    private boolean lacksFundsInLedger(CardNumber originCard, long amount) {
+        BalanceLedger ledger = balanceLedger;
+        if (ledger == null) {
+            return false;
+        }
+        long balance = ledger.getBalance(originCard);
+        return balance >= 0 && balance < amount;
+    }
+
+    /**
+     * @return the latency and error counters of the service operations
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the latency and error counters of the storage operations, and connection waits for BankDb
+     */
+    public Metrics getDataBaseMetrics() {
+        return dataBase.getMetrics();
+    }
+
+    /**
+     * Streams the statement of a card, oldest first. Rows are read a page at a time as the stream
+     * is consumed, each page starting right after the previous one, so a statement of any length
+     * streams in constant memory and every page costs the same
+     * @param cardNumber
+     * @param fromTime - first time included, epoch milliseconds
+     * @param toTime - last time included, epoch milliseconds
+     * @return the balance changes of the card in that period. If the database fails while reading,
+     * the stream throws an IllegalStateException
+     */
+    public Stream<Transaction> getStatement(CardNumber cardNumber, long fromTime, long toTime) {
+        Spliterator<Transaction> pages = new Spliterators.AbstractSpliterator<Transaction>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            private List<Transaction> page = null;
+            private int next = 0;
+            private long afterTime = fromTime - 1;
+            private long afterId = -1;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Transaction> action) {
+                if (page == null || (next == page.size() && page.size() == STATEMENT_PAGE_SIZE)) {
+                    page = getStatementPage(cardNumber, afterTime, afterId, toTime, STATEMENT_PAGE_SIZE);
+                    next = 0;
+                    if (page == null) {
+                        throw new IllegalStateException("failed while reading the statement of " + cardNumber);
+                    }
+                }
+                if (next == page.size()) {
+                    return false;
+                }
+                Transaction transaction = page.get(next++);
+                afterTime = transaction.getTime();
+                afterId = transaction.getId();
+                action.accept(transaction);
+                return true;
+            }
+        };
+        return StreamSupport.stream(pages, false);
+    }
+
+    /**
+     * Reads one page of the statement of a card, for callers that page it themselves
+     * @param cardNumber
+     * @param afterTime - time of the last row of the previous page, or the statement start minus one
+     * @param afterId - id of the last row of the previous page, -1 for the first page
+     * @param toTime - last time included, epoch milliseconds
+     * @param pageSize - maximum rows in the page, a shorter page is the last one
+     * @return the rows, null if something went wrong
+     */
+    public List<Transaction> getStatementPage(CardNumber cardNumber, long afterTime, long afterId, long toTime,
+                                              int pageSize) {
+        long start = System.nanoTime();
+        try {
+            List<Transaction> page = dataBase.getStatementPage(cardNumber, afterTime, afterId, toTime, pageSize);
+            if (page == null) {
+                getStatementPageOp.error();
+            }
+            return page;
+        } finally {
+            getStatementPageOp.record(start);
+        }
+    }
+
+    /**
+     * @return the transfer engine, to read its throughput and contention statistics
+     */
+    public TransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    /**
+     * @param dataBase - the storage backend, BankDb or MemoryCardStore
+     */
+    public void setDataBase(CardStore dataBase) {
+        closeBalanceLedger(false); // it follows the previous database, which may be closed already
         this.dataBase = dataBase;
+        this.cardCache.clear(); // cached cards belong to the previous database
+        rebuildLookupFilters();
+    }
+
+    /**
+     * Sets the database and builds the lookup filters and the card cache from a balance snapshot
+     * plus the changes made after it, instead of scanning every card.
+     * Falls back to a scan if the snapshot is missing, unreadable, or older than the change log.
+     * Call it before serving customers, the cache is filled without taking the card locks
+     * @param dataBase
+     * @param snapshotFile - a file written by writeSnapshot
+     * @return true if the snapshot was used, false if the cards were scanned
+     */
+    public boolean setDataBase(BankDb dataBase, Path snapshotFile) {
+        closeBalanceLedger(false);
+        this.dataBase = dataBase;
+        this.cardCache.clear();
+        if (Files.exists(snapshotFile) && loadSnapshot(dataBase, snapshotFile)) {
+            return true;
+        }
+        rebuildLookupFilters();
+        return false;
+    }
+
+    /**
+     * @param dataBase - the database the snapshot was written from
+     * @param snapshotFile
+     * @return true if the filters and the cache were built from it
+     */
+    private boolean loadSnapshot(BankDb dataBase, Path snapshotFile) {
+        synchronized (lookupFilterLock) {
+            try {
+                BalanceSnapshot snapshot = BalanceSnapshot.open(snapshotFile);
+                long changeLogStart = dataBase.getChangeLogStart();
+                if (changeLogStart < 0 || changeLogStart > snapshot.getChangeSequence()) {
+                    System.out.println(snapshotFile + " is older than the card change log, scanning the cards instead");
+                    return false;
+                }
+                // cards changed after the snapshot, with their current state (null if deleted)
+                HashMap<CardNumber, Card> changed = new HashMap<>();
+                if (!dataBase.forEachChangedCard(snapshot.getChangeSequence(), changed::put)) {
+                    return false;
+                }
+
+                long expected = Math.max(1024, (snapshot.getCount() + changed.size()) * 2);
+                CountingBloomFilter newCardFilter = new CountingBloomFilter(expected, lookupFilterFalsePositiveRate);
+                CountingBloomFilter newAccountFilter = new CountingBloomFilter(expected, lookupFilterFalsePositiveRate);
+                CardCache cache = cardCache;
+                int[] cacheRoom = {cache.getMaxEntries()};
+                snapshot.forEach(card -> {
+                    if (!changed.containsKey(card.getNumber())) {
+                        load(card, newCardFilter, newAccountFilter, cache, cacheRoom);
+                    }
+                });
+                for (Card card : changed.values()) {
+                    if (card != null) {
+                        load(card, newCardFilter, newAccountFilter, cache, cacheRoom);
+                    }
+                }
+                cardFilter = newCardFilter;
+                accountFilter = newAccountFilter;
+                return true;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("failed while loading the balance snapshot " + snapshotFile);
+                cardCache.clear(); // may hold part of the snapshot
+                return false;
+            }
+        }
+    }
+
+    private static void load(Card card, CountingBloomFilter cards, CountingBloomFilter accounts, CardCache cache,
+                             int[] cacheRoom) {
+        cards.add(card.getNumber().getValue());
+        if (card.getAccount() != null) {
+            accounts.add(card.getAccount());
+        }
+        if (cacheRoom[0] > 0) {
+            cache.put(card);
+            cacheRoom[0]--;
+        }
+    }
+
+    /**
+     * writes every card and its balance to a snapshot file, for a fast startup with setDataBase(dataBase, file)
+     * @param snapshotFile
+     * @return true if it was successful, false if not or if the storage is not a BankDb
+     */
+    public boolean writeSnapshot(Path snapshotFile) {
+        long start = System.nanoTime();
+        try {
+            if (!(dataBase instanceof BankDb)) {
+                System.out.println("balance snapshots need the SQLite database");
+                return false;
+            }
+            try {
+                BalanceSnapshot snapshot = BalanceSnapshot.write((BankDb) dataBase, snapshotFile);
+                System.out.println(String.format("balance snapshot of %d cards written to %s",
+                        snapshot.getCount(), snapshotFile));
+                return true;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                writeSnapshotOp.error();
+                System.out.println("failed while writing the balance snapshot " + snapshotFile);
+                return false;
+            }
+        } finally {
+            writeSnapshotOp.record(start);
+        }
+    }
+
+    /**
+     * writes a snapshot in the background every period, until stopSnapshots is called
+     * @param snapshotFile
+     * @param periodMillis
+     */
+    public synchronized void startSnapshots(Path snapshotFile, long periodMillis) {
+        stopSnapshots();
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "balance-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> writeSnapshot(snapshotFile),
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
     }
 
-    public boolean deleteAccount(String cardNumber) {
-        return dataBase.deleteAccount(cardNumber);
+    /**
+     * stops the periodic snapshots, waiting for one being written
+     */
+    public synchronized void stopSnapshots() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            snapshotScheduler = null;
+        }
+    }
+
+    /**
+     * Sets the false positive rate of the card and account lookup filters,
+     * it is applied the next time the filters are rebuilt
+     * @param falsePositiveRate - between 0 and 1, for example 0.01
+     */
+    public void setLookupFilterFalsePositiveRate(double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate should be between 0 and 1");
+        }
+        this.lookupFilterFalsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Builds the card and account lookup filters from the database.
+     * They are sized for twice the current number of cards, so they have room to grow
+     * @return true if the filters were built, false if the database could not be scanned
+     * (lookups then keep going to the database)
+     */
+    public boolean rebuildLookupFilters() {
+        long start = System.nanoTime();
+        try {
+            // updates wait for the scan, so a card created meanwhile is added to the new filters
+            synchronized (lookupFilterLock) {
+                long cards = dataBase.countCards();
+                if (cards < 0) {
+                    rebuildLookupFiltersOp.error();
+                    cardFilter = null;
+                    accountFilter = null;
+                    return false;
+                }
+                long expected = Math.max(1024, cards * 2);
+                CountingBloomFilter newCardFilter = new CountingBloomFilter(expected, lookupFilterFalsePositiveRate);
+                CountingBloomFilter newAccountFilter = new CountingBloomFilter(expected, lookupFilterFalsePositiveRate);
+
+                boolean scanned = dataBase.forEachCardAndAccount((cardNumber, account) -> {
+                    newCardFilter.add(cardNumber.getValue());
+                    if (account != null) {
+                        newAccountFilter.add(account);
+                    }
+                });
+                if (!scanned) {
+                    rebuildLookupFiltersOp.error();
+                }
+                cardFilter = scanned ? newCardFilter : null;
+                accountFilter = scanned ? newAccountFilter : null;
+                return scanned;
+            }
+        } finally {
+            rebuildLookupFiltersOp.record(start);
+        }
+    }
+
+    /**
+     * @return the card number lookup filter, null if it is not built
+     */
+    public CountingBloomFilter getCardFilter() {
+        return cardFilter;
+    }
+
+    /**
+     * @return the account number lookup filter, null if it is not built
+     */
+    public CountingBloomFilter getAccountFilter() {
+        return accountFilter;
+    }
+
+    private void addToLookupFilters(CardNumber cardNumber, String accountNumber) {
+        synchronized (lookupFilterLock) {
+            CountingBloomFilter cards = cardFilter;
+            CountingBloomFilter accounts = accountFilter;
+            if (cards != null && accounts != null) {
+                cards.add(cardNumber.getValue());
+                accounts.add(accountNumber);
+                if (cards.isOverloaded()) {
+                    rebuildLookupFilters();
+                }
+            }
+        }
+    }
+
+    private void addToLookupFilters(List<Card> cards) {
+        synchronized (lookupFilterLock) {
+            CountingBloomFilter cardNumbers = cardFilter;
+            CountingBloomFilter accounts = accountFilter;
+            if (cardNumbers != null && accounts != null) {
+                for (Card card : cards) {
+                    cardNumbers.add(card.getNumber().getValue());
+                    accounts.add(card.getAccount());
+                }
+                if (cardNumbers.isOverloaded()) {
+                    rebuildLookupFilters();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cardNumber - a card that was deleted
+     * @param accountNumber - the account stored with it, empty if it had none
+     */
+    private void removeFromLookupFilters(CardNumber cardNumber, String accountNumber) {
+        synchronized (lookupFilterLock) {
+            CountingBloomFilter cards = cardFilter;
+            CountingBloomFilter accounts = accountFilter;
+            if (cards != null && accounts != null) {
+                cards.remove(cardNumber.getValue());
+                if (!accountNumber.isEmpty()) {
+                    accounts.remove(accountNumber);
+                }
+            }
+        }
+    }
+
+    /**
+     * replaces the card cache, for example to change its size
+     * @param cardCache
+     */
+    public void setCardCache(CardCache cardCache) {
+        this.cardCache = cardCache;
+    }
+
+    /**
+     * @return the card cache, to read its hit / miss / eviction counters
+     */
+    public CardCache getCardCache() {
+        return cardCache;
+    }
+
+    /**
+     * closes a card and its account
+     * @param cardNumber
+     * @return true if it was deleted, false if it did not exist or the store failed
+     */
+    public boolean deleteAccount(CardNumber cardNumber) {
+        long start = System.nanoTime();
+        try {
+            return transferEngine.withCardLock(cardNumber, () -> {
+                // the store says which account the card really had, and only one close gets it
+                String account = dataBase.deleteAccount(cardNumber);
+                cardCache.invalidate(cardNumber);
+                if (account == null) {
+                    return false;
+                }
+                BalanceLedger ledger = balanceLedger;
+                if (ledger != null) {
+                    ledger.closeCard(cardNumber);
+                }
+                removeFromLookupFilters(cardNumber, account);
+                return true;
+            });
+        } finally {
+            deleteAccountOp.record(start);
+        }
     }
 }
\ No newline at end of file
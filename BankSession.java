@@ -1,19 +1,231 @@
 package banking;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
 public class BankSession {
 
+    public static final long SNAPSHOT_PERIOD_MILLIS = 5 * 60 * 1000;
+    public static final long METRICS_PERIOD_MILLIS = 10 * 1000;
+
+    private Path snapshotFile = null; // null to start by scanning the cards
+    private Path metricsFile = null; // null to keep the metrics in memory only
+    private Path ledgerFile = null; // null to read balances from the database
+    private List<String> shardFiles = null; // null to keep every card in one database
+    private ScheduledExecutorService metricsWriter = null;
+    private double lookupFilterFalsePositiveRate = 0; // 0 to keep the service default
+
+    /**
+     * starts from a balance snapshot, written again every few minutes and on exit
+     * @param snapshotFile - the snapshot location, null to start by scanning the cards
+     */
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile == null ? null : Paths.get(snapshotFile);
+    }
+
+    /**
+     * writes the latency and error metrics to a file every few seconds and on exit
+     * @param metricsFile - the file, replaced every time, null to keep the metrics in memory only
+     */
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile == null ? null : Paths.get(metricsFile);
+    }
+
+    /**
+     * keeps the balances in a ledger file while the bank runs, closed cleanly on exit so the next start reuses it
+     * @param ledgerFile - the ledger location, null to read balances from the database
+     */
+    public void setBalanceLedgerFile(String ledgerFile) {
+        this.ledgerFile = ledgerFile == null ? null : Paths.get(ledgerFile);
+    }
+
+    /**
+     * spreads the cards over several database files, the database url then names the shard directory
+     * @param shardFiles - comma separated shard files, only used when the directory is new,
+     * null to keep every card in one database
+     */
+    public void setShardFiles(String shardFiles) {
+        this.shardFiles = shardFiles == null ? null : Arrays.asList(shardFiles.split(","));
+    }
+
+    /**
+     * opens the database, or the shards when setShardFiles was given
+     * @param databaseUrl - location of the database, or of the shard directory
+     * @param journalDirectory - location of the transaction journal, null to run without it
+     * @param profile - SQLite durability settings, null for the SQLite defaults
+     * @return the store
+     */
+    private CardStore openDataBase(String databaseUrl, String journalDirectory, DurabilityProfile profile) {
+        if (shardFiles == null) {
+            return new BankDb(databaseUrl, ConnectionPool.DEFAULT_MAX_SIZE, journalDirectory, profile);
+        }
+        if (journalDirectory != null) {
+            System.out.println("the transaction journal needs a single database, the shards run without it");
+        }
+        return new ShardedCardStore(databaseUrl, shardFiles, ConnectionPool.DEFAULT_MAX_SIZE, profile);
+    }
+
+    /**
+     * sets the false positive rate the card and account lookup filters are built with
+     * @param falsePositiveRate - between 0 and 1, for example 0.01
+     */
+    public void setLookupFilterFalsePositiveRate(double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate should be between 0 and 1");
+        }
+        this.lookupFilterFalsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * gives the database to the service, from the snapshot if there is one
+     * @param dataBase
+     * @return the service
+     */
+    private BankService startService(CardStore dataBase) {
+        BankService service = BankService.getInstance();
+        if (lookupFilterFalsePositiveRate > 0) {
+            // setDataBase builds the filters, so the rate has to be set first
+            service.setLookupFilterFalsePositiveRate(lookupFilterFalsePositiveRate);
+        }
+        if (snapshotFile == null) {
+            service.setDataBase(dataBase);
+        } else if (dataBase instanceof BankDb) {
+            service.setDataBase((BankDb) dataBase, snapshotFile);
+            service.startSnapshots(snapshotFile, SNAPSHOT_PERIOD_MILLIS);
+        } else {
+            System.out.println("balance snapshots need a single database, starting by scanning the cards");
+            service.setDataBase(dataBase);
+        }
+        if (ledgerFile != null && !service.useBalanceLedger(ledgerFile) && service.getBalanceLedger() == null) {
+            System.out.println("running without the balance ledger");
+        }
+        if (metricsFile != null) {
+            metricsWriter = Metrics.writePeriodically(metricsFile, METRICS_PERIOD_MILLIS,
+                    service.getMetrics(), dataBase.getMetrics());
+        }
+        return service;
+    }
+
+    /**
+     * writes the last snapshot and metrics, if enabled, and closes the database
+     * @param service
+     * @param dataBase
+     */
+    private void stopService(BankService service, CardStore dataBase) {
+        if (snapshotFile != null && dataBase instanceof BankDb) {
+            service.stopSnapshots();
+            service.writeSnapshot(snapshotFile);
+        }
+        // after the last change, so the ledger is marked synced at the final change sequence
+        service.closeBalanceLedger();
+        if (metricsWriter != null) {
+            metricsWriter.shutdown();
+            try {
+                Files.write(metricsFile, Metrics.dump(service.getMetrics(), dataBase.getMetrics())
+                        .getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("failed while writing the metrics to " + metricsFile);
+            }
+        }
+        dataBase.close();
+    }
+
     /**
      * Starts the bank application and initialize the Database
      * @param databaseUrl - location of the database files
      */
     public void runBankProgram(String databaseUrl) {
-        BankDb dataBase = new BankDb(databaseUrl);
+        runBankProgram(databaseUrl, null, null);
+    }
 
-        BankService service = BankService.getInstance();
-        service.setDataBase(dataBase);
+    /**
+     * Starts the bank application and initialize the Database
+     * @param databaseUrl - location of the database files
+     * @param journalDirectory - location of the transaction journal, null to run without it
+     * @param profile - SQLite durability settings, null for the SQLite defaults
+     */
+    public void runBankProgram(String databaseUrl, String journalDirectory, DurabilityProfile profile) {
+        CardStore dataBase = openDataBase(databaseUrl, journalDirectory, profile);
+
+        BankService service = startService(dataBase);
 
-        BankUtils utils = new BankUtils();
-        BankTerminalGui terminalGui = new BankTerminalGui(service, utils);
+        CustomerSession customer = new CustomerSession(service, System.in, System.out);
+        BankTerminalGui terminalGui = new BankTerminalGui(customer);
         terminalGui.runDefaultMenu();
+        stopService(service, dataBase);
+    }
+
+    /**
+     * Starts the bank as a network server instead of the terminal menu, it runs until the process is stopped
+     * @param databaseUrl - location of the database files
+     * @param journalDirectory - location of the transaction journal, null to run without it
+     * @param profile - SQLite durability settings, null for the SQLite defaults
+     * @param port - loopback port to listen on
+     */
+    public void runBankServer(String databaseUrl, String journalDirectory, DurabilityProfile profile, int port) {
+        CardStore dataBase = openDataBase(databaseUrl, journalDirectory, profile);
+
+        BankService service = startService(dataBase);
+
+        BankServer server = new BankServer(service, port);
+        try {
+            server.start();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("failed to start the bank server on port " + port);
+            stopService(service, dataBase);
+            return;
+        }
+        // stopped with Ctrl+C or a kill, pending journal changes are checkpointed on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            stopService(service, dataBase);
+        }));
+        System.out.println("Bank server listening on port " + server.getPort());
+        try {
+            server.awaitStop();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Exports or imports every card with its pin, account number and balance, and exits
+     * @param databaseUrl - location of the database files
+     * @param journalDirectory - location of the transaction journal, null to run without it
+     * @param profile - SQLite durability settings, null for the SQLite defaults
+     * @param export - true to write the cards to the file, false to read them from it
+     * @param file - a .csv file, or any other name for the binary format
+     */
+    public void runPortfolioTransfer(String databaseUrl, String journalDirectory, DurabilityProfile profile,
+                                     boolean export, String file) {
+        CardStore dataBase = openDataBase(databaseUrl, journalDirectory, profile);
+
+        BankService service = startService(dataBase);
+
+        CardPortfolio portfolio = new CardPortfolio(service, dataBase);
+        portfolio.setProgressListener(processed -> System.out.println(String.format("%d cards processed", processed)));
+        Path path = Paths.get(file);
+        try {
+            if (export) {
+                long written = portfolio.exportCards(path, CardPortfolio.Format.fromFileName(path));
+                System.out.println(String.format("Exported %d cards to %s", written, file));
+            } else {
+                CardPortfolio.ImportResult result = portfolio.importCards(path, CardPortfolio.Format.fromFileName(path));
+                System.out.println(String.format("Imported cards from %s: %s", file, result));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println("failed while " + (export ? "exporting" : "importing") + " cards");
+        } finally {
+            stopService(service, dataBase);
+        }
     }
 }
\ No newline at end of file
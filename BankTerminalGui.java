@@ -1,15 +1,37 @@
 package banking;
 
+import banking.dto.CardNumber;
+
+import java.io.PrintStream;
+
 public class BankTerminalGui {
 
     final static String[] MENU_OPTIONS = {"1. Create an account", "2. Log into account", "0. Exit"};
     final static String[] USER_MENU_OPTIONS = {"1. Balance", "2. Add income", "3. Do a transfer", "4. Close account","5. Log out", "0. Exit"};
     private BankService service;
     private BankUtils utils;
+    private CustomerSession session;
+    private PrintStream out;
 
+    /**
+     * terminal on the console
+     */
     public BankTerminalGui(BankService service, BankUtils utils) {
         this.service = service;
         this.utils = utils;
+        this.session = new CustomerSession(service, System.in, System.out);
+        this.out = System.out;
+    }
+
+    /**
+     * terminal on the streams of a session
+     * @param session
+     */
+    public BankTerminalGui(CustomerSession session) {
+        this.service = session.getService();
+        this.utils = new BankUtils(session.getInput(), session.getOutput());
+        this.session = session;
+        this.out = session.getOutput();
     }
 
     /**
@@ -32,10 +54,10 @@ public class BankTerminalGui {
                     handleLogin();
                     break;
                 default:
-                    System.out.println("Invalid Option");
+                    out.println("Invalid Option");
                     break;
             }
-        } while(optionSelected != 0);
+        } while(optionSelected != 0 && !session.isEnded());
     }
 
     /**
@@ -43,38 +65,41 @@ public class BankTerminalGui {
      * and injecting it into the database
      */
     private void handleCreateAccountOption() {
-        String cardNumber = service.createAccount();
+        CardNumber cardNumber = service.createAccount();
 
         if (cardNumber != null && service.getPinNumber(cardNumber).intValue() != -1) {
             String output = String.format("Your card has been created%n" +
                     "Your card number:%n" +
                     "%s" +
                     "%nYour card PIN:%n" +
-                    "%d",cardNumber, service.getPinNumber(cardNumber).intValue());
-            System.out.println(output);
+                    "%04d",cardNumber, service.getPinNumber(cardNumber).intValue());
+            out.println(output);
         } else {
-            System.out.println("failed to create new account");
+            out.println("failed to create new account");
         }
     }
 
     private void handleLogin() {
-        System.out.println("Enter your card number:");
-        String userCardNumberString = utils.getUserString();
-        // user cardNumber should be cateable to long
+        out.println("Enter your card number:");
+        CardNumber userCardNumber = CardNumber.parse(utils.getUserString());
+        // user cardNumber should be 16 digits
         try {
+            if (userCardNumber == null) {
+                throw new Exception("invalid number");
+            }
             // we ask for a pin
-            System.out.println("Enter your PIN:");
+            out.println("Enter your PIN:");
             int pinNumber = utils.getUserNumericInput();
-            // check if pin is correct
-            boolean pinCorrect = service.checkPinNumber(userCardNumberString, pinNumber);
+            // check if pin is correct, the session keeps the logged in card
+            boolean pinCorrect = session.login(userCardNumber, pinNumber);
             if (pinCorrect) {
-                System.out.println("You have successfully logged in!");
-                runUserMenu(userCardNumberString);
+                out.println("You have successfully logged in!");
+                runUserMenu(userCardNumber);
             } else {
                 throw new Exception("invalid number");
             }
         } catch (Exception ex) {
-            System.out.println("Wrong card number or PIN!");
+            out.println("Wrong card number or PIN!");
         }
     }
 
@@ -82,7 +107,7 @@ public class BankTerminalGui {
      * It runs the user Menu and handle each type of option selected
      * @param userCardNumber
      */
-    private  void runUserMenu(String userCardNumber) {
+    private  void runUserMenu(CardNumber userCardNumber) {
         int optionSelected = 0;
         do {
             showUserMenu();
@@ -104,13 +129,14 @@ public class BankTerminalGui {
                     showCloseAccountMenu(userCardNumber);
                     break;
                 case 5:
-                    System.out.println("You have successfully logged out!");
+                    session.logout();
+                    out.println("You have successfully logged out!");
                     break;
                 default:
-                    System.out.println("Invalid Option");
+                    out.println("Invalid Option");
                     break;
             }
-        } while (optionSelected != 0 && optionSelected != 5);
+        } while (optionSelected != 0 && optionSelected != 5 && session.isLoggedIn());
     }
 
     /**
@@ -118,7 +144,7 @@ public class BankTerminalGui {
      */
     private  void showMenu() {
         for (String option : MENU_OPTIONS) {
-            System.out.println(option);
+            out.println(option);
         }
     }
 
@@ -127,7 +153,7 @@ public class BankTerminalGui {
      */
     private void showUserMenu() {
         for (String option : USER_MENU_OPTIONS) {
-            System.out.println(option);
+            out.println(option);
         }
     }
 
@@ -136,11 +162,16 @@ public class BankTerminalGui {
      * user income amount
      * @param cardNumber
      */
-    private void showIncomeMenu(String cardNumber) {
-        System.out.println("Enter income:");
+    private void showIncomeMenu(CardNumber cardNumber) {
+        out.println("Enter income:");
         long amount = utils.getUserAmount();
+        if (amount <= 0) {
+            out.println("Incorrect input amount");
+            return;
+        }
         service.addIncome(cardNumber, amount);
-        System.out.println("Income was added!");
+        session.refreshCard();
+        out.println("Income was added!");
     }
 
     /**
@@ -148,8 +179,8 @@ public class BankTerminalGui {
      * and user balance
      * @param cardNumber
      */
-    private void showBalanceMenu(String cardNumber) {
-        System.out.println(String.format("Balance: %d", BankService.getInstance().getBalance(cardNumber)));
+    private void showBalanceMenu(CardNumber cardNumber) {
+        out.println(String.format("Balance: %d", session.refreshCard()));
 
     }
 
@@ -158,41 +189,40 @@ public class BankTerminalGui {
      * with that menu. It allow the user to transfer money to other account
      * @param cardNumber
      */
-    private void showTransferMenu(String cardNumber) {
-        System.out.println("Transfer");
-        System.out.println("Enter card number:");
-        String userInputCard = utils.getUserString();
+    private void showTransferMenu(CardNumber cardNumber) {
+        out.println("Transfer");
+        out.println("Enter card number:");
+        CardNumber userInputCard = CardNumber.parse(utils.getUserString());
         boolean cardNumberCorrect = service.checkCardNumberValid(userInputCard);
 
         // for performance, we first check this
-        if (!userInputCard.equalsIgnoreCase(cardNumber)) {
+        if (!cardNumber.equals(userInputCard)) {
             if (cardNumberCorrect) {
                 // now we should check if the account exist
                 boolean cardExist = service.checkIfAccountExist(userInputCard);
                 if (cardExist) {
-                    System.out.println("Enter how much money you want to transfer:");
+                    out.println("Enter how much money you want to transfer:");
                     long amountToTransfer = utils.getUserAmount();
-                    // we should check if current user has that amount
-                    long userBalance = service.getBalance(cardNumber);
-                    if (userBalance >= amountToTransfer) {
-                        // ready to transfer
-                        boolean success = service.transferMoney(cardNumber, userInputCard, amountToTransfer);
-                        if (!success) {
-                            System.out.println("failed while doing money transfer");
-                            return;
-                        }
-                    } else {
-                        System.out.println("Not enough money!");
+                    // the service checks the balance and debits it in one step
+                    TransferResult result = service.transfer(cardNumber, userInputCard, amountToTransfer);
+                    session.refreshCard();
+                    if (result == TransferResult.INSUFFICIENT_FUNDS) {
+                        out.println("Not enough money!");
+                    } else if (result == TransferResult.INVALID_AMOUNT) {
+                        out.println("The amount should be more than zero!");
+                    } else if (result != TransferResult.SUCCESS) {
+                        out.println("failed while doing money transfer");
+                        return;
                     }
                 } else {
-                    System.out.println("Such a card does not exist.");
+                    out.println("Such a card does not exist.");
                 }
             } else {
-                System.out.println("Probably you made a mistake in the card number. Please try again!");
+                out.println("Probably you made a mistake in the card number. Please try again!");
                 return;
             }
         } else {
-            System.out.println("You can't transfer money to the same account!");
+            out.println("You can't transfer money to the same account!");
             return;
         }
     }
@@ -202,20 +232,21 @@ public class BankTerminalGui {
      * and calls the service to remove current account
      * @param cardNumber
      */
-    private void showCloseAccountMenu(String cardNumber) {
+    private void showCloseAccountMenu(CardNumber cardNumber) {
         boolean success = service.deleteAccount(cardNumber);
         if (success) {
-            System.out.println("The account has been closed!");
+            session.logout();
+            out.println("The account has been closed!");
         } else {
-            System.out.println("failed while closing the account");
+            out.println("failed while closing the account");
         }
     }
 
     /**
-     * Exits the application
+     * Exits the application, ending the session (other sessions keep running)
      */
     private  void exitProgram() {
-        System.out.println("Bye!");
-        System.exit(0);
+        out.println("Bye!");
+        session.end();
     }
 }
\ No newline at end of file
@@ -1,55 +1,72 @@
 package banking;
 
+import java.io.PrintStream;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 public class BankUtils {
 
+    // one Scanner for the whole session, a new one per call loses what the previous one buffered
+    private final Scanner scanner;
+    private final PrintStream output;
+
+    /**
+     * reads from the console
+     */
+    public BankUtils() {
+        this(new Scanner(System.in), System.out);
+    }
+
+    /**
+     * @param scanner - the input of the session
+     * @param output - where the input errors are printed
+     */
+    public BankUtils(Scanner scanner, PrintStream output) {
+        this.scanner = scanner;
+        this.output = output;
+    }
+
     /**
      * It gets the user input and checks if it is a correct format
-     * @return the option selected by the user
+     * @return the option selected by the user, 0 (exit) if the input is closed
      */
     public int getUserNumericInput() {
-        Scanner scanner = new Scanner(System.in);
-        int userSelection = 0;
-        try {
-            userSelection = scanner.nextInt();
-        } catch(Exception ex) {
-            System.out.println(String.format("incorrect input, expected a number from 0 to %d"
-                    , BankTerminalGui.MENU_OPTIONS.length));
-            userSelection = getUserNumericInput(); // executing again
+        while (true) {
+            try {
+                return scanner.nextInt();
+            } catch (NoSuchElementException ex) {
+                if (!scanner.hasNext()) {
+                    return 0; // input closed
+                }
+                scanner.next(); // skip what is not a number
+                output.println(String.format("incorrect input, expected a number from 0 to %d"
+                        , BankTerminalGui.MENU_OPTIONS.length));
+            }
         }
-        return userSelection;
     }
 
     /**
      * it uses Scanner to get user amount
-     * @return the amount that the user did input
+     * @return the amount that the user did input, 0 if the input is closed
      */
     public long getUserAmount() {
-        Scanner scanner = new Scanner(System.in);
-        long userAmount = 0;
-        try {
-            userAmount = scanner.nextLong();
-        } catch(Exception ex) {
-            System.out.println("Incorrect input amount");
-            userAmount = getUserAmount(); // executing again
+        while (true) {
+            try {
+                return scanner.nextLong();
+            } catch (NoSuchElementException ex) {
+                if (!scanner.hasNext()) {
+                    return 0; // input closed
+                }
+                scanner.next(); // skip what is not a number
+                output.println("Incorrect input amount");
+            }
         }
-        return userAmount;
     }
 
     /*
-        It gets a user String from input
+        It gets a user String from input, the next word typed
      */
     public String getUserString() {
-        Scanner scanner = new Scanner(System.in);
-        String userString = "";
-        try {
-            userString = scanner.nextLine();
-        } catch(Exception ex) {
-            System.out.println(String.format("unexpectedInput"
-                    , BankTerminalGui.MENU_OPTIONS.length));
-            userString = getUserString(); // executing again
-        }
-        return userString;
+        return scanner.hasNext() ? scanner.next() : "";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of cards by card number, with LRU eviction per segment.
+ * BankService reads through it and keeps it up to date on every write,
+ * so the cards of a logged in user are served without going to the database.
+ *
+ * The cache keeps its own copies of the cards, callers always get a copy
+ * they are free to modify.
+ */
+public class CardCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final int maxEntries;
+    // each card number always maps to the same segment, every segment is its own LRU
+    // with its own lock, so threads working on different cards do not wait on each other
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache
+     * @param maxEntries - maximum number of cards kept, the least recently used of a segment is evicted first
+     */
+    public CardCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("cache should hold at least one card");
+        }
+        this.maxEntries = maxEntries;
+        int count = Integer.highestOneBit(Math.min(MAX_SEGMENTS, maxEntries));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // spreads the remainder so the segment limits add up to maxEntries
+            segments[i] = new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+        }
+    }
+
+    /**
+     * @param cardNumber
+     * @return a copy of the cached card, null if it is not cached
+     */
+    public Card get(CardNumber cardNumber) {
+        Segment segment = segmentOf(cardNumber);
+        Card card;
+        synchronized (segment) {
+            card = segment.get(cardNumber);
+            if (card != null) {
+                card = copy(card);
+            }
+        }
+        if (card == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return card;
+    }
+
+    /**
+     * adds or replaces a card
+     * @param card
+     */
+    public void put(Card card) {
+        Card copy = copy(card);
+        Segment segment = segmentOf(copy.getNumber());
+        synchronized (segment) {
+            segment.put(copy.getNumber(), copy);
+        }
+    }
+
+    /**
+     * applies a balance change to a cached card, does nothing if the card is not cached
+     * @param cardNumber
+     * @param amount - amount to add, negative to subtract
+     */
+    public void adjustBalance(CardNumber cardNumber, long amount) {
+        Segment segment = segmentOf(cardNumber);
+        synchronized (segment) {
+            Card card = segment.get(cardNumber);
+            if (card != null) {
+                card.setBalance(card.getBalance() + amount);
+            }
+        }
+    }
+
+    /**
+     * removes a card from the cache
+     * @param cardNumber
+     */
+    public void invalidate(CardNumber cardNumber) {
+        Segment segment = segmentOf(cardNumber);
+        synchronized (segment) {
+            segment.remove(cardNumber);
+        }
+    }
+
+    /**
+     * removes every card from the cache
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries=%d/%d hits=%d misses=%d evictions=%d",
+                size(), maxEntries, getHits(), getMisses(), getEvictions());
+    }
+
+    private Segment segmentOf(CardNumber cardNumber) {
+        int hash = cardNumber.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Access ordered map holding one share of the cards, only used while holding its own monitor
+     */
+    private class Segment extends LinkedHashMap<CardNumber, Card> {
+        private static final long serialVersionUID = 1L;
+        private final int limit;
+
+        Segment(int limit) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CardNumber, Card> eldest) {
+            if (size() > limit) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static Card copy(Card card) {
+        Card copy = new Card();
+        copy.setId(card.getId());
+        copy.setNumber(card.getNumber());
+        copy.setPin(card.getPin());
+        copy.setBalance(card.getBalance());
+        return copy;
+    }
+}
@@ -0,0 +1,409 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streaming import and export of cards (number, pin, account number and balance),
+ * to move portfolios between databases.
+ *
+ * Export reads the cards in keyset paginated pages and writes them as it goes. Import reads the
+ * file in chunks, validates the card numbers of several chunks in parallel and inserts each
+ * valid chunk in its own transaction, in file order. Only a few chunks are in memory at any time,
+ * so memory does not grow with the file size. A card is invalid if its account is not the account
+ * number of its card number, and a card whose number or account already exists is skipped,
+ * both are counted and the first ones are reported.
+ *
+ * Two formats are supported:
+ * CSV - a "number,pin,account,balance" header and one card per line
+ * BINARY - the magic number BNK1 and then fixed size records: number (long), pin (short),
+ *          account (int, -1 if none) and balance (long). Account numbers are stored
+ *          as integers, so their leading zeros are not kept
+ */
+public class CardPortfolio {
+
+    public static final int DEFAULT_CHUNK_SIZE = 5000;
+    static final String CSV_HEADER = "number,pin,account,balance";
+    static final int BINARY_MAGIC = 0x424E4B31; // BNK1
+    private static final int CHUNKS_IN_FLIGHT = 4; // chunks being validated ahead of the writer
+    private static final int MAX_REPORTED_INVALID = 10;
+
+    public enum Format {
+        CSV,
+        BINARY;
+
+        /**
+         * @param file
+         * @return CSV for .csv files, BINARY for anything else
+         */
+        public static Format fromFileName(Path file) {
+            return file.getFileName().toString().toLowerCase().endsWith(".csv") ? CSV : BINARY;
+        }
+    }
+
+    /**
+     * Receives progress updates
+     */
+    public interface ProgressListener {
+        /**
+         * @param processed - cards read (import) or written (export) so far
+         */
+        void progress(long processed);
+    }
+
+    private final BankService service;
+    private final CardStore dataBase;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int validationThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private ProgressListener progressListener = processed -> { };
+
+    /**
+     * @param service - validates the imported card numbers and gets its lookup filters updated
+     * @param dataBase - the storage to read or fill
+     */
+    public CardPortfolio(BankService service, CardStore dataBase) {
+        this.service = service;
+        this.dataBase = dataBase;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size should be at least 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public void setValidationThreads(int validationThreads) {
+        if (validationThreads < 1) {
+            throw new IllegalArgumentException("at least one validation thread is needed");
+        }
+        this.validationThreads = validationThreads;
+    }
+
+    /**
+     * @param progressListener - called after every chunk
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * writes every card of the database to a file
+     * @param file
+     * @param format
+     * @return how many cards were written
+     * @throws IOException if the file can not be written or the database could not be read
+     */
+    public long exportCards(Path file, Format format) throws IOException {
+        try (CardWriter writer = format == Format.CSV ? new CsvWriter(file) : new BinaryWriter(file)) {
+            long written = 0;
+            long lastId = -1;
+            while (true) {
+                List<Card> page = dataBase.getCardPage(lastId, chunkSize);
+                if (page == null) {
+                    throw new IOException("failed while reading cards from the database");
+                }
+                for (Card card : page) {
+                    writer.write(card);
+                }
+                written += page.size();
+                progressListener.progress(written);
+                if (page.size() < chunkSize) {
+                    return written;
+                }
+                lastId = page.get(page.size() - 1).getId();
+            }
+        }
+    }
+
+    /**
+     * reads the cards of a file and inserts the valid ones
+     * @param file
+     * @param format
+     * @return the import counters
+     * @throws IOException if the file can not be read or has a malformed line
+     */
+    public ImportResult importCards(Path file, Format format) throws IOException {
+        ImportResult result = new ImportResult();
+        ExecutorService validators = Executors.newFixedThreadPool(validationThreads, runnable -> {
+            Thread thread = new Thread(runnable, "import-validator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // validated chunks wait here in file order until the writer takes them
+        ArrayDeque<CompletableFuture<List<Card>>> inFlight = new ArrayDeque<>();
+        try (CardReader reader = format == Format.CSV ? new CsvReader(file) : new BinaryReader(file)) {
+            boolean more = true;
+            while (more || !inFlight.isEmpty()) {
+                if (more && inFlight.size() < CHUNKS_IN_FLIGHT) {
+                    List<Card> chunk = new ArrayList<>(chunkSize);
+                    Card card;
+                    while (chunk.size() < chunkSize && (card = reader.read()) != null) {
+                        chunk.add(card);
+                    }
+                    more = chunk.size() == chunkSize;
+                    result.read += chunk.size();
+                    long firstRecord = result.read - chunk.size() + 1;
+                    inFlight.add(CompletableFuture.supplyAsync(() -> validate(chunk, firstRecord, result), validators));
+                    continue;
+                }
+                List<Card> valid = inFlight.poll().join();
+                long skippedBefore = result.skipped;
+                int inserted = dataBase.importCards(valid, chunkSize, result::skipped);
+                result.imported += inserted;
+                result.failed += valid.size() - inserted - (result.skipped - skippedBefore);
+                progressListener.progress(result.read);
+            }
+        } catch (CompletionException ex) {
+            throw new IOException("failed while validating cards", ex.getCause());
+        } finally {
+            validators.shutdownNow();
+        }
+        service.rebuildLookupFilters(); // the imported cards were inserted behind the filters back
+        return result;
+    }
+
+    /**
+     * keeps the cards with a valid number, pin and account. The account should be the one BankService
+     * builds the card number from, other stores and the lookup filters rely on it
+     * @param chunk
+     * @param firstRecord - position of the first card of the chunk in the file, starting at 1
+     * @param result - where the invalid ones are counted
+     * @return the valid cards
+     */
+    private List<Card> validate(List<Card> chunk, long firstRecord, ImportResult result) {
+        List<Card> valid = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            Card card = chunk.get(i);
+            if (service.checkCardNumberValid(card.getNumber()) && card.getPin() >= 0 && card.getPin() <= 9999
+                    && Integer.toString(card.getNumber().getAccountNumber()).equals(card.getAccount())) {
+                valid.add(card);
+            } else {
+                result.invalid(firstRecord + i, card.getNumber());
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Counters of an import
+     */
+    public static class ImportResult {
+        private long read = 0;
+        private long imported = 0;
+        private long failed = 0; // valid but not inserted, the database refused them
+        private long skipped = 0; // number or account already in the database
+        private long invalid = 0;
+
+        private synchronized void invalid(long record, CardNumber cardNumber) {
+            invalid++;
+            if (invalid <= MAX_REPORTED_INVALID) {
+                System.out.println(String.format("invalid card at record %d -> %s", record, cardNumber));
+            }
+        }
+
+        private void skipped(Card card) {
+            skipped++;
+            if (skipped <= MAX_REPORTED_INVALID) {
+                System.out.println(String.format("card %s or its account %s already exists, skipped",
+                        card.getNumber(), card.getAccount()));
+            }
+        }
+
+        public long getRead() {
+            return read;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public synchronized long getInvalid() {
+            return invalid;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read=%d imported=%d invalid=%d skipped=%d failed=%d",
+                    read, imported, getInvalid(), skipped, failed);
+        }
+    }
+
+    private interface CardWriter extends AutoCloseable {
+        void write(Card card) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private interface CardReader extends AutoCloseable {
+        /**
+         * @return the next card, null at the end of the file
+         */
+        Card read() throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static class CsvWriter implements CardWriter {
+        private final BufferedWriter writer;
+
+        CsvWriter(Path file) throws IOException {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write(CSV_HEADER);
+            writer.newLine();
+        }
+
+        @Override
+        public void write(Card card) throws IOException {
+            writer.write(card.getNumber().toString());
+            writer.write(',');
+            writer.write(String.format("%04d", card.getPin()));
+            writer.write(',');
+            writer.write(card.getAccount() == null ? "" : card.getAccount());
+            writer.write(',');
+            writer.write(Long.toString(card.getBalance()));
+            writer.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static class CsvReader implements CardReader {
+        private final BufferedReader reader;
+        private long lineNumber = 1;
+
+        CsvReader(Path file) throws IOException {
+            reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            String header = reader.readLine();
+            if (header == null || !header.trim().equalsIgnoreCase(CSV_HEADER)) {
+                reader.close();
+                throw new IOException("missing CSV header " + CSV_HEADER);
+            }
+        }
+
+        @Override
+        public Card read() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                lineNumber++;
+                if (line == null) {
+                    return null;
+                }
+            } while (line.trim().isEmpty());
+
+            String[] fields = line.split(",", -1);
+            if (fields.length != 4) {
+                throw new IOException(String.format("line %d should have 4 fields", lineNumber));
+            }
+            Card card = new Card();
+            card.setNumber(CardNumber.parse(fields[0].trim())); // null if it is not a card number
+            String pin = fields[1].trim();
+            card.setPin(pin.matches("\\d{4}") ? Integer.parseInt(pin) : -1);
+            card.setAccount(fields[2].trim().isEmpty() ? null : fields[2].trim());
+            try {
+                card.setBalance(Long.parseLong(fields[3].trim()));
+            } catch (NumberFormatException ex) {
+                throw new IOException(String.format("line %d has an invalid balance", lineNumber));
+            }
+            return card;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static class BinaryWriter implements CardWriter {
+        private final DataOutputStream output;
+
+        BinaryWriter(Path file) throws IOException {
+            output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+            output.writeInt(BINARY_MAGIC);
+        }
+
+        @Override
+        public void write(Card card) throws IOException {
+            try {
+                output.writeLong(card.getNumber().getValue());
+                output.writeShort(card.getPin());
+                output.writeInt(card.getAccount() == null ? -1 : Integer.parseInt(card.getAccount()));
+                output.writeLong(card.getBalance());
+            } catch (NumberFormatException ex) {
+                throw new IOException("card " + card.getNumber() + " can not be written in the binary format");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static class BinaryReader implements CardReader {
+        private final DataInputStream input;
+
+        BinaryReader(Path file) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+            if (input.readInt() != BINARY_MAGIC) {
+                input.close();
+                throw new IOException("not a binary card file");
+            }
+        }
+
+        @Override
+        public Card read() throws IOException {
+            long number;
+            try {
+                number = input.readLong();
+            } catch (EOFException end) {
+                return null;
+            }
+            Card card = new Card();
+            card.setNumber(number >= 0 && number <= CardNumber.MAX_VALUE ? CardNumber.of(number) : null);
+            card.setPin(input.readShort());
+            int account = input.readInt();
+            card.setAccount(account < 0 ? null : Integer.toString(account));
+            card.setBalance(input.readLong());
+            return card;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
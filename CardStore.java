@@ -0,0 +1,148 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Storage of cards, accounts and balances used by BankService.
+ * BankDb keeps them in SQLite, MemoryCardStore keeps them in memory only.
+ * Every operation is safe to call from many threads. Failures are reported by the store and
+ * returned as false, null or FAILED, like BankDb always did.
+ */
+public interface CardStore {
+
+    /**
+     * @param cardNumber
+     * @return true if the card exists
+     */
+    boolean checkCardNumber(CardNumber cardNumber);
+
+    /**
+     * inserts a new card with no balance
+     * @param cardNumber
+     * @param pin - 4 digits, 0 to 9999
+     * @param accountNumber
+     * @return true if it was successful, false if the card exists or the store failed
+     */
+    boolean createCard(CardNumber cardNumber, int pin, String accountNumber);
+
+    /**
+     * inserts many new cards with no balance, in order, stopping at the first failure
+     * @param cards - cards with number, pin and account set, balance is ignored
+     * @param chunkSize - how many cards are inserted per transaction, if the store has them
+     * @return how many cards were inserted, always the first ones of the list
+     */
+    int createCards(List<Card> cards, int chunkSize);
+
+    /**
+     * inserts cards coming from another store, keeping their balances. A card whose number or account
+     * already exists is skipped, the other cards are still inserted. Stops at the first failure of the store
+     * @param cards - cards with number, pin, account and balance set
+     * @param chunkSize
+     * @param skipped - receives every card that was skipped
+     * @return how many cards were inserted, the cards neither inserted nor skipped failed
+     */
+    int importCards(List<Card> cards, int chunkSize, Consumer<Card> skipped);
+
+    /**
+     * @param cardNumber
+     * @return the card with id, number, pin and balance, null if it does not exist
+     */
+    Card getCard(CardNumber cardNumber);
+
+    /**
+     * @param accountNumber
+     * @return the account number if it exists, an empty String if it does not
+     */
+    String getAccount(String accountNumber);
+
+    /**
+     * @param accountNumber
+     * @return the card of an account, null if it does not exist
+     */
+    Card getCardFromAccount(String accountNumber);
+
+    /**
+     * adds an amount to a balance
+     * @param cardNumber
+     * @param amount
+     * @return true if it was successful, false if the card does not exist or the store failed
+     */
+    boolean updateBalance(CardNumber cardNumber, long amount);
+
+    /**
+     * moves an amount between two cards, without checking the origin balance
+     * @param originCard
+     * @param receptor
+     * @param amount
+     * @return true if it was successful, false if a card does not exist or the store failed
+     */
+    boolean transfer(CardNumber originCard, CardNumber receptor, long amount);
+
+    /**
+     * moves an amount between two cards if the origin has it, the check and the debit are atomic
+     * @param originCard
+     * @param receptor
+     * @param amount
+     * @return the outcome of the transfer
+     */
+    TransferResult transferIfFunds(CardNumber originCard, CardNumber receptor, long amount);
+
+    /**
+     * applies many incomes and transfers together, each one succeeds or fails on its own
+     * @param operations
+     * @return the outcome of each operation, in the same order
+     */
+    TransferResult[] applyBatch(List<BalanceOperation> operations);
+
+    /**
+     * deletes a card and its account
+     * @param cardNumber
+     * @return the account the card had, an empty String if it had none,
+     * null if the card did not exist or the store failed
+     */
+    String deleteAccount(CardNumber cardNumber);
+
+    /**
+     * @param afterId - id of the last card of the previous page, -1 for the first page
+     * @param pageSize
+     * @return the next cards in id order with their account set, null if something went wrong
+     */
+    List<Card> getCardPage(long afterId, int pageSize);
+
+    /**
+     * @return the number of cards, -1 if something went wrong
+     */
+    long countCards();
+
+    /**
+     * @param consumer - receives every card number with its account number (null if it has none)
+     * @return true if every card was visited, false if the scan failed
+     */
+    boolean forEachCardAndAccount(BiConsumer<CardNumber, String> consumer);
+
+    /**
+     * reads a page of the transaction history of a card, see BankDb.getStatementPage
+     * @return the rows, null if something went wrong or the store keeps no history
+     */
+    default List<Transaction> getStatementPage(CardNumber cardNumber, long afterTime, long afterId, long toTime,
+                                               int pageSize) {
+        System.out.println(getClass().getSimpleName() + " keeps no transaction history");
+        return null;
+    }
+
+    /**
+     * @return the latency and error counters of the store operations
+     */
+    Metrics getMetrics();
+
+    /**
+     * releases the resources of the store, it can not be used after this
+     */
+    void close();
+}
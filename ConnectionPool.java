@@ -0,0 +1,622 @@
+package banking;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of database connections.
+ * Connections handed out by the pool are proxies, calling close() on them
+ * returns the physical connection to the pool instead of closing it, so
+ * callers can keep using try-with-resources as with a plain DataSource.
+ *
+ * A background task evicts connections that stayed idle for too long and
+ * reports connections that were borrowed for longer than the leak threshold, with the thread
+ * that borrowed them. The stack trace of the borrow is only kept when setLeakTraces is on,
+ * filling it in on every borrow is too slow for the hot path.
+ *
+ * Each physical connection keeps a bounded cache of prepared statements keyed by SQL text.
+ * prepareStatement(String) on a pooled connection returns the cached statement, and closing it
+ * only clears its parameters, so hot queries are parsed once per connection. Because of that a
+ * caller should not keep two open statements with the same SQL on one connection at the same time.
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_LEAK_THRESHOLD_MILLIS = 30_000;
+    public static final long DEFAULT_WAIT_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+    private final DataSource dataSource;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final long waitTimeoutMillis;
+    private volatile ConnectionCustomizer customizer;
+    private volatile int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private volatile boolean leakTraces = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionReleased = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<PooledConnection, PooledConnection> borrowed = new IdentityHashMap<>();
+    private final ScheduledExecutorService housekeeper;
+    private int openConnections = 0;
+    private boolean closed = false;
+
+    // wait time metrics, guarded by lock
+    private long borrowCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long timeoutCount = 0;
+    private long leakCount = 0;
+    private long evictionCount = 0;
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final LatencyHistogram waitHistogram = new LatencyHistogram();
+
+    /**
+     * Creates a pool with default settings
+     * @param dataSource - the source of physical connections
+     */
+    public ConnectionPool(DataSource dataSource) {
+        this(dataSource, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_LEAK_THRESHOLD_MILLIS,
+                DEFAULT_WAIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a pool
+     * @param dataSource - the source of physical connections
+     * @param maxSize - maximum number of open connections
+     * @param idleTimeoutMillis - idle connections older than this are closed
+     * @param leakThresholdMillis - borrowed connections older than this are reported as leaked
+     * @param waitTimeoutMillis - maximum time a caller waits for a free connection
+     */
+    public ConnectionPool(DataSource dataSource, int maxSize, long idleTimeoutMillis,
+                          long leakThresholdMillis, long waitTimeoutMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("pool size should be at least 1");
+        }
+        this.dataSource = dataSource;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+        this.housekeeper.scheduleAtFixedRate(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if the pool
+     * is not full yet, or waiting for another caller to release one
+     * @return a connection that goes back to the pool when closed
+     * @throws SQLException if no connection got free in time or the database failed to open one
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection pooled = null;
+        boolean openNew = false;
+
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+            while (pooled == null && !openNew) {
+                if (closed) {
+                    throw new SQLException("connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    pooled = idle.pollFirst(); // most recently used first, so old ones can expire
+                } else if (openConnections < maxSize) {
+                    openConnections++; // reserve the slot, the connection is opened outside the lock
+                    openNew = true;
+                } else if (remaining <= 0) {
+                    timeoutCount++;
+                    throw new SQLException("timed out waiting for a database connection");
+                } else {
+                    remaining = connectionReleased.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a database connection", ie);
+        } finally {
+            lock.unlock();
+        }
+
+        if (openNew) {
+            try {
+                pooled = new PooledConnection(openPhysical());
+            } catch (SQLException | RuntimeException ex) {
+                lock.lock();
+                try {
+                    openConnections--;
+                    connectionReleased.signal();
+                } finally {
+                    lock.unlock();
+                }
+                throw ex;
+            }
+        }
+
+        lock.lock();
+        try {
+            long waited = System.nanoTime() - start;
+            borrowCount++;
+            totalWaitNanos += waited;
+            maxWaitNanos = Math.max(maxWaitNanos, waited);
+            waitHistogram.record(waited);
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowThread = Thread.currentThread().getName();
+            pooled.borrowTrace = leakTraces ? new Throwable("connection borrowed here") : null;
+            borrowed.put(pooled, pooled);
+        } finally {
+            lock.unlock();
+        }
+        return pooled.newHandle();
+    }
+
+    /**
+     * opens a new physical connection and applies the customizer to it
+     * @return the physical connection
+     * @throws SQLException if the connection could not be opened or customized
+     */
+    private Connection openPhysical() throws SQLException {
+        Connection physical = dataSource.getConnection();
+        ConnectionCustomizer current = customizer;
+        if (current != null) {
+            try {
+                current.customize(physical);
+            } catch (SQLException | RuntimeException ex) {
+                physical.close();
+                throw ex;
+            }
+        }
+        return physical;
+    }
+
+    /**
+     * Sets the setup applied to every new physical connection, for example
+     * session PRAGMAs. Connections already open are not affected
+     * @param customizer - the connection setup, null for none
+     */
+    public void setConnectionCustomizer(ConnectionCustomizer customizer) {
+        this.customizer = customizer;
+    }
+
+    /**
+     * Keeps the stack trace of every borrow, to print it when the connection is reported as leaked.
+     * Off by default, turn it on while looking for a leak
+     * @param leakTraces - true to keep the traces
+     */
+    public void setLeakTraces(boolean leakTraces) {
+        this.leakTraces = leakTraces;
+    }
+
+    /**
+     * Sets how many prepared statements each connection keeps cached,
+     * the least recently used statement is closed when the cache is full
+     * @param statementCacheSize - statements per connection, 0 disables the cache
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * gives the connection back to the pool, it resets any open transaction
+     * so the next caller gets a clean connection
+     * @param pooled - the connection to release
+     */
+    private void release(PooledConnection pooled) {
+        boolean healthy = pooled.reset();
+
+        lock.lock();
+        try {
+            if (borrowed.remove(pooled) == null) {
+                return; // already released
+            }
+            pooled.borrowTrace = null;
+            if (healthy && !closed) {
+                pooled.lastUsedAt = System.currentTimeMillis();
+                idle.addFirst(pooled);
+            } else {
+                openConnections--;
+                pooled.closePhysical();
+            }
+            connectionReleased.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes idle connections that expired and reports leaked connections
+     */
+    private void housekeep() {
+        List<PooledConnection> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        lock.lock();
+        try {
+            // keep at least one connection warm
+            while (idle.size() > 1 && now - idle.peekLast().lastUsedAt > idleTimeoutMillis) {
+                expired.add(idle.pollLast());
+                openConnections--;
+                evictionCount++;
+            }
+            for (PooledConnection pooled : borrowed.keySet()) {
+                if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMillis) {
+                    pooled.leakReported = true;
+                    leakCount++;
+                    System.out.println(String.format("possible connection leak, connection borrowed %d ms ago by %s",
+                            now - pooled.borrowedAt, pooled.borrowThread));
+                    if (pooled.borrowTrace != null) {
+                        pooled.borrowTrace.printStackTrace();
+                    }
+                }
+            }
+            if (!expired.isEmpty()) {
+                connectionReleased.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (PooledConnection pooled : expired) {
+            pooled.closePhysical();
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the pool.
+     * Borrowed connections are closed as soon as they are released
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            openConnections -= idle.size();
+            idle.clear();
+            connectionReleased.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        housekeeper.shutdownNow();
+        for (PooledConnection pooled : toClose) {
+            pooled.closePhysical();
+        }
+    }
+
+    /**
+     * @return the distribution of the time callers waited for a connection
+     */
+    public LatencyHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    /**
+     * @return a snapshot of the pool usage and wait time metrics
+     */
+    public Stats getStats() {
+        lock.lock();
+        try {
+            return new Stats(openConnections, idle.size(), borrowed.size(), borrowCount, totalWaitNanos,
+                    maxWaitNanos, timeoutCount, leakCount, evictionCount, statementCacheHits.sum(),
+                    statementCacheMisses.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Setup run once on each physical connection when the pool opens it
+     */
+    public interface ConnectionCustomizer {
+        void customize(Connection con) throws SQLException;
+    }
+
+    /**
+     * Pool metrics at a given point in time
+     */
+    public static class Stats {
+        private final int openConnections;
+        private final int idleConnections;
+        private final int borrowedConnections;
+        private final long borrowCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long timeoutCount;
+        private final long leakCount;
+        private final long evictionCount;
+        private final long statementCacheHits;
+        private final long statementCacheMisses;
+
+        Stats(int openConnections, int idleConnections, int borrowedConnections, long borrowCount,
+              long totalWaitNanos, long maxWaitNanos, long timeoutCount, long leakCount, long evictionCount,
+              long statementCacheHits, long statementCacheMisses) {
+            this.openConnections = openConnections;
+            this.idleConnections = idleConnections;
+            this.borrowedConnections = borrowedConnections;
+            this.borrowCount = borrowCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.timeoutCount = timeoutCount;
+            this.leakCount = leakCount;
+            this.evictionCount = evictionCount;
+            this.statementCacheHits = statementCacheHits;
+            this.statementCacheMisses = statementCacheMisses;
+        }
+
+        public int getOpenConnections() {
+            return openConnections;
+        }
+
+        public int getIdleConnections() {
+            return idleConnections;
+        }
+
+        public int getBorrowedConnections() {
+            return borrowedConnections;
+        }
+
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        public long getAverageWaitNanos() {
+            return borrowCount == 0 ? 0 : totalWaitNanos / borrowCount;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        public long getLeakCount() {
+            return leakCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getStatementCacheHits() {
+            return statementCacheHits;
+        }
+
+        public long getStatementCacheMisses() {
+            return statementCacheMisses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("open=%d idle=%d borrowed=%d borrows=%d avgWait=%dus maxWait=%dus "
+                            + "timeouts=%d leaks=%d evictions=%d statementHits=%d statementMisses=%d",
+                    openConnections, idleConnections, borrowedConnections, borrowCount,
+                    TimeUnit.NANOSECONDS.toMicros(getAverageWaitNanos()), TimeUnit.NANOSECONDS.toMicros(maxWaitNanos),
+                    timeoutCount, leakCount, evictionCount, statementCacheHits, statementCacheMisses);
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private class PooledConnection {
+        private final Connection physical;
+        private long lastUsedAt;
+        private long borrowedAt;
+        private String borrowThread;
+        private Throwable borrowTrace;
+        private boolean leakReported;
+        // only touched by the current borrower, so it needs no locking
+        private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastUsedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * gets the cached statement for this sql, preparing it on a miss
+         * @param sql
+         * @return a statement whose close() keeps it open in the cache
+         * @throws SQLException
+         */
+        PreparedStatement prepareCached(String sql) throws SQLException {
+            int maxStatements = statementCacheSize;
+            if (maxStatements <= 0) {
+                return physical.prepareStatement(sql);
+            }
+            CachedStatement cached = statements.get(sql);
+            if (cached != null) {
+                statementCacheHits.increment();
+                return cached;
+            }
+            statementCacheMisses.increment();
+            cached = new CachedStatement(physical.prepareStatement(sql));
+            statements.put(sql, cached);
+
+            if (statements.size() > maxStatements) {
+                Iterator<CachedStatement> eldest = statements.values().iterator();
+                CachedStatement evicted = eldest.next();
+                eldest.remove();
+                evicted.closeStatement();
+            }
+            return cached;
+        }
+
+        /**
+         * creates the handle given to a caller, each borrow gets its own handle
+         * so a late close() from a previous borrower can not release it twice
+         */
+        Connection newHandle() {
+            leakReported = false;
+            return new Handle(this);
+        }
+
+        /**
+         * rolls back anything left uncommitted and restores auto commit
+         * @return true if the connection can be reused
+         */
+        boolean reset() {
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException se) {
+                se.printStackTrace();
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            for (CachedStatement cached : statements.values()) {
+                cached.closeStatement();
+            }
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The connection given to a caller, routes close() back to the pool
+     */
+    private class Handle extends DelegatingConnection {
+        private PooledConnection pooled;
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        protected Connection delegate() throws SQLException {
+            PooledConnection current = pooled;
+            if (current == null) {
+                throw new SQLException("connection already returned to the pool");
+            }
+            return current.physical;
+        }
+
+        @Override
+        public void close() {
+            if (pooled != null) {
+                PooledConnection toRelease = pooled;
+                pooled = null;
+                release(toRelease);
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            PooledConnection current = pooled;
+            return current == null || current.physical.isClosed();
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            PooledConnection current = pooled;
+            if (current == null) {
+                throw new SQLException("connection already returned to the pool");
+            }
+            return current.prepareCached(sql);
+        }
+    }
+
+    /**
+     * A prepared statement owned by a connection cache.
+     * close() from a caller keeps it open and only clears the parameters
+     */
+    private static class CachedStatement extends DelegatingPreparedStatement {
+        private ResultSet lastResultSet;
+
+        CachedStatement(PreparedStatement statement) {
+            super(statement);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            // an open result set would keep the read transaction open
+            if (lastResultSet != null) {
+                lastResultSet.close();
+                lastResultSet = null;
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            return track(statement.executeQuery());
+        }
+
+        @Override
+        public ResultSet executeQuery(String sql) throws SQLException {
+            return track(statement.executeQuery(sql));
+        }
+
+        @Override
+        public ResultSet getResultSet() throws SQLException {
+            return track(statement.getResultSet());
+        }
+
+        @Override
+        public ResultSet getGeneratedKeys() throws SQLException {
+            return track(statement.getGeneratedKeys());
+        }
+
+        private ResultSet track(ResultSet resultSet) {
+            if (resultSet != null) {
+                lastResultSet = resultSet;
+            }
+            return resultSet;
+        }
+
+        void closeStatement() {
+            try {
+                statement.close();
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package banking;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Counting Bloom filter over card and account numbers.
+ * It answers "might exist" or "surely does not exist", so most lookups of numbers
+ * that are not in the database can be answered without a query.
+ * Each slot is a small counter instead of a bit, which allows removing numbers
+ * when an account is closed. A counter that reaches 255 sticks there, so it is never
+ * decremented into a false negative.
+ *
+ * Lookups are lock free, adds and removes are synchronized. Counters are written with release and
+ * read with acquire semantics, so a lookup sees the counters of an add that finished before it.
+ */
+public class CountingBloomFilter {
+
+    private static final int MAX_COUNT = 0xFF;
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private final byte[] counters;
+    private final int hashFunctions;
+    private final long expectedInsertions;
+    private final double falsePositiveRate;
+    private long size = 0;
+
+    /**
+     * Creates a filter sized for the expected number of entries
+     * @param expectedInsertions - how many numbers the filter should hold
+     * @param falsePositiveRate - wanted probability of "might exist" for a missing number, for example 0.01
+     */
+    public CountingBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false positive rate should be between 0 and 1");
+        }
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+        this.falsePositiveRate = falsePositiveRate;
+
+        // optimal sizes: m = -n ln(p) / ln(2)^2, k = m / n ln(2)
+        double slots = -this.expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int length = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(64, Math.ceil(slots)));
+        this.counters = new byte[length];
+        this.hashFunctions = Math.max(1, (int) Math.round((double) length / this.expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * adds a number to the filter
+     * @param number
+     */
+    public void add(CharSequence number) {
+        addHash(hash(number));
+    }
+
+    /**
+     * adds a number to the filter, for example the value of a CardNumber
+     * @param number
+     */
+    public void add(long number) {
+        addHash(mix(number));
+    }
+
+    /**
+     * removes a number from the filter. Only numbers that were added should be removed
+     * @param number
+     */
+    public void remove(CharSequence number) {
+        removeHash(hash(number));
+    }
+
+    /**
+     * removes a number added with add(long)
+     * @param number
+     */
+    public void remove(long number) {
+        removeHash(mix(number));
+    }
+
+    /**
+     * @param number
+     * @return false if the number was surely never added, true if it might have been
+     */
+    public boolean mightContain(CharSequence number) {
+        return containsHash(hash(number));
+    }
+
+    /**
+     * @param number
+     * @return false if the number was surely never added with add(long), true if it might have been
+     */
+    public boolean mightContain(long number) {
+        return containsHash(mix(number));
+    }
+
+    private synchronized void addHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            int index = slot(h1 + i * h2);
+            int count = counters[index] & 0xFF;
+            if (count < MAX_COUNT) {
+                COUNTERS.setRelease(counters, index, (byte) (count + 1));
+            }
+        }
+        size++;
+    }
+
+    private synchronized void removeHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            int index = slot(h1 + i * h2);
+            int count = counters[index] & 0xFF;
+            if (count > 0 && count < MAX_COUNT) {
+                COUNTERS.setRelease(counters, index, (byte) (count - 1));
+            }
+        }
+        size = Math.max(0, size - 1);
+    }
+
+    private boolean containsHash(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashFunctions; i++) {
+            if ((byte) COUNTERS.getAcquire(counters, slot(h1 + i * h2)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how many numbers the filter holds
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @return true if the filter holds more numbers than it was sized for,
+     * the false positive rate gets worse than configured and it should be rebuilt
+     */
+    public synchronized boolean isOverloaded() {
+        return size > expectedInsertions;
+    }
+
+    private int slot(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % counters.length;
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters followed by a murmur finalizer,
+     * the two halves feed the double hashing scheme
+     */
+    private static long hash(CharSequence number) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < number.length(); i++) {
+            hash ^= number.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * murmur finalizer, spreads every bit of the number over the whole hash
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d expected=%d fpp=%.4f slots=%d hashes=%d",
+                size, expectedInsertions, falsePositiveRate, counters.length, hashFunctions);
+    }
+}
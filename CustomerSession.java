@@ -0,0 +1,118 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Scanner;
+
+/**
+ * State of one customer using the bank: its input and output streams, the logged in card
+ * and a cached copy of that card. Every terminal (the console, or a simulated customer)
+ * gets its own session, so many of them can run at the same time in one program.
+ * A session is used by a single thread.
+ */
+public class CustomerSession {
+
+    private final BankService service;
+    private final Scanner input;
+    private final PrintStream output;
+    private CardNumber cardNumber = null; // logged in card, null if logged out
+    private Card card = null; // cached state of the logged in card
+    private boolean ended = false;
+
+    /**
+     * @param service
+     * @param input - where the customer types, read with a single Scanner for the whole session
+     * @param output - where the menus and messages are printed
+     */
+    public CustomerSession(BankService service, InputStream input, PrintStream output) {
+        this.service = service;
+        this.input = new Scanner(input);
+        this.output = output;
+    }
+
+    /**
+     * logs a card in if the pin is correct
+     * @param cardNumber
+     * @param pinNumber
+     * @return true if it was successful, false if the card does not exist or the pin is wrong
+     */
+    public boolean login(CardNumber cardNumber, int pinNumber) {
+        if (!service.checkPinNumber(cardNumber, pinNumber)) {
+            return false;
+        }
+        this.cardNumber = cardNumber;
+        refreshCard();
+        return true;
+    }
+
+    public void logout() {
+        this.cardNumber = null;
+        this.card = null;
+    }
+
+    public boolean isLoggedIn() {
+        return cardNumber != null;
+    }
+
+    /**
+     * @return the logged in card number, null if logged out
+     */
+    public CardNumber getCardNumber() {
+        return cardNumber;
+    }
+
+    /**
+     * @return the cached state of the logged in card, null if logged out
+     */
+    public Card getCard() {
+        return card;
+    }
+
+    /**
+     * reloads the logged in card, after its balance changed
+     * @return the current balance, -1 if logged out or the card does not exist anymore
+     */
+    public long refreshCard() {
+        if (cardNumber == null) {
+            return -1;
+        }
+        long balance = service.getBalance(cardNumber);
+        if (balance < 0) {
+            card = null;
+            return -1;
+        }
+        if (card == null) {
+            card = new Card();
+            card.setNumber(cardNumber);
+        }
+        card.setBalance(balance);
+        return balance;
+    }
+
+    public BankService getService() {
+        return service;
+    }
+
+    public Scanner getInput() {
+        return input;
+    }
+
+    public PrintStream getOutput() {
+        return output;
+    }
+
+    /**
+     * marks the session as finished, the menus stop after the current option
+     */
+    public void end() {
+        logout();
+        ended = true;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+}
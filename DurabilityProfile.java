@@ -0,0 +1,99 @@
+package banking;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Named SQLite durability and concurrency settings, applied to every pooled connection.
+ * All of them use WAL, so readers do not block the writer, and they trade durability for speed:
+ *
+ * DURABLE - every commit is synced to disk, nothing committed is lost on a power failure
+ * BALANCED - the WAL is synced on checkpoints only, a power failure may lose the last commits
+ *            but the database never gets corrupted
+ * THROUGHPUT - SQLite never syncs, the operating system decides when data reaches the disk
+ */
+public enum DurabilityProfile {
+
+    DURABLE("WAL", "FULL", -2_000, 0, "DEFAULT", 10_000),
+    BALANCED("WAL", "NORMAL", -16_000, 64L * 1024 * 1024, "MEMORY", 5_000),
+    THROUGHPUT("WAL", "OFF", -64_000, 256L * 1024 * 1024, "MEMORY", 1_000);
+
+    private final String journalMode;
+    private final String synchronous;
+    private final int cacheSize; // negative values are KiB, positive values are pages
+    private final long mmapSize;
+    private final String tempStore;
+    private final int busyTimeoutMillis;
+
+    DurabilityProfile(String journalMode, String synchronous, int cacheSize, long mmapSize, String tempStore,
+                      int busyTimeoutMillis) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.tempStore = tempStore;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+    }
+
+    /**
+     * finds a profile by name, ignoring case
+     * @param name - for example "durable"
+     * @return the profile, null if there is no profile with that name
+     */
+    public static DurabilityProfile fromName(String name) {
+        for (DurabilityProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * applies the settings to a connection, outside of a transaction
+     * @param con
+     * @throws SQLException
+     */
+    public void apply(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("PRAGMA journal_mode = " + journalMode); // persistent, but cheap to repeat
+            statement.execute("PRAGMA synchronous = " + synchronous);
+            statement.execute("PRAGMA cache_size = " + cacheSize);
+            statement.execute("PRAGMA mmap_size = " + mmapSize);
+            statement.execute("PRAGMA temp_store = " + tempStore);
+            statement.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+        }
+    }
+
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    public String getSynchronous() {
+        return synchronous;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getMmapSize() {
+        return mmapSize;
+    }
+
+    public String getTempStore() {
+        return tempStore;
+    }
+
+    public int getBusyTimeoutMillis() {
+        return busyTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (journal_mode=%s synchronous=%s cache_size=%d mmap_size=%d temp_store=%s "
+                        + "busy_timeout=%dms)", name().toLowerCase(), journalMode, synchronous, cacheSize, mmapSize,
+                tempStore, busyTimeoutMillis);
+    }
+}
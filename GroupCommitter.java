@@ -0,0 +1,254 @@
+package banking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit pipeline for balance changes.
+ * Callers enqueue operations and get a future back. A single writer thread drains the queue
+ * and writes each batch in one transaction, so many operations share the cost of one commit.
+ * A batch is closed when it reaches the maximum size or when the first operation in it has
+ * waited the maximum time. Futures complete after their batch was committed.
+ */
+public class GroupCommitter {
+
+    // queued by shutdown() to stop the writer once everything before it is written
+    private static final Pending STOP = new Pending(null);
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final BatchWriter writer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Thread writerThread;
+    private final Object lock = new Object(); // submit() and shutdown()
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    /**
+     * Creates and starts the pipeline
+     * @param writer - writes a batch in a single transaction
+     * @param maxBatchSize - maximum operations per transaction
+     * @param maxWaitMillis - maximum time an operation waits for its batch to fill
+     */
+    public GroupCommitter(BatchWriter writer, int maxBatchSize, long maxWaitMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("batch size should be at least 1");
+        }
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.writerThread = new Thread(this::writeLoop, "group-commit-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * adds an operation to the next batch
+     * @param operation
+     * @return completes with the outcome once the batch is committed, FAILED if the batch could not be written.
+     * null if the pipeline is stopped, the caller should then write the operation itself
+     */
+    public CompletableFuture<TransferResult> submit(BalanceOperation operation) {
+        Pending pending = new Pending(operation);
+        // shutdown() takes the same lock, so nothing can be queued behind the stop marker
+        synchronized (lock) {
+            if (!running) {
+                return null;
+            }
+            queue.add(pending);
+        }
+        long depth = queue.size();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+        return pending.future;
+    }
+
+    /**
+     * stops accepting operations, writes what is already queued and stops the writer thread
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            queue.add(STOP);
+        }
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException ie) {
+                // the queued operations still have to be written, so keep waiting
+                interrupted = true;
+            }
+        }
+        // left by a writer that stopped early, nothing can be added anymore
+        List<Pending> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        leftovers.remove(STOP);
+        while (!leftovers.isEmpty()) {
+            List<Pending> batch = leftovers.subList(0, Math.min(maxBatchSize, leftovers.size()));
+            write(new ArrayList<>(batch));
+            batch.clear();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false once shutdown() was called
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void writeLoop() {
+        boolean stop = false;
+        while (!stop) {
+            List<Pending> batch = new ArrayList<>(maxBatchSize);
+            try {
+                Pending first = queue.take();
+                if (first == STOP) {
+                    stop = true;
+                } else {
+                    batch.add(first);
+                }
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (!stop && batch.size() < maxBatchSize) {
+                    // take what is already there without waiting, then wait for more until the deadline
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    if (next == STOP) {
+                        stop = true;
+                    } else {
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                stop = true;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<BalanceOperation> pendingOperations = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            pendingOperations.add(pending.operation);
+        }
+        batches.increment();
+        operations.add(batch.size());
+        maxBatch.accumulateAndGet(batch.size(), Math::max);
+
+        try {
+            TransferResult[] results = writer.write(pendingOperations);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(results[i]);
+            }
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+            System.out.println("failed while writing a batch of " + batch.size() + " operations");
+            for (Pending pending : batch) {
+                pending.future.complete(TransferResult.FAILED);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the batch size and queue depth metrics
+     */
+    public Stats getStats() {
+        return new Stats(batches.sum(), operations.sum(), maxBatch.get(), queue.size(), maxQueueDepth.get());
+    }
+
+    /**
+     * Writes a batch of operations in one transaction
+     */
+    public interface BatchWriter {
+        /**
+         * @param operations
+         * @return the outcome of each operation, in the same order
+         */
+        TransferResult[] write(List<BalanceOperation> operations);
+    }
+
+    private static class Pending {
+        private final BalanceOperation operation;
+        private final CompletableFuture<TransferResult> future = new CompletableFuture<>();
+
+        Pending(BalanceOperation operation) {
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Group commit metrics at a given point in time
+     */
+    public static class Stats {
+        private final long batches;
+        private final long operations;
+        private final long maxBatchSize;
+        private final long queueDepth;
+        private final long maxQueueDepth;
+
+        Stats(long batches, long operations, long maxBatchSize, long queueDepth, long maxQueueDepth) {
+            this.batches = batches;
+            this.operations = operations;
+            this.maxBatchSize = maxBatchSize;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public double getAverageBatchSize() {
+            return batches == 0 ? 0 : operations / (double) batches;
+        }
+
+        public long getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("batches=%d operations=%d avgBatch=%.1f maxBatch=%d queueDepth=%d maxQueueDepth=%d",
+                    batches, operations, getAverageBatchSize(), maxBatchSize, queueDepth, maxQueueDepth);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package banking;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out unique ids from a persisted sequence.
+ * Ids are reserved from the database in blocks, and handed out from memory
+ * with a lock free increment until the block runs out. Ids left in a block when
+ * the program stops are never used, so an id is never handed out twice, even across restarts
+ * or when rows are deleted.
+ */
+public class IdAllocator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private final String sequenceName;
+    private final int blockSize;
+    private final BlockReserver reserver;
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(0, 0));
+    private final Object refillLock = new Object();
+
+    /**
+     * Creates an allocator, no block is reserved until the first id is needed
+     * @param sequenceName - name of the persisted sequence
+     * @param blockSize - how many ids are reserved per database round trip
+     * @param reserver - reserves blocks from the persisted sequence
+     */
+    public IdAllocator(String sequenceName, int blockSize, BlockReserver reserver) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size should be at least 1");
+        }
+        this.sequenceName = sequenceName;
+        this.blockSize = blockSize;
+        this.reserver = reserver;
+    }
+
+    /**
+     * @return the next unique id
+     * @throws SQLException if a new block was needed and it could not be reserved
+     */
+    public long next() throws SQLException {
+        while (true) {
+            Block block = current.get();
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            // block exhausted, only one thread reserves the next one
+            synchronized (refillLock) {
+                if (current.get() == block) {
+                    long start = reserver.reserve(sequenceName, blockSize);
+                    current.set(new Block(start, start + blockSize));
+                }
+            }
+        }
+    }
+
+    public String getSequenceName() {
+        return sequenceName;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Reserves ids from the persisted sequence, the reservation should be durable
+     * before it returns so no other allocator gets the same ids
+     */
+    public interface BlockReserver {
+        /**
+         * @param sequenceName
+         * @param size - how many ids to reserve
+         * @return the first id of the reserved block
+         * @throws SQLException
+         */
+        long reserve(String sequenceName, int size) throws SQLException;
+    }
+
+    /**
+     * a range of reserved ids, end exclusive
+     */
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package banking;
+
+/**
+ * Luhn checksum engine.
+ * Works directly on digits of a long, a CharSequence or a char[] without creating
+ * substrings or boxing, so it can validate big batch files without allocating.
+ * Digits are weighted from the right: in a full number the check digit is the last one
+ * and every second digit before it is doubled.
+ */
+public final class Luhn {
+
+    // digit sum of each digit once doubled: 2 * 7 = 14 -> 1 + 4 = 5
+    private static final int[] DOUBLED = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+    // weighted sums of two digit groups, so a long is consumed two digits per division
+    private static final int[] PAIR_LOW_DOUBLED = new int[100];
+    private static final int[] PAIR_HIGH_DOUBLED = new int[100];
+
+    static {
+        for (int pair = 0; pair < 100; pair++) {
+            PAIR_LOW_DOUBLED[pair] = pair / 10 + DOUBLED[pair % 10];
+            PAIR_HIGH_DOUBLED[pair] = DOUBLED[pair / 10] + pair % 10;
+        }
+    }
+
+    private Luhn() {}
+
+    /**
+     * computes the check digit to append to a number
+     * @param payload - the number without check digit, not negative
+     * @return the check digit, 0 to 9
+     */
+    public static int checkDigit(long payload) {
+        if (payload < 0) {
+            throw new IllegalArgumentException("card numbers can not be negative");
+        }
+        // the rightmost payload digit is doubled, it will sit next to the check digit
+        return (10 - sum(payload, true)) % 10;
+    }
+
+    /**
+     * computes the check digit to append to a number
+     * @param payload - the digits without check digit
+     * @return the check digit, -1 if the payload is empty or has something else than digits
+     */
+    public static int checkDigit(CharSequence payload) {
+        int sum = sum(payload, 0, payload.length(), true);
+        return sum < 0 ? -1 : (10 - sum) % 10;
+    }
+
+    /**
+     * computes the check digit of a slice of a char array
+     * @param payload - buffer with the digits without check digit
+     * @param offset - first digit
+     * @param length - how many digits
+     * @return the check digit, -1 if the slice is empty or has something else than digits
+     */
+    public static int checkDigit(char[] payload, int offset, int length) {
+        int sum = sum(payload, offset, length, true);
+        return sum < 0 ? -1 : (10 - sum) % 10;
+    }
+
+    /**
+     * @param payload - the number without check digit, not negative
+     * @return the payload with its check digit appended
+     */
+    public static long appendCheckDigit(long payload) {
+        return payload * 10 + checkDigit(payload);
+    }
+
+    /**
+     * @param number - the full number, check digit included
+     * @return true if the check digit is correct
+     */
+    public static boolean isValid(long number) {
+        return number >= 0 && sum(number, false) == 0;
+    }
+
+    /**
+     * @param number - the full number, check digit included
+     * @return true if it only has digits and the check digit is correct
+     */
+    public static boolean isValid(CharSequence number) {
+        return number != null && number.length() > 1 && sum(number, 0, number.length(), false) == 0;
+    }
+
+    /**
+     * @param number - buffer with the full number, check digit included
+     * @param offset - first digit
+     * @param length - how many digits
+     * @return true if the slice only has digits and the check digit is correct
+     */
+    public static boolean isValid(char[] number, int offset, int length) {
+        return length > 1 && sum(number, offset, length, false) == 0;
+    }
+
+    /**
+     * validates many numbers, writing the result of each one into the results array
+     * @param numbers
+     * @param results - same length as numbers or longer, it is reused between calls so nothing is allocated
+     * @return how many numbers are valid
+     */
+    public static int validate(CharSequence[] numbers, boolean[] results) {
+        int valid = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            results[i] = isValid(numbers[i]);
+            if (results[i]) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * validates many numbers
+     * @param numbers
+     * @return the result of each number
+     */
+    public static boolean[] validate(CharSequence[] numbers) {
+        boolean[] results = new boolean[numbers.length];
+        validate(numbers, results);
+        return results;
+    }
+
+    /**
+     * validates many numbers, writing the result of each one into the results array
+     * @param numbers
+     * @param results - same length as numbers or longer, it is reused between calls so nothing is allocated
+     * @return how many numbers are valid
+     */
+    public static int validate(long[] numbers, boolean[] results) {
+        int valid = 0;
+        for (int i = 0; i < numbers.length; i++) {
+            results[i] = isValid(numbers[i]);
+            if (results[i]) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * validates many numbers
+     * @param numbers
+     * @return the result of each number
+     */
+    public static boolean[] validate(long[] numbers) {
+        boolean[] results = new boolean[numbers.length];
+        validate(numbers, results);
+        return results;
+    }
+
+    /**
+     * weighted digit sum modulo 10
+     * @param digits
+     * @param doubleFirst - true if the rightmost digit is doubled
+     */
+    private static int sum(long digits, boolean doubleFirst) {
+        // leading zeros weigh nothing, so consuming pairs past the first digit is harmless
+        int[] pairs = doubleFirst ? PAIR_LOW_DOUBLED : PAIR_HIGH_DOUBLED;
+        int sum = 0;
+        do {
+            sum += pairs[(int) (digits % 100)];
+            digits /= 100;
+        } while (digits > 0);
+        return sum % 10;
+    }
+
+    /**
+     * weighted digit sum modulo 10
+     * @return the sum, -1 if empty or there is something else than a digit
+     */
+    private static int sum(CharSequence digits, int offset, int length, boolean doubleFirst) {
+        if (length <= 0) {
+            return -1;
+        }
+        int sum = 0;
+        boolean doubled = doubleFirst;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            int digit = digits.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            sum += doubled ? DOUBLED[digit] : digit;
+            doubled = !doubled;
+        }
+        return sum % 10;
+    }
+
+    /**
+     * weighted digit sum modulo 10
+     * @return the sum, -1 if empty or there is something else than a digit
+     */
+    private static int sum(char[] digits, int offset, int length, boolean doubleFirst) {
+        if (length <= 0) {
+            return -1;
+        }
+        int sum = 0;
+        boolean doubled = doubleFirst;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            int digit = digits[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            sum += doubled ? DOUBLED[digit] : digit;
+            doubled = !doubled;
+        }
+        return sum % 10;
+    }
+}
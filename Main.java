@@ -7,18 +7,46 @@ public class Main {
         try {
             // check filename Argument
             if (args.length > 0) {
-                boolean isFilename = false;
-                String databaseUrl = "";
-                for (String arg : args) {
-                    if (isFilename) {
-                        databaseUrl = arg;
-                        break;
-                    } else if (arg.equalsIgnoreCase("-fileName")) {
-                        isFilename = true;
+                String databaseUrl = getArgument(args, "-fileName");
+                if (databaseUrl != null && databaseUrl.length() > 0) {
+                    // optional, keeps money movements in a transaction journal next to the database
+                    String journalDirectory = getArgument(args, "-journal");
+                    // optional, durable, balanced or throughput
+                    String profileName = getArgument(args, "-profile");
+                    DurabilityProfile profile = null;
+                    if (profileName != null) {
+                        profile = DurabilityProfile.fromName(profileName);
+                        if (profile == null) {
+                            throw new Exception("unknown profile " + profileName + ", use durable, balanced or throughput");
+                        }
+                    }
+                    // optional, comma separated files to spread the cards over, -fileName is then the shard directory
+                    session.setShardFiles(getArgument(args, "-shards"));
+                    // optional, starts from a balance snapshot file instead of scanning every card
+                    session.setSnapshotFile(getArgument(args, "-snapshot"));
+                    // optional, writes latency and error metrics of every operation to a file
+                    session.setMetricsFile(getArgument(args, "-metrics"));
+                    // optional, keeps the balances in a memory mapped ledger file, reused after a clean exit
+                    session.setBalanceLedgerFile(getArgument(args, "-ledger"));
+                    // optional, false positive rate of the card lookup filters, for example 0.001
+                    String filterRate = getArgument(args, "-filterRate");
+                    if (filterRate != null) {
+                        session.setLookupFilterFalsePositiveRate(Double.parseDouble(filterRate));
+                    }
+                    // optional, serves many clients over TCP instead of the terminal menu
+                    String port = getArgument(args, "-serve");
+                    // optional, moves cards in or out of the database instead of starting the bank
+                    String exportFile = getArgument(args, "-export");
+                    String importFile = getArgument(args, "-import");
+                    if (exportFile != null) {
+                        session.runPortfolioTransfer(databaseUrl, journalDirectory, profile, true, exportFile);
+                    } else if (importFile != null) {
+                        session.runPortfolioTransfer(databaseUrl, journalDirectory, profile, false, importFile);
+                    } else if (port != null) {
+                        session.runBankServer(databaseUrl, journalDirectory, profile, Integer.parseInt(port));
+                    } else {
+                        session.runBankProgram(databaseUrl, journalDirectory, profile);
                     }
-                }
-                if (isFilename && databaseUrl.length() > 0) {
-                    session.runBankProgram(databaseUrl);
                 } else {
                     throw new Exception("missing fileName argument");
                 }
@@ -30,4 +58,19 @@ public class Main {
         }
 
     }
+
+    /**
+     * finds the value that follows an argument name
+     * @param args - program arguments
+     * @param name - argument name, for example -fileName
+     * @return the value, null if the argument is missing
+     */
+    private static String getArgument(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equalsIgnoreCase(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
 }
\ No newline at end of file
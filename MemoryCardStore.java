@@ -0,0 +1,672 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * CardStore kept in memory only, nothing survives the process. Meant for tests, benchmarks
+ * and short lived simulations with millions of cards.
+ *
+ * Card numbers are kept as their long value and cards live in parallel primitive arrays of an open
+ * addressing hash table with linear probing, so there is no boxing and no object per card:
+ * 70 to 140 bytes per card, account index included, depending on how full the tables are.
+ * Deletes shift the following entries back instead of leaving tombstones, so lookups do not
+ * slow down after many deletes.
+ *
+ * Only what fits in the packed form is accepted: account numbers of up to 9 digits without
+ * leading zeros, and pins from 0 to 9999.
+ * The store keeps no transaction history, and its ids are not reused after a delete.
+ * Reads share a read lock and changes take the write lock.
+ */
+public class MemoryCardStore implements CardStore {
+
+    private static final long EMPTY = 0; // keys are the card number plus one, so no card packs to 0
+    private static final int NO_ACCOUNT = -1;
+    private static final float LOAD_FACTOR = 0.6f;
+    private static final int MIN_CAPACITY = 16;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // card table, one slot per index of the arrays
+    private long[] numbers;
+    private int[] ids;
+    private short[] pins;
+    private int[] accounts;
+    private long[] balances;
+    private int size = 0;
+
+    private final AccountIndex accountIndex;
+    private long[] numbersById; // card number of each id, EMPTY once deleted, for pages in id order
+    private int nextId = 0;
+
+    // nothing is timed, a lookup takes about as long as reading the clock twice
+    private final Metrics metrics = new Metrics("memory");
+
+    public MemoryCardStore() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedCards - cards the store is sized for, it grows past that by doubling
+     */
+    public MemoryCardStore(int expectedCards) {
+        int capacity = capacityFor(expectedCards);
+        numbers = new long[capacity];
+        ids = new int[capacity];
+        pins = new short[capacity];
+        accounts = new int[capacity];
+        balances = new long[capacity];
+        accountIndex = new AccountIndex(capacity);
+        numbersById = new long[Math.max(MIN_CAPACITY, expectedCards)];
+    }
+
+    @Override
+    public boolean checkCardNumber(CardNumber cardNumber) {
+        long number = packNumber(cardNumber);
+        lock.readLock().lock();
+        try {
+            return number != EMPTY && slotOf(number) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean createCard(CardNumber cardNumber, int pin, String accountNumber) {
+        lock.writeLock().lock();
+        try {
+            if (!insert(cardNumber, pin, accountNumber, 0)) {
+                System.out.println("failed while creating new card number");
+                return false;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * inserts the cards in order, taking the write lock once per chunk so readers are not
+     * blocked for the whole list. Stops at the first card that exists or does not fit
+     * @param cards - cards with number, pin and account set, balance is ignored
+     * @param chunkSize - how many cards are inserted per lock
+     * @return how many cards were inserted, always the first ones of the list
+     */
+    @Override
+    public int createCards(List<Card> cards, int chunkSize) {
+        return insertCards(cards, chunkSize, false, null);
+    }
+
+    /**
+     * same chunks as createCards, cards whose number or account exists are skipped
+     */
+    @Override
+    public int importCards(List<Card> cards, int chunkSize, Consumer<Card> skipped) {
+        return insertCards(cards, chunkSize, true, skipped);
+    }
+
+    /**
+     * @param skipped - null to stop at a card that exists, as createCards does
+     */
+    private int insertCards(List<Card> cards, int chunkSize, boolean keepBalance, Consumer<Card> skipped) {
+        int position = 0;
+        int inserted = 0;
+        while (position < cards.size()) {
+            int end = Math.min(cards.size(), position + Math.max(1, chunkSize));
+            List<Card> skippedInChunk = new ArrayList<>();
+            boolean failed = false;
+            lock.writeLock().lock();
+            try {
+                for (; position < end; position++) {
+                    Card card = cards.get(position);
+                    if (skipped != null && isTaken(card)) {
+                        skippedInChunk.add(card);
+                        continue;
+                    }
+                    if (!insert(card.getNumber(), card.getPin(), card.getAccount(),
+                            keepBalance ? card.getBalance() : 0)) {
+                        System.out.println("failed while creating new card numbers");
+                        failed = true;
+                        break;
+                    }
+                    inserted++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (skipped != null) {
+                skippedInChunk.forEach(skipped); // after the lock is released, the consumer may be slow
+            }
+            if (failed) {
+                break;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * the caller holds the write lock
+     * @param card
+     * @return true if its number or account is already in the store
+     */
+    private boolean isTaken(Card card) {
+        long number = packNumber(card.getNumber());
+        int account = card.getAccount() == null ? NO_ACCOUNT : packAccount(card.getAccount());
+        return (number != EMPTY && slotOf(number) >= 0)
+                || (account != NO_ACCOUNT && accountIndex.get(account) != EMPTY);
+    }
+
+    @Override
+    public Card getCard(CardNumber cardNumber) {
+        long number = packNumber(cardNumber);
+        if (number == EMPTY) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            int slot = slotOf(number);
+            return slot < 0 ? null : toCard(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getAccount(String accountNumber) {
+        int account = packAccount(accountNumber);
+        if (account == NO_ACCOUNT) {
+            return "";
+        }
+        lock.readLock().lock();
+        try {
+            return accountIndex.get(account) == EMPTY ? "" : Integer.toString(account);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Card getCardFromAccount(String accountNumber) {
+        int account = packAccount(accountNumber);
+        if (account == NO_ACCOUNT) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            long number = accountIndex.get(account);
+            return number == EMPTY ? null : toCard(slotOf(number));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updateBalance(CardNumber cardNumber, long amount) {
+        long number = packNumber(cardNumber);
+        lock.writeLock().lock();
+        try {
+            int slot = number == EMPTY ? -1 : slotOf(number);
+            if (slot < 0) {
+                System.out.println("card does not exist or not correct");
+                return false;
+            }
+            balances[slot] += amount;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean transfer(CardNumber originCard, CardNumber receptor, long amount) {
+        long origin = packNumber(originCard);
+        long receptorNumber = packNumber(receptor);
+        lock.writeLock().lock();
+        try {
+            int originSlot = origin == EMPTY ? -1 : slotOf(origin);
+            int receptorSlot = receptorNumber == EMPTY ? -1 : slotOf(receptorNumber);
+            if (originSlot < 0 || receptorSlot < 0) {
+                System.out.println("card does not exist or not correct");
+                return false;
+            }
+            balances[originSlot] -= amount;
+            balances[receptorSlot] += amount;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public TransferResult transferIfFunds(CardNumber originCard, CardNumber receptor, long amount) {
+        lock.writeLock().lock();
+        try {
+            return apply(BalanceOperation.transfer(originCard, receptor, amount));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * applies every operation under a single write lock
+     * @param operations
+     * @return the outcome of each operation, in the same order
+     */
+    @Override
+    public TransferResult[] applyBatch(List<BalanceOperation> operations) {
+        TransferResult[] results = new TransferResult[operations.size()];
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = apply(operations.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return results;
+    }
+
+    /**
+     * applies an income, or a transfer if the origin has the amount, the write lock should be held.
+     * Checks in the same order as BankDb.transferIfFunds: origin, funds, receptor
+     * @param operation
+     * @return the outcome
+     */
+    private TransferResult apply(BalanceOperation operation) {
+        long amount = operation.getAmount();
+        int originSlot = -1;
+        if (operation.getKind() == BalanceOperation.Kind.TRANSFER) {
+            long origin = packNumber(operation.getOriginCard());
+            originSlot = origin == EMPTY ? -1 : slotOf(origin);
+            if (originSlot < 0) {
+                return TransferResult.NO_SUCH_CARD;
+            }
+            if (balances[originSlot] < amount) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+        }
+        long receptor = packNumber(operation.getReceptorCard());
+        int receptorSlot = receptor == EMPTY ? -1 : slotOf(receptor);
+        if (receptorSlot < 0) {
+            return TransferResult.NO_SUCH_CARD;
+        }
+        if (originSlot >= 0) {
+            balances[originSlot] -= amount;
+        }
+        balances[receptorSlot] += amount;
+        return TransferResult.SUCCESS;
+    }
+
+    @Override
+    public String deleteAccount(CardNumber cardNumber) {
+        long number = packNumber(cardNumber);
+        if (number == EMPTY) {
+            return null; // nothing to delete
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = slotOf(number);
+            if (slot < 0) {
+                return null;
+            }
+            String account = "";
+            if (accounts[slot] != NO_ACCOUNT) {
+                accountIndex.remove(accounts[slot]);
+                account = Integer.toString(accounts[slot]);
+            }
+            numbersById[ids[slot]] = EMPTY;
+            removeSlot(slot);
+            return account;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Card> getCardPage(long afterId, int pageSize) {
+        List<Card> page = new ArrayList<>(pageSize);
+        lock.readLock().lock();
+        try {
+            for (long id = Math.max(0, afterId + 1); id < nextId && page.size() < pageSize; id++) {
+                long number = numbersById[(int) id];
+                if (number != EMPTY) {
+                    int slot = slotOf(number);
+                    Card card = toCard(slot);
+                    card.setAccount(accounts[slot] == NO_ACCOUNT ? null : Integer.toString(accounts[slot]));
+                    page.add(card);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return page;
+    }
+
+    @Override
+    public long countCards() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * visits the cards in id order holding the read lock, the consumer should not change the store
+     * @param consumer - receives every card number with its account number (null if it has none)
+     * @return always true
+     */
+    @Override
+    public boolean forEachCardAndAccount(BiConsumer<CardNumber, String> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int id = 0; id < nextId; id++) {
+                long number = numbersById[id];
+                if (number != EMPTY) {
+                    int account = accounts[slotOf(number)];
+                    consumer.accept(CardNumber.of(number - 1),
+                            account == NO_ACCOUNT ? null : Integer.toString(account));
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return an empty registry, operations of this store are not timed
+     */
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * nothing to release
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * adds a card, the write lock should be held
+     * @return false if the card or the account exist, or a number does not fit
+     */
+    private boolean insert(CardNumber cardNumber, int pin, String accountNumber, long balance) {
+        long number = packNumber(cardNumber);
+        short packedPin = packPin(pin);
+        int account = accountNumber == null ? NO_ACCOUNT : packAccount(accountNumber);
+        if (number == EMPTY || packedPin < 0 || (accountNumber != null && account == NO_ACCOUNT)) {
+            System.out.println("card " + cardNumber + " does not fit in the memory store");
+            return false;
+        }
+        if (slotOf(number) >= 0 || (account != NO_ACCOUNT && accountIndex.get(account) != EMPTY)) {
+            return false; // same as the unique indexes of the database
+        }
+        if (size + 1 > numbers.length * LOAD_FACTOR) {
+            resize(numbers.length * 2);
+        }
+        if (nextId == numbersById.length) {
+            numbersById = Arrays.copyOf(numbersById, numbersById.length * 2);
+        }
+        int id = nextId++;
+        int slot = hash(number) & (numbers.length - 1);
+        while (numbers[slot] != EMPTY) {
+            slot = (slot + 1) & (numbers.length - 1);
+        }
+        numbers[slot] = number;
+        ids[slot] = id;
+        pins[slot] = packedPin;
+        accounts[slot] = account;
+        balances[slot] = balance;
+        size++;
+        numbersById[id] = number;
+        if (account != NO_ACCOUNT) {
+            accountIndex.put(account, number);
+        }
+        return true;
+    }
+
+    /**
+     * @param number - a packed card number
+     * @return the slot of the card, -1 if it does not exist
+     */
+    private int slotOf(long number) {
+        int mask = numbers.length - 1;
+        int slot = hash(number) & mask;
+        while (true) {
+            long current = numbers[slot];
+            if (current == number) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * empties a slot and moves back the entries after it that can get closer to their home slot,
+     * so every entry stays reachable from its home slot without tombstones
+     * @param slot
+     */
+    private void removeSlot(int slot) {
+        int mask = numbers.length - 1;
+        int gap = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            long number = numbers[next];
+            if (number == EMPTY) {
+                break;
+            }
+            int home = hash(number) & mask;
+            // the entry can fill the gap if the gap is between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                numbers[gap] = number;
+                ids[gap] = ids[next];
+                pins[gap] = pins[next];
+                accounts[gap] = accounts[next];
+                balances[gap] = balances[next];
+                gap = next;
+            }
+        }
+        numbers[gap] = EMPTY;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldNumbers = numbers;
+        int[] oldIds = ids;
+        short[] oldPins = pins;
+        int[] oldAccounts = accounts;
+        long[] oldBalances = balances;
+        numbers = new long[capacity];
+        ids = new int[capacity];
+        pins = new short[capacity];
+        accounts = new int[capacity];
+        balances = new long[capacity];
+        int mask = capacity - 1;
+        for (int old = 0; old < oldNumbers.length; old++) {
+            if (oldNumbers[old] == EMPTY) {
+                continue;
+            }
+            int slot = hash(oldNumbers[old]) & mask;
+            while (numbers[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            numbers[slot] = oldNumbers[old];
+            ids[slot] = oldIds[old];
+            pins[slot] = oldPins[old];
+            accounts[slot] = oldAccounts[old];
+            balances[slot] = oldBalances[old];
+        }
+    }
+
+    private Card toCard(int slot) {
+        Card card = new Card();
+        card.setId(ids[slot]);
+        card.setNumber(CardNumber.of(numbers[slot] - 1));
+        card.setPin(pins[slot]);
+        card.setBalance(balances[slot]);
+        return card;
+    }
+
+    /**
+     * @param expected - entries to hold
+     * @return a power of two big enough to keep them under the load factor
+     */
+    private static int capacityFor(int expected) {
+        int needed = (int) Math.min(1 << 30, (long) Math.ceil(Math.max(expected, 1) / (double) LOAD_FACTOR));
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * murmur3 finalizer, card numbers share their first digits so the low bits need mixing
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * @param cardNumber
+     * @return the key of the card, EMPTY for null
+     */
+    private static long packNumber(CardNumber cardNumber) {
+        return cardNumber == null ? EMPTY : cardNumber.getValue() + 1;
+    }
+
+    /**
+     * @param accountNumber
+     * @return the number as an int, NO_ACCOUNT if it is not 1 to 9 digits without a leading zero
+     */
+    private static int packAccount(String accountNumber) {
+        if (accountNumber == null || accountNumber.isEmpty() || accountNumber.length() > 9
+                || (accountNumber.charAt(0) == '0' && accountNumber.length() > 1)) {
+            return NO_ACCOUNT;
+        }
+        int account = 0;
+        for (int i = 0; i < accountNumber.length(); i++) {
+            char digit = accountNumber.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return NO_ACCOUNT;
+            }
+            account = account * 10 + (digit - '0');
+        }
+        return account;
+    }
+
+    /**
+     * @param pin
+     * @return the pin as a short, -1 if it is not between 0 and 9999
+     */
+    private static short packPin(int pin) {
+        return pin < 0 || pin > 9999 ? -1 : (short) pin;
+    }
+
+    /**
+     * Account number to card number hash table, open addressing like the card table.
+     * Keys are stored as account + 1 so 0 means an empty slot
+     */
+    private static class AccountIndex {
+        private int[] keys;
+        private long[] cards;
+        private int size = 0;
+
+        AccountIndex(int capacity) {
+            keys = new int[capacity];
+            cards = new long[capacity];
+        }
+
+        /**
+         * @return the packed card number of the account, EMPTY if it does not exist
+         */
+        long get(int account) {
+            int key = account + 1;
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return cards[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return EMPTY;
+        }
+
+        /**
+         * adds an account that does not exist yet
+         */
+        void put(int account, long card) {
+            if (size + 1 > keys.length * LOAD_FACTOR) {
+                resize(keys.length * 2);
+            }
+            insert(account + 1, card);
+            size++;
+        }
+
+        void remove(int account) {
+            int key = account + 1;
+            int mask = keys.length - 1;
+            int gap = hash(key) & mask;
+            while (keys[gap] != key) {
+                if (keys[gap] == 0) {
+                    return;
+                }
+                gap = (gap + 1) & mask;
+            }
+            int next = gap;
+            while (true) {
+                next = (next + 1) & mask;
+                if (keys[next] == 0) {
+                    break;
+                }
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    cards[gap] = cards[next];
+                    gap = next;
+                }
+            }
+            keys[gap] = 0;
+            size--;
+        }
+
+        private void insert(int key, long card) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            cards[slot] = card;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            long[] oldCards = cards;
+            keys = new int[capacity];
+            cards = new long[capacity];
+            for (int old = 0; old < oldKeys.length; old++) {
+                if (oldKeys[old] != 0) {
+                    insert(oldKeys[old], oldCards[old]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package banking;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Latency and error counters of named operations, for example every public method of BankDb.
+ * Operations are registered once, when their owner is created, and kept in a field, so recording
+ * is a few counter increments with no lookup and no allocation:
+ *
+ *   long start = System.nanoTime();
+ *   try { ... } finally { operation.record(start); }
+ *
+ * Errors are counted where they are reported, with operation.error().
+ */
+public class Metrics {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final String prefix;
+    private final List<Operation> operations = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param prefix - added before every operation name, for example "db"
+     */
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * registers an operation
+     * @param name
+     * @return the operation, keep it in a field
+     */
+    public Operation operation(String name) {
+        Operation operation = new Operation(prefix + "." + name, new LatencyHistogram());
+        operations.add(operation);
+        return operation;
+    }
+
+    /**
+     * registers a histogram kept by someone else, for example the connection pool wait time
+     * @param name
+     * @param histogram
+     * @return the operation
+     */
+    public Operation operation(String name, LatencyHistogram histogram) {
+        Operation operation = new Operation(prefix + "." + name, histogram);
+        operations.add(operation);
+        return operation;
+    }
+
+    /**
+     * @return every registered operation, in registration order
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * clears every counter
+     */
+    public void reset() {
+        for (Operation operation : operations) {
+            operation.histogram.reset();
+            operation.errors.set(0);
+        }
+    }
+
+    /**
+     * @param metrics - the registries to print
+     * @return a table with one line per operation that was called at least once, latencies in microseconds
+     */
+    public static String dump(Metrics... metrics) {
+        StringBuilder table = new StringBuilder(String.format("%-32s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "mean_us", "p50_us", "p90_us", "p99_us", "p99.9_us", "max_us"));
+        for (Metrics registry : metrics) {
+            for (Operation operation : registry.operations) {
+                LatencyHistogram histogram = operation.histogram;
+                if (histogram.getCount() == 0 && operation.getErrors() == 0) {
+                    continue;
+                }
+                table.append(String.format("%-32s %10d %8d %10.1f", operation.name, histogram.getCount(),
+                        operation.getErrors(), histogram.getMeanNanos() / 1000));
+                for (double percentile : PERCENTILES) {
+                    table.append(String.format(" %10.1f", histogram.getValueAtPercentile(percentile) / 1000.0));
+                }
+                table.append(String.format(" %10.1f%n", histogram.getMaxNanos() / 1000.0));
+            }
+        }
+        return table.toString();
+    }
+
+    /**
+     * @param metrics - the registries to summarize
+     * @return one line with count, errors, p50 and p99 in microseconds of every operation called at least once
+     */
+    public static String summary(Metrics... metrics) {
+        List<String> entries = new ArrayList<>();
+        for (Metrics registry : metrics) {
+            for (Operation operation : registry.operations) {
+                LatencyHistogram histogram = operation.histogram;
+                if (histogram.getCount() == 0 && operation.getErrors() == 0) {
+                    continue;
+                }
+                entries.add(String.format("%s=%d/%d/%.1f/%.1f", operation.name, histogram.getCount(),
+                        operation.getErrors(), histogram.getValueAtPercentile(50) / 1000.0,
+                        histogram.getValueAtPercentile(99) / 1000.0));
+            }
+        }
+        return String.join(" ", entries);
+    }
+
+    /**
+     * Writes the metrics table to a file every period, replacing the previous content
+     * @param file
+     * @param periodMillis
+     * @param metrics - the registries to write
+     * @return the scheduler, shut it down to stop writing
+     */
+    public static ScheduledExecutorService writePeriodically(Path file, long periodMillis, Metrics... metrics) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.write(temporary, dump(metrics).getBytes(StandardCharsets.UTF_8));
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("failed while writing the metrics to " + file);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Latency histogram and error counter of one operation
+     */
+    public static class Operation {
+        private final String name;
+        private final LatencyHistogram histogram;
+        private final AtomicLong errors = new AtomicLong();
+
+        private Operation(String name, LatencyHistogram histogram) {
+            this.name = name;
+            this.histogram = histogram;
+        }
+
+        /**
+         * records a call
+         * @param startNanos - System.nanoTime() when the call started
+         */
+        public void record(long startNanos) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * runs a call and records its latency, like a try/finally around it calling record
+         * @param call
+         * @return what the call returned
+         */
+        public <T> T time(Supplier<T> call) {
+            long start = System.nanoTime();
+            try {
+                return call.get();
+            } finally {
+                record(start);
+            }
+        }
+
+        /**
+         * time for calls returning a boolean, without boxing it
+         */
+        public boolean timeBoolean(BooleanSupplier call) {
+            long start = System.nanoTime();
+            try {
+                return call.getAsBoolean();
+            } finally {
+                record(start);
+            }
+        }
+
+        /**
+         * time for calls returning an int, without boxing it
+         */
+        public int timeInt(IntSupplier call) {
+            long start = System.nanoTime();
+            try {
+                return call.getAsInt();
+            } finally {
+                record(start);
+            }
+        }
+
+        /**
+         * time for calls returning a long, without boxing it
+         */
+        public long timeLong(LongSupplier call) {
+            long start = System.nanoTime();
+            try {
+                return call.getAsLong();
+            } finally {
+                record(start);
+            }
+        }
+
+        /**
+         * counts a failed call, it is still recorded with record
+         */
+        public void error() {
+            errors.incrementAndGet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package banking;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versioned schema migrations.
+ * The current schema version is kept in the database file itself (PRAGMA user_version),
+ * so existing database files are upgraded in place the first time a newer program opens them.
+ * Each migration runs in its own transaction together with the version bump.
+ */
+public class SchemaMigrator {
+
+    // shard bucket of a card: its account number (the digits between the BIN and the check digit)
+    // modulo ShardedCardStore.BUCKETS. Queries should use this exact text to use the index on it
+    static final String CARD_BUCKET = "number / 10 % 1000000000 % 1024";
+
+    // the history of a deleted card goes away with it
+    private static final String HISTORY_TRIGGER = "CREATE TRIGGER card_delete_history AFTER DELETE ON card BEGIN\n"
+            + "	DELETE FROM transaction_history WHERE card = OLD.number;\n"
+            + "END";
+
+    private final List<Migration> migrations = new ArrayList<>();
+
+    /**
+     * Creates a migrator with every migration known by this version of the program
+     */
+    public SchemaMigrator() {
+        register(new Migration(1, "default card and account tables",
+                "CREATE TABLE IF NOT EXISTS card (\n"
+                        + "	id integer NOT NULL PRIMARY KEY,\n"
+                        + "	number text NOT NULL,\n"
+                        + "	pin text NOT NULL,\n"
+                        + " balance INTEGER DEFAULT 0\n"
+                        + ");",
+                "CREATE TABLE IF NOT EXISTS account (\n"
+                        + "	id integer NOT NULL,\n"
+                        + "	account text NOT NULL\n"
+                        + ");"));
+
+        // account rows left behind by deleted cards are dropped, if two rows share an id the newest one wins
+        register(new Migration(2, "unique indexes, account primary key and foreign key to card",
+                "CREATE UNIQUE INDEX IF NOT EXISTS card_number_idx ON card (number)",
+                "CREATE TABLE account_new (\n"
+                        + "	id INTEGER PRIMARY KEY REFERENCES card (id) ON DELETE CASCADE,\n"
+                        + "	account text NOT NULL\n"
+                        + ");",
+                "INSERT OR REPLACE INTO account_new (id, account) "
+                        + "SELECT id, account FROM account WHERE id IN (SELECT id FROM card) ORDER BY rowid",
+                "DROP TABLE account",
+                "ALTER TABLE account_new RENAME TO account",
+                "CREATE UNIQUE INDEX account_account_idx ON account (account)"));
+
+        // ids come from a persisted sequence, counting rows reused ids after a delete
+        register(new Migration(3, "card id sequence",
+                "CREATE TABLE id_sequence (\n"
+                        + "	name text NOT NULL PRIMARY KEY,\n"
+                        + "	next_value INTEGER NOT NULL\n"
+                        + ");",
+                "INSERT INTO id_sequence (name, next_value) SELECT 'card', COALESCE(MAX(id), -1) + 1 FROM card"));
+
+        // last journal record already applied to the card balances
+        register(new Migration(4, "journal checkpoint",
+                "CREATE TABLE journal_checkpoint (\n"
+                        + "	id INTEGER PRIMARY KEY CHECK (id = 0),\n"
+                        + "	sequence INTEGER NOT NULL\n"
+                        + ");",
+                "INSERT INTO journal_checkpoint (id, sequence) VALUES (0, 0)"));
+
+        // one row per card changed since the last balance snapshot, with the sequence of its latest change
+        register(new Migration(5, "card change log for balance snapshots",
+                "CREATE TABLE card_change_log (\n"
+                        + "	number text NOT NULL PRIMARY KEY,\n"
+                        + "	sequence INTEGER NOT NULL\n"
+                        + ");",
+                "CREATE INDEX card_change_log_sequence_idx ON card_change_log (sequence)",
+                "CREATE TABLE card_change_log_start (\n"
+                        + "	id INTEGER PRIMARY KEY CHECK (id = 0),\n"
+                        + "	sequence INTEGER NOT NULL\n"
+                        + ");",
+                "INSERT INTO card_change_log_start (id, sequence) VALUES (0, 0)",
+                "INSERT INTO id_sequence (name, next_value) VALUES ('card_change', 0)",
+                changeLogTrigger("card_insert_change", "AFTER INSERT ON card", "NEW"),
+                changeLogTrigger("card_update_change", "AFTER UPDATE ON card", "NEW"),
+                changeLogTrigger("card_delete_change", "AFTER DELETE ON card", "OLD")));
+
+        // statements: one row per balance change of a card, read by card in time order
+        register(new Migration(6, "transaction history",
+                "CREATE TABLE transaction_history (\n"
+                        + "	id INTEGER PRIMARY KEY,\n"
+                        + "	card text NOT NULL,\n"
+                        + "	time INTEGER NOT NULL,\n"
+                        + "	type text NOT NULL,\n"
+                        + "	amount INTEGER NOT NULL,\n"
+                        + "	counterparty text\n"
+                        + ");",
+                "CREATE INDEX transaction_history_card_time_idx ON transaction_history (card, time, id)",
+                HISTORY_TRIGGER));
+
+        // card numbers and pins stored as numbers: 8 byte keys instead of 16 characters, compared as integers.
+        // Dropping the card table drops its triggers, they are created again on the new one
+        register(new Migration(7, "numeric card numbers and pins",
+                "CREATE TABLE card_new (\n"
+                        + "	id integer NOT NULL PRIMARY KEY,\n"
+                        + "	number INTEGER NOT NULL,\n"
+                        + "	pin INTEGER NOT NULL,\n"
+                        + "	balance INTEGER DEFAULT 0\n"
+                        + ");",
+                "INSERT INTO card_new (id, number, pin, balance) "
+                        + "SELECT id, CAST(number AS INTEGER), CAST(pin AS INTEGER), balance FROM card",
+                "DROP TABLE card",
+                "ALTER TABLE card_new RENAME TO card",
+                "CREATE UNIQUE INDEX card_number_idx ON card (number)",
+                "CREATE TABLE card_change_log_new (\n"
+                        + "	number INTEGER NOT NULL PRIMARY KEY,\n"
+                        + "	sequence INTEGER NOT NULL\n"
+                        + ");",
+                "INSERT INTO card_change_log_new (number, sequence) "
+                        + "SELECT CAST(number AS INTEGER), sequence FROM card_change_log",
+                "DROP TABLE card_change_log",
+                "ALTER TABLE card_change_log_new RENAME TO card_change_log",
+                "CREATE INDEX card_change_log_sequence_idx ON card_change_log (sequence)",
+                "CREATE TABLE transaction_history_new (\n"
+                        + "	id INTEGER PRIMARY KEY,\n"
+                        + "	card INTEGER NOT NULL,\n"
+                        + "	time INTEGER NOT NULL,\n"
+                        + "	type text NOT NULL,\n"
+                        + "	amount INTEGER NOT NULL,\n"
+                        + "	counterparty INTEGER\n"
+                        + ");",
+                "INSERT INTO transaction_history_new (id, card, time, type, amount, counterparty) "
+                        + "SELECT id, CAST(card AS INTEGER), time, type, amount, CAST(counterparty AS INTEGER) "
+                        + "FROM transaction_history",
+                "DROP TABLE transaction_history",
+                "ALTER TABLE transaction_history_new RENAME TO transaction_history",
+                "CREATE INDEX transaction_history_card_time_idx ON transaction_history (card, time, id)",
+                changeLogTrigger("card_insert_change", "AFTER INSERT ON card", "NEW"),
+                changeLogTrigger("card_update_change", "AFTER UPDATE ON card", "NEW"),
+                changeLogTrigger("card_delete_change", "AFTER DELETE ON card", "OLD"),
+                HISTORY_TRIGGER));
+        register(new Migration(8, "shard buckets and two phase transfer holds",
+                "CREATE INDEX card_bucket_idx ON card (" + CARD_BUCKET + ")",
+                "CREATE TABLE transfer_hold (\n"
+                        + "	transfer_id INTEGER NOT NULL PRIMARY KEY,\n"
+                        + "	card INTEGER NOT NULL,\n"
+                        + "	amount INTEGER NOT NULL,\n"
+                        + "	counterparty INTEGER NOT NULL,\n"
+                        + "	time INTEGER NOT NULL\n"
+                        + ");"));
+
+        // BankDb writes one version per transaction to the cards it changes, so a balance update costs no
+        // extra writes. The change log only gets deleted cards from now on, BankDb writes those too
+        register(new Migration(9, "card versions instead of change log triggers",
+                "ALTER TABLE card ADD COLUMN version INTEGER NOT NULL DEFAULT 0",
+                "CREATE INDEX card_version_idx ON card (version)",
+                "DROP TRIGGER IF EXISTS card_insert_change",
+                "DROP TRIGGER IF EXISTS card_update_change",
+                "DROP TRIGGER IF EXISTS card_delete_change"));
+    }
+
+    /**
+     * a trigger that bumps the card_change sequence and records it as the latest change of the card
+     * @param name - trigger name
+     * @param event - when it fires, for example AFTER INSERT ON card
+     * @param row - NEW or OLD, the row holding the card number
+     * @return the CREATE TRIGGER statement
+     */
+    private static String changeLogTrigger(String name, String event, String row) {
+        return "CREATE TRIGGER " + name + " " + event + " BEGIN\n"
+                + "	UPDATE id_sequence SET next_value = next_value + 1 WHERE name = 'card_change';\n"
+                + "	INSERT OR REPLACE INTO card_change_log (number, sequence) "
+                + "SELECT " + row + ".number, next_value FROM id_sequence WHERE name = 'card_change';\n"
+                + "END";
+    }
+
+    /**
+     * adds a migration, versions should be registered in increasing order
+     * @param migration
+     */
+    private void register(Migration migration) {
+        if (!migrations.isEmpty() && migrations.get(migrations.size() - 1).version >= migration.version) {
+            throw new IllegalArgumentException("migrations should be registered in version order");
+        }
+        migrations.add(migration);
+    }
+
+    /**
+     * @return the schema version this program expects
+     */
+    public int getLatestVersion() {
+        return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version;
+    }
+
+    /**
+     * @return every registered migration
+     */
+    public List<Migration> getMigrations() {
+        return Collections.unmodifiableList(migrations);
+    }
+
+    /**
+     * reads the schema version stored in the database file
+     * @param con
+     * @return the version, 0 for a new database
+     * @throws SQLException
+     */
+    public int getCurrentVersion(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Applies every migration newer than the stored schema version.
+     * Foreign keys are disabled while migrating because tables are rebuilt,
+     * and enabled again when it finishes
+     * @param con - connection to the database to upgrade
+     * @return the schema version after migrating
+     * @throws SQLException if a migration fails, that migration is rolled back
+     */
+    public int migrate(Connection con) throws SQLException {
+        int currentVersion = getCurrentVersion(con);
+        if (currentVersion > getLatestVersion()) {
+            throw new SQLException(String.format("database schema version %d is newer than supported version %d",
+                    currentVersion, getLatestVersion()));
+        }
+
+        boolean autoCommit = con.getAutoCommit();
+        try (Statement statement = con.createStatement()) {
+            statement.execute("PRAGMA foreign_keys = OFF"); // has no effect inside a transaction
+            con.setAutoCommit(false);
+
+            for (Migration migration : migrations) {
+                if (migration.version <= currentVersion) {
+                    continue;
+                }
+                try {
+                    for (String sql : migration.statements) {
+                        statement.executeUpdate(sql);
+                    }
+                    statement.executeUpdate("PRAGMA user_version = " + migration.version);
+                    con.commit();
+                    currentVersion = migration.version;
+                } catch (SQLException se) {
+                    con.rollback();
+                    throw se;
+                }
+            }
+        } finally {
+            con.setAutoCommit(autoCommit);
+            try (Statement statement = con.createStatement()) {
+                statement.execute("PRAGMA foreign_keys = ON");
+            }
+        }
+        return currentVersion;
+    }
+
+    /**
+     * A single schema change
+     */
+    public static class Migration {
+        private final int version;
+        private final String description;
+        private final String[] statements;
+
+        public Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package banking;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs customer sessions, each one on its own thread.
+ * On a Java version with virtual threads every session gets a virtual thread, so thousands
+ * of sessions blocked on input or on the database cost almost nothing. Otherwise sessions get
+ * platform threads with a small stack, which still allows a few thousand of them.
+ */
+public class SessionExecutor {
+
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder completedSessions = new LongAdder();
+
+    public SessionExecutor() {
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        this.virtualThreads = virtualExecutor != null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(null, runnable, "session-" + threadNumber.incrementAndGet(),
+                        PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * runs the terminal menu of a session until the customer exits or the input is closed
+     * @param session
+     * @return completes when the session ends
+     */
+    public CompletableFuture<Void> run(CustomerSession session) {
+        return submit(() -> new BankTerminalGui(session).runDefaultMenu());
+    }
+
+    /**
+     * runs any session work, for example a scripted customer
+     * @param work
+     * @return completes when the work ends
+     */
+    public CompletableFuture<Void> submit(Runnable work) {
+        activeSessions.incrementAndGet();
+        return CompletableFuture.runAsync(work, executor).whenComplete((result, error) -> {
+            activeSessions.decrementAndGet();
+            completedSessions.increment();
+        });
+    }
+
+    /**
+     * @return true if sessions run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public long getCompletedSessions() {
+        return completedSessions.sum();
+    }
+
+    /**
+     * waits for the running sessions and stops the executor
+     * @param timeoutMillis - maximum time to wait
+     * @return true if every session finished in time
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * looks up Executors.newVirtualThreadPerTaskExecutor, added in Java 21, so the program
+     * still compiles and runs on older versions
+     * @return the executor, null if this Java version has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,930 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
+import org.sqlite.SQLiteDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * CardStore that spreads the cards over several SQLite files (shards), each one a BankDb with its own
+ * writer, so writes to different shards do not wait for each other.
+ *
+ * Routing: a card belongs to one of BUCKETS buckets, its account number (the digits between the BIN and
+ * the check digit, as generated by BankService.createAccount) modulo BUCKETS, and every bucket is owned by
+ * one shard. Operations on one card go to the shard of its bucket. A transfer between two shards uses two
+ * phase commit: the transfer is written to a recovery log, both shards prepare it (the origin is debited
+ * into a hold, the receptor records its credit), the decision is logged, then both shards finish it.
+ * Transfers the process did not finish are committed or rolled back the next time the store is opened.
+ *
+ * addShard adds a file and moves buckets to it while the store is in use. A bucket is copied, switched
+ * and deleted from its old shard holding only the lock of that bucket, so operations on the other
+ * buckets keep running. A bucket with a transfer still in the recovery log is not moved, the log
+ * names the shards that finish it. The bucket table and the recovery log live in a small directory database.
+ *
+ * Card ids are the id in the shard times MAX_SHARDS plus the shard index, so they are unique over the
+ * store, but a card gets a new id when its bucket moves. Account lookups ask the shard of the account
+ * number first and the others after it, imported cards may have any account number.
+ * Journal mode and balance snapshots are not supported, they belong to a single BankDb.
+ */
+public class ShardedCardStore implements CardStore {
+
+    public static final int BUCKETS = 1024; // same as SchemaMigrator.CARD_BUCKET
+    public static final int MAX_SHARDS = 64;
+    private static final int MOVE_CHUNK_SIZE = 5000;
+    private static final int HISTORY_PAGE_SIZE = 500;
+    private static final String PREPARED = "PREPARED";
+    private static final String COMMITTED = "COMMITTED";
+    private static final int NO_SHARD = -1;
+
+    private final int poolSize;
+    private final DurabilityProfile profile;
+    private final ConnectionPool directory; // shard list, bucket table and recovery log
+    private final List<BankDb> shards = new CopyOnWriteArrayList<>();
+    private volatile int[] bucketShards = new int[BUCKETS]; // replaced, never changed in place
+    private final ReentrantReadWriteLock[] bucketLocks = new ReentrantReadWriteLock[BUCKETS];
+    private final Object rebalanceLock = new Object(); // one bucket move at a time
+
+    private final Metrics metrics = new Metrics("sharded");
+    private final Metrics.Operation transferBetweenShardsOp = metrics.operation("transferBetweenShards");
+    private final Metrics.Operation moveBucketOp = metrics.operation("moveBucket");
+    private final Metrics.Operation recoverOp = metrics.operation("recover");
+
+    /**
+     * @param directoryUrl - file of the directory database
+     * @param shardUrls - files of the shards, only used when the directory is new
+     */
+    public ShardedCardStore(String directoryUrl, List<String> shardUrls) {
+        this(directoryUrl, shardUrls, ConnectionPool.DEFAULT_MAX_SIZE, null);
+    }
+
+    /**
+     * Opens the shards listed in the directory, creating it with shardUrls if it is new, and finishes
+     * the transfers and bucket moves a previous process left half done.
+     * If this fails, it exits the application
+     * @param directoryUrl - file of the directory database
+     * @param shardUrls - files of the shards, only used when the directory is new
+     * @param poolSize - read connections of each shard
+     * @param profile - SQLite settings of the shards and the directory, null for the SQLite defaults
+     */
+    public ShardedCardStore(String directoryUrl, List<String> shardUrls, int poolSize, DurabilityProfile profile) {
+        this.poolSize = poolSize;
+        this.profile = profile;
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketLocks[i] = new ReentrantReadWriteLock();
+        }
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + directoryUrl);
+        this.directory = new ConnectionPool(dataSource, 1, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS,
+                ConnectionPool.DEFAULT_LEAK_THRESHOLD_MILLIS, ConnectionPool.DEFAULT_WAIT_TIMEOUT_MILLIS);
+        if (profile != null) {
+            this.directory.setConnectionCustomizer(profile::apply);
+        }
+        openDirectory(shardUrls);
+        if (!recover()) {
+            System.out.println("some transfers or bucket moves are still unfinished, they are retried on the next start");
+        }
+    }
+
+    /**
+     * creates the directory tables if needed and opens every shard
+     * @param shardUrls - shards of a new directory
+     */
+    private void openDirectory(List<String> shardUrls) {
+        List<String> urls = new ArrayList<>();
+        int[] route = new int[BUCKETS];
+        try (Connection con = directory.getConnection();
+             Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS shard (id INTEGER PRIMARY KEY, url TEXT NOT NULL)");
+            // target is set while the bucket is copied there, previous until it is deleted from its old shard
+            statement.execute("CREATE TABLE IF NOT EXISTS bucket (bucket INTEGER PRIMARY KEY, "
+                    + "shard INTEGER NOT NULL, target INTEGER, previous INTEGER)");
+            statement.execute("CREATE TABLE IF NOT EXISTS transfer_log (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "origin INTEGER NOT NULL, origin_shard INTEGER NOT NULL, receptor INTEGER NOT NULL, "
+                    + "receptor_shard INTEGER NOT NULL, amount INTEGER NOT NULL, state TEXT NOT NULL)");
+            try (ResultSet rs = statement.executeQuery("SELECT url FROM shard ORDER BY id")) {
+                while (rs.next()) {
+                    urls.add(rs.getString("url"));
+                }
+            }
+            if (urls.isEmpty()) {
+                if (shardUrls.isEmpty() || shardUrls.size() > MAX_SHARDS) {
+                    throw new SQLException("between 1 and " + MAX_SHARDS + " shards are needed");
+                }
+                con.setAutoCommit(false);
+                try (PreparedStatement shard = con.prepareStatement("INSERT INTO shard (id, url) VALUES (?, ?)");
+                     PreparedStatement bucket = con.prepareStatement(
+                             "INSERT INTO bucket (bucket, shard) VALUES (?, ?)")) {
+                    for (int i = 0; i < shardUrls.size(); i++) {
+                        shard.setInt(1, i);
+                        shard.setString(2, shardUrls.get(i));
+                        shard.addBatch();
+                    }
+                    shard.executeBatch();
+                    for (int i = 0; i < BUCKETS; i++) {
+                        bucket.setInt(1, i);
+                        bucket.setInt(2, i % shardUrls.size());
+                        bucket.addBatch();
+                    }
+                    bucket.executeBatch();
+                }
+                con.commit();
+                con.setAutoCommit(true);
+                urls.addAll(shardUrls);
+            } else if (!urls.equals(shardUrls)) {
+                System.out.println("using the " + urls.size() + " shards of the directory, add shards with addShard");
+            }
+            try (ResultSet rs = statement.executeQuery("SELECT bucket, shard FROM bucket")) {
+                while (rs.next()) {
+                    route[rs.getInt("bucket")] = rs.getInt("shard");
+                }
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed to open the shard directory");
+            System.exit(0);
+        }
+        for (String url : urls) {
+            shards.add(new BankDb(url, poolSize, null, profile));
+        }
+        bucketShards = route;
+    }
+
+    /**
+     * Finishes what a previous process left half done: transfers that reached the commit decision are
+     * committed on both shards, the others are rolled back, and half moved buckets are cleaned up.
+     * It runs while the store is opened, before any other operation
+     * @return true if nothing is left unfinished
+     */
+    private boolean recover() {
+        long start = System.nanoTime();
+        try {
+            boolean finished = true;
+            List<long[]> transfers = new ArrayList<>(); // id, origin shard, receptor shard, committed
+            List<int[]> buckets = new ArrayList<>(); // bucket, shard, target, previous
+            try (Connection con = directory.getConnection();
+                 Statement statement = con.createStatement()) {
+                try (ResultSet rs = statement.executeQuery(
+                        "SELECT id, origin_shard, receptor_shard, state FROM transfer_log")) {
+                    while (rs.next()) {
+                        transfers.add(new long[]{rs.getLong("id"), rs.getInt("origin_shard"),
+                                rs.getInt("receptor_shard"), COMMITTED.equals(rs.getString("state")) ? 1 : 0});
+                    }
+                }
+                try (ResultSet rs = statement.executeQuery("SELECT bucket, shard, target, previous FROM bucket "
+                        + "WHERE target IS NOT NULL OR previous IS NOT NULL")) {
+                    while (rs.next()) {
+                        int target = rs.getInt("target");
+                        target = rs.wasNull() ? NO_SHARD : target;
+                        int previous = rs.getInt("previous");
+                        previous = rs.wasNull() ? NO_SHARD : previous;
+                        buckets.add(new int[]{rs.getInt("bucket"), rs.getInt("shard"), target, previous});
+                    }
+                }
+            } catch (SQLException se) {
+                se.printStackTrace();
+                recoverOp.error();
+                System.out.println("failed while reading the shard recovery log");
+                return false;
+            }
+
+            for (long[] transfer : transfers) {
+                finished &= finishTransfer(transfer[0], (int) transfer[1], (int) transfer[2], transfer[3] == 1);
+            }
+            for (int[] bucket : buckets) {
+                // a copy that was not switched to is dropped, an old shard that was switched from is emptied
+                int stale = bucket[2] != NO_SHARD ? bucket[2] : bucket[3];
+                finished &= shards.get(stale).deleteBucket(bucket[0])
+                        && saveBucket(bucket[0], bucket[1], NO_SHARD, NO_SHARD);
+            }
+            if (!finished) {
+                recoverOp.error();
+            }
+            return finished;
+        } finally {
+            recoverOp.record(start);
+        }
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @param index - from 0 to getShardCount() - 1
+     * @return the database of a shard, to read its metrics
+     */
+    public BankDb getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * @param cardNumber
+     * @return the index of the shard the card belongs to
+     */
+    public int getShardOf(CardNumber cardNumber) {
+        return bucketShards[bucketOf(cardNumber)];
+    }
+
+    /**
+     * @param cardNumber
+     * @return the bucket of the card, from its account number
+     */
+    static int bucketOf(CardNumber cardNumber) {
+        return cardNumber.getAccountNumber() % BUCKETS;
+    }
+
+    /**
+     * @param accountNumber
+     * @return the shard the account number routes to, NO_SHARD if it is not a 9 digits number
+     */
+    private int shardOfAccount(String accountNumber) {
+        if (accountNumber == null || accountNumber.isEmpty() || accountNumber.length() > 9) {
+            return NO_SHARD;
+        }
+        int account = 0;
+        for (int i = 0; i < accountNumber.length(); i++) {
+            int digit = accountNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NO_SHARD;
+            }
+            account = account * 10 + digit;
+        }
+        return bucketShards[account % BUCKETS];
+    }
+
+    private static long globalId(long shardId, int shard) {
+        return shardId * MAX_SHARDS + shard;
+    }
+
+    private static Card withGlobalId(Card card, int shard) {
+        if (card != null) {
+            card.setId(globalId(card.getId(), shard));
+        }
+        return card;
+    }
+
+    /**
+     * runs an operation on the shard of a card, holding the read lock of its bucket so it does not move meanwhile
+     * @param cardNumber
+     * @param work - receives the shard index
+     * @return the result of the work
+     */
+    private <T> T routed(CardNumber cardNumber, IntFunction<T> work) {
+        int bucket = bucketOf(cardNumber);
+        ReentrantReadWriteLock.ReadLock lock = bucketLocks[bucket].readLock();
+        lock.lock();
+        try {
+            return work.apply(bucketShards[bucket]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param cardNumbers
+     * @return the distinct buckets of the cards, sorted
+     */
+    private static int[] bucketsOf(List<CardNumber> cardNumbers) {
+        return cardNumbers.stream().mapToInt(ShardedCardStore::bucketOf).distinct().sorted().toArray();
+    }
+
+    private void lockBuckets(int[] buckets) {
+        for (int bucket : buckets) {
+            bucketLocks[bucket].readLock().lock();
+        }
+    }
+
+    private void unlockBuckets(int[] buckets) {
+        for (int bucket : buckets) {
+            bucketLocks[bucket].readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean checkCardNumber(CardNumber cardNumber) {
+        return routed(cardNumber, shard -> shards.get(shard).checkCardNumber(cardNumber));
+    }
+
+    @Override
+    public boolean createCard(CardNumber cardNumber, int pin, String accountNumber) {
+        return routed(cardNumber, shard -> shards.get(shard).createCard(cardNumber, pin, accountNumber));
+    }
+
+    /**
+     * inserts the cards chunk by chunk, each chunk split by shard. If a shard fails, the cards after the first
+     * one that was not inserted are deleted again, so the inserted cards are always the first ones of the list
+     */
+    @Override
+    public int createCards(List<Card> cards, int chunkSize) {
+        int inserted = 0;
+        while (inserted < cards.size()) {
+            List<Card> chunk = cards.subList(inserted, Math.min(cards.size(), inserted + chunkSize));
+            List<CardNumber> numbers = new ArrayList<>(chunk.size());
+            for (Card card : chunk) {
+                numbers.add(card.getNumber());
+            }
+            int[] buckets = bucketsOf(numbers);
+            int firstMissing = chunk.size();
+            lockBuckets(buckets);
+            try {
+                int[] route = bucketShards;
+                List<List<Integer>> byShard = new ArrayList<>();
+                for (int i = 0; i < shards.size(); i++) {
+                    byShard.add(new ArrayList<>());
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    byShard.get(route[bucketOf(numbers.get(i))]).add(i);
+                }
+                List<Integer> insertedLater = new ArrayList<>();
+                for (int shard = 0; shard < byShard.size(); shard++) {
+                    List<Integer> indexes = byShard.get(shard);
+                    if (indexes.isEmpty()) {
+                        continue;
+                    }
+                    List<Card> shardCards = new ArrayList<>(indexes.size());
+                    for (int index : indexes) {
+                        shardCards.add(chunk.get(index));
+                    }
+                    BankDb db = shards.get(shard);
+                    int done = db.createCards(shardCards, chunkSize);
+                    if (done < indexes.size()) {
+                        firstMissing = Math.min(firstMissing, indexes.get(done));
+                    }
+                    insertedLater.addAll(indexes.subList(0, done));
+                }
+                for (int index : insertedLater) {
+                    if (index > firstMissing) {
+                        shards.get(route[bucketOf(numbers.get(index))]).deleteAccount(numbers.get(index));
+                    }
+                }
+            } finally {
+                unlockBuckets(buckets);
+            }
+            inserted += firstMissing;
+            if (firstMissing < chunk.size()) {
+                break; // already reported by the shard
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * imports the cards chunk by chunk, each chunk split by shard. A shard failing stops the import
+     * after the chunk, the other shards keep the cards of it they inserted
+     */
+    @Override
+    public int importCards(List<Card> cards, int chunkSize, Consumer<Card> skipped) {
+        int inserted = 0;
+        for (int start = 0; start < cards.size(); start += chunkSize) {
+            List<Card> chunk = cards.subList(start, Math.min(cards.size(), start + chunkSize));
+            List<CardNumber> numbers = new ArrayList<>(chunk.size());
+            for (Card card : chunk) {
+                numbers.add(card.getNumber());
+            }
+            int[] buckets = bucketsOf(numbers);
+            boolean failed = false;
+            lockBuckets(buckets);
+            try {
+                int[] route = bucketShards;
+                List<List<Card>> byShard = new ArrayList<>();
+                for (int i = 0; i < shards.size(); i++) {
+                    byShard.add(new ArrayList<>());
+                }
+                for (Card card : chunk) {
+                    byShard.get(route[bucketOf(card.getNumber())]).add(card);
+                }
+                for (int shard = 0; shard < byShard.size(); shard++) {
+                    List<Card> shardCards = byShard.get(shard);
+                    if (shardCards.isEmpty()) {
+                        continue;
+                    }
+                    List<Card> shardSkipped = new ArrayList<>();
+                    int done = shards.get(shard).importCards(shardCards, chunkSize, shardSkipped::add);
+                    shardSkipped.forEach(skipped);
+                    inserted += done;
+                    failed |= done + shardSkipped.size() < shardCards.size();
+                }
+            } finally {
+                unlockBuckets(buckets);
+            }
+            if (failed) {
+                break; // already reported by the shard
+            }
+        }
+        return inserted;
+    }
+
+    @Override
+    public Card getCard(CardNumber cardNumber) {
+        return routed(cardNumber, shard -> withGlobalId(shards.get(shard).getCard(cardNumber), shard));
+    }
+
+    @Override
+    public String getAccount(String accountNumber) {
+        int first = shardOfAccount(accountNumber);
+        if (first != NO_SHARD) {
+            String account = shards.get(first).getAccount(accountNumber);
+            if (account.length() > 0) {
+                return account;
+            }
+        }
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard != first) {
+                String account = shards.get(shard).getAccount(accountNumber);
+                if (account.length() > 0) {
+                    return account;
+                }
+            }
+        }
+        return "";
+    }
+
+    @Override
+    public Card getCardFromAccount(String accountNumber) {
+        int first = shardOfAccount(accountNumber);
+        if (first != NO_SHARD) {
+            Card card = shards.get(first).getCardFromAccount(accountNumber);
+            if (card != null) {
+                return withGlobalId(card, first);
+            }
+        }
+        for (int shard = 0; shard < shards.size(); shard++) {
+            if (shard != first) {
+                Card card = shards.get(shard).getCardFromAccount(accountNumber);
+                if (card != null) {
+                    return withGlobalId(card, shard);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean updateBalance(CardNumber cardNumber, long amount) {
+        return routed(cardNumber, shard -> shards.get(shard).updateBalance(cardNumber, amount));
+    }
+
+    @Override
+    public boolean transfer(CardNumber originCard, CardNumber receptor, long amount) {
+        return transfer(originCard, receptor, amount, false) == TransferResult.SUCCESS;
+    }
+
+    @Override
+    public TransferResult transferIfFunds(CardNumber originCard, CardNumber receptor, long amount) {
+        return transfer(originCard, receptor, amount, true);
+    }
+
+    private TransferResult transfer(CardNumber originCard, CardNumber receptor, long amount, boolean checkFunds) {
+        int[] buckets = bucketsOf(Arrays.asList(originCard, receptor));
+        lockBuckets(buckets);
+        try {
+            int originShard = bucketShards[bucketOf(originCard)];
+            int receptorShard = bucketShards[bucketOf(receptor)];
+            if (originShard != receptorShard) {
+                return transferBetweenShards(originCard, originShard, receptor, receptorShard, amount, checkFunds);
+            }
+            BankDb db = shards.get(originShard);
+            if (checkFunds) {
+                return db.transferIfFunds(originCard, receptor, amount);
+            }
+            return db.transfer(originCard, receptor, amount) ? TransferResult.SUCCESS : TransferResult.FAILED;
+        } finally {
+            unlockBuckets(buckets);
+        }
+    }
+
+    /**
+     * two phase transfer, the buckets of both cards are locked by the caller
+     * @return the outcome. SUCCESS once the commit decision is logged, even if a shard fails to finish it
+     * (it is finished on the next start)
+     */
+    private TransferResult transferBetweenShards(CardNumber originCard, int originShard, CardNumber receptor,
+                                                 int receptorShard, long amount, boolean checkFunds) {
+        long start = System.nanoTime();
+        try {
+            long transferId = logTransfer(originCard, originShard, receptor, receptorShard, amount);
+            if (transferId < 0) {
+                transferBetweenShardsOp.error();
+                return TransferResult.FAILED;
+            }
+            long time = System.currentTimeMillis();
+            // same checks, in the same order, as BankDb.transferIfFunds: origin, funds, receptor
+            TransferResult result = shards.get(originShard)
+                    .prepareTransferOut(transferId, originCard, receptor, amount, checkFunds, time);
+            if (result == TransferResult.SUCCESS) {
+                result = shards.get(receptorShard).prepareTransferIn(transferId, receptor, originCard, amount, time);
+            }
+            boolean committed = result == TransferResult.SUCCESS && setTransferState(transferId, COMMITTED);
+            if (result == TransferResult.SUCCESS && !committed) {
+                result = TransferResult.FAILED;
+            }
+            if (result == TransferResult.FAILED) {
+                transferBetweenShardsOp.error();
+            }
+            finishTransfer(transferId, originShard, receptorShard, committed);
+            return result;
+        } finally {
+            transferBetweenShardsOp.record(start);
+        }
+    }
+
+    /**
+     * second phase on both shards, then the transfer leaves the log
+     * @return true if it is finished, false if it stays in the log for the next start
+     */
+    private boolean finishTransfer(long transferId, int originShard, int receptorShard, boolean commit) {
+        boolean finished = shards.get(receptorShard).finishTransfer(transferId, commit);
+        finished &= shards.get(originShard).finishTransfer(transferId, commit);
+        if (!finished) {
+            System.out.println("transfer " + transferId + " is not finished, it is retried on the next start");
+            return false;
+        }
+        try (Connection con = directory.getConnection();
+             PreparedStatement statement = con.prepareStatement("DELETE FROM transfer_log WHERE id = ?")) {
+            statement.setLong(1, transferId);
+            statement.executeUpdate();
+            return true;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while removing transfer " + transferId + " from the recovery log");
+            return false;
+        }
+    }
+
+    /**
+     * @return the id of the transfer in the recovery log, -1 if it could not be written
+     */
+    private long logTransfer(CardNumber originCard, int originShard, CardNumber receptor, int receptorShard,
+                             long amount) {
+        String query = "INSERT INTO transfer_log (origin, origin_shard, receptor, receptor_shard, amount, state) "
+                + "VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection con = directory.getConnection();
+             PreparedStatement statement = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setLong(1, originCard.getValue());
+            statement.setInt(2, originShard);
+            statement.setLong(3, receptor.getValue());
+            statement.setInt(4, receptorShard);
+            statement.setLong(5, amount);
+            statement.setString(6, PREPARED);
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                return keys.next() ? keys.getLong(1) : -1;
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while writing the recovery log");
+            return -1;
+        }
+    }
+
+    private boolean setTransferState(long transferId, String state) {
+        try (Connection con = directory.getConnection();
+             PreparedStatement statement = con.prepareStatement("UPDATE transfer_log SET state = ? WHERE id = ?")) {
+            statement.setString(1, state);
+            statement.setLong(2, transferId);
+            return statement.executeUpdate() == 1;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while writing the recovery log");
+            return false;
+        }
+    }
+
+    /**
+     * Operations whose cards are on one shard are applied with that shard's applyBatch, a transfer between
+     * shards first applies what is queued before it, so operations on the same card keep their order
+     */
+    @Override
+    public TransferResult[] applyBatch(List<BalanceOperation> operations) {
+        TransferResult[] results = new TransferResult[operations.size()];
+        List<CardNumber> cards = new ArrayList<>();
+        for (BalanceOperation operation : operations) {
+            cards.add(operation.getReceptorCard());
+            if (operation.getOriginCard() != null) {
+                cards.add(operation.getOriginCard());
+            }
+        }
+        int[] buckets = bucketsOf(cards);
+        lockBuckets(buckets);
+        try {
+            int[] route = bucketShards;
+            List<List<Integer>> queued = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                queued.add(new ArrayList<>());
+            }
+            for (int i = 0; i < operations.size(); i++) {
+                BalanceOperation operation = operations.get(i);
+                int receptorShard = route[bucketOf(operation.getReceptorCard())];
+                int originShard = operation.getOriginCard() == null
+                        ? receptorShard : route[bucketOf(operation.getOriginCard())];
+                if (originShard == receptorShard) {
+                    queued.get(receptorShard).add(i);
+                } else {
+                    applyQueued(operations, queued, results);
+                    results[i] = transferBetweenShards(operation.getOriginCard(), originShard,
+                            operation.getReceptorCard(), receptorShard, operation.getAmount(), true);
+                }
+            }
+            applyQueued(operations, queued, results);
+        } finally {
+            unlockBuckets(buckets);
+        }
+        return results;
+    }
+
+    private void applyQueued(List<BalanceOperation> operations, List<List<Integer>> queued, TransferResult[] results) {
+        for (int shard = 0; shard < queued.size(); shard++) {
+            List<Integer> indexes = queued.get(shard);
+            if (indexes.isEmpty()) {
+                continue;
+            }
+            List<BalanceOperation> batch = new ArrayList<>(indexes.size());
+            for (int index : indexes) {
+                batch.add(operations.get(index));
+            }
+            TransferResult[] shardResults = shards.get(shard).applyBatch(batch);
+            for (int i = 0; i < indexes.size(); i++) {
+                results[indexes.get(i)] = shardResults[i];
+            }
+            indexes.clear();
+        }
+    }
+
+    @Override
+    public String deleteAccount(CardNumber cardNumber) {
+        return routed(cardNumber, shard -> shards.get(shard).deleteAccount(cardNumber));
+    }
+
+    /**
+     * reads a page from every shard and keeps the lowest ids. A bucket moving meanwhile may make
+     * its cards show twice or not at all, since they get new ids
+     */
+    @Override
+    public List<Card> getCardPage(long afterId, int pageSize) {
+        List<Card> page = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            // the ids of this shard after afterId are the ones with a shard id after this one
+            long shardAfterId = Math.floorDiv(afterId - shard, MAX_SHARDS);
+            List<Card> shardPage = shards.get(shard).getCardPage(shardAfterId, pageSize);
+            if (shardPage == null) {
+                return null;
+            }
+            for (Card card : shardPage) {
+                page.add(withGlobalId(card, shard));
+            }
+        }
+        page.sort(Comparator.comparingLong(Card::getId));
+        return new ArrayList<>(page.subList(0, Math.min(pageSize, page.size())));
+    }
+
+    @Override
+    public long countCards() {
+        long count = 0;
+        for (BankDb shard : shards) {
+            long cards = shard.countCards();
+            if (cards < 0) {
+                return -1;
+            }
+            count += cards;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean forEachCardAndAccount(BiConsumer<CardNumber, String> consumer) {
+        for (BankDb shard : shards) {
+            if (!shard.forEachCardAndAccount(consumer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<Transaction> getStatementPage(CardNumber cardNumber, long afterTime, long afterId, long toTime,
+                                              int pageSize) {
+        return routed(cardNumber,
+                shard -> shards.get(shard).getStatementPage(cardNumber, afterTime, afterId, toTime, pageSize));
+    }
+
+    /**
+     * Adds a shard and moves buckets to it until every shard owns about the same number of buckets.
+     * The store stays in use, only operations on the bucket being moved wait for it
+     * @param url - file of the new shard
+     * @return true if the shard was added and every move finished, false if not
+     * (a failed move leaves its bucket where it was)
+     */
+    public boolean addShard(String url) {
+        synchronized (rebalanceLock) {
+            int index = shards.size();
+            if (index >= MAX_SHARDS) {
+                System.out.println("the store already has " + MAX_SHARDS + " shards");
+                return false;
+            }
+            BankDb shard = new BankDb(url, poolSize, null, profile);
+            try (Connection con = directory.getConnection();
+                 PreparedStatement statement = con.prepareStatement("INSERT INTO shard (id, url) VALUES (?, ?)")) {
+                statement.setInt(1, index);
+                statement.setString(2, url);
+                statement.executeUpdate();
+            } catch (SQLException se) {
+                se.printStackTrace();
+                System.out.println("failed while adding shard " + url);
+                shard.close();
+                return false;
+            }
+            shards.add(shard);
+            return rebalance();
+        }
+    }
+
+    /**
+     * moves buckets from the shards that own more than their share to the ones that own less
+     * @return true if every move finished
+     */
+    private boolean rebalance() {
+        int count = shards.size();
+        int[] route = bucketShards;
+        int[] owned = new int[count];
+        for (int shard : route) {
+            owned[shard]++;
+        }
+        Set<Integer> pending = pendingTransferBuckets();
+        if (pending == null) {
+            return false;
+        }
+        Deque<Integer> surplus = new ArrayDeque<>();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            int shard = route[bucket];
+            if (owned[shard] > share(shard, count) && !pending.contains(bucket)) {
+                surplus.add(bucket);
+                owned[shard]--;
+            }
+        }
+        for (int shard = 0; shard < count; shard++) {
+            while (owned[shard] < share(shard, count) && !surplus.isEmpty()) {
+                if (!moveBucket(surplus.poll(), shard)) {
+                    return false;
+                }
+                owned[shard]++;
+            }
+        }
+        return true;
+    }
+
+    private static int share(int shard, int count) {
+        return BUCKETS / count + (shard < BUCKETS % count ? 1 : 0);
+    }
+
+    /**
+     * copies the cards and history of a bucket to another shard, switches the bucket to it and deletes
+     * them from the old one. Each step is recorded in the directory first, so a crash in between is
+     * cleaned up on the next start
+     * @param bucket
+     * @param to - the new shard
+     * @return true if the bucket moved, false if it stayed where it was (also when it has a transfer to finish)
+     */
+    private boolean moveBucket(int bucket, int to) {
+        long start = System.nanoTime();
+        ReentrantReadWriteLock.WriteLock lock = bucketLocks[bucket].writeLock();
+        lock.lock();
+        try {
+            int from = bucketShards[bucket];
+            if (from == to) {
+                return true;
+            }
+            // running transfers hold the bucket lock, so a transfer in the log now is one left unfinished
+            Set<Integer> pending = pendingTransferBuckets();
+            if (pending == null || pending.contains(bucket)) {
+                System.out.println("bucket " + bucket + " has an unfinished transfer, it is not moved");
+                moveBucketOp.error();
+                return false;
+            }
+            BankDb source = shards.get(from);
+            BankDb target = shards.get(to);
+            if (!saveBucket(bucket, from, to, NO_SHARD)) {
+                moveBucketOp.error();
+                return false;
+            }
+            List<Card> cards = source.getBucketCards(bucket);
+            boolean copied = cards != null
+                    && target.importCards(cards, MOVE_CHUNK_SIZE, card -> { }) == cards.size()
+                    && copyHistory(source, target, cards);
+            if (!copied || !saveBucket(bucket, to, NO_SHARD, from)) {
+                // the bucket stays on its old shard, the copies are dropped now or on the next start
+                if (target.deleteBucket(bucket)) {
+                    saveBucket(bucket, from, NO_SHARD, NO_SHARD);
+                }
+                moveBucketOp.error();
+                return false;
+            }
+            int[] route = bucketShards.clone();
+            route[bucket] = to;
+            bucketShards = route;
+            if (source.deleteBucket(bucket)) {
+                saveBucket(bucket, to, NO_SHARD, NO_SHARD);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            moveBucketOp.record(start);
+        }
+    }
+
+    /**
+     * @return the buckets of the cards of every transfer in the recovery log, null if it could not be read
+     */
+    private Set<Integer> pendingTransferBuckets() {
+        Set<Integer> buckets = new HashSet<>();
+        try (Connection con = directory.getConnection();
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT origin, receptor FROM transfer_log")) {
+            while (rs.next()) {
+                buckets.add(bucketOf(CardNumber.of(rs.getLong("origin"))));
+                buckets.add(bucketOf(CardNumber.of(rs.getLong("receptor"))));
+            }
+            return buckets;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while reading the shard recovery log");
+            return null;
+        }
+    }
+
+    private static boolean copyHistory(BankDb source, BankDb target, List<Card> cards) {
+        for (Card card : cards) {
+            long afterTime = Long.MIN_VALUE;
+            long afterId = -1;
+            List<Transaction> page;
+            do {
+                page = source.getStatementPage(card.getNumber(), afterTime, afterId, Long.MAX_VALUE, HISTORY_PAGE_SIZE);
+                if (page == null || !target.importHistory(page)) {
+                    return false;
+                }
+                if (!page.isEmpty()) {
+                    afterTime = page.get(page.size() - 1).getTime();
+                    afterId = page.get(page.size() - 1).getId();
+                }
+            } while (page.size() == HISTORY_PAGE_SIZE);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the bucket row was written
+     */
+    private boolean saveBucket(int bucket, int shard, int target, int previous) {
+        String query = "UPDATE bucket SET shard = ?, target = ?, previous = ? WHERE bucket = ?";
+        try (Connection con = directory.getConnection();
+             PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setInt(1, shard);
+            statement.setObject(2, target == NO_SHARD ? null : target);
+            statement.setObject(3, previous == NO_SHARD ? null : previous);
+            statement.setInt(4, bucket);
+            return statement.executeUpdate() == 1;
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("failed while writing the bucket table");
+            return false;
+        }
+    }
+
+    /**
+     * @return the latency and error counters of transfers between shards, bucket moves and recovery,
+     * each shard has its own metrics
+     */
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        for (BankDb shard : shards) {
+            shard.close();
+        }
+        directory.close();
+    }
+}
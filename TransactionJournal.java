@@ -0,0 +1,333 @@
+package banking;
+
+import banking.dto.CardNumber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only journal of money movements: incomes, transfers and closed cards.
+ * Records have a fixed size and are written sequentially into memory mapped segment files
+ * of a fixed number of records. Every record carries its sequence number and a CRC,
+ * so a torn write at the end of the journal is detected and ignored when it is opened again.
+ *
+ * When a segment is full the journal rolls over to a new one, named after its first sequence
+ * number. Segments whose records are all older than a checkpoint can be deleted with compact().
+ *
+ * Card numbers are stored as their long value.
+ * Not thread safe, callers serialize appends.
+ */
+public class TransactionJournal {
+
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 65_536;
+    static final int RECORD_SIZE = 48;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long NO_CARD = -1;
+
+    // record layout, every field is at a fixed offset
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int ORIGIN_OFFSET = 16;
+    private static final int RECEPTOR_OFFSET = 24;
+    private static final int AMOUNT_OFFSET = 32;
+    private static final int TYPE_OFFSET = 40;
+    private static final int CRC_OFFSET = 44;
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final List<Long> segments = new ArrayList<>(); // first sequence number of each segment, in order
+    private final CRC32C crc = new CRC32C();
+    private MappedByteBuffer active;
+    private long lastSequence;
+
+    /**
+     * Opens the journal in a directory, creating it if needed, and finds the end of the last segment
+     * @param directory - where the segment files are
+     * @param recordsPerSegment - records per segment file
+     * @param minimumSequence - sequence numbers already used elsewhere (for example by a checkpoint),
+     *                        new records are numbered after it even if the segments were lost
+     * @throws IOException if the directory or the segments can not be read
+     */
+    public TransactionJournal(Path directory, int recordsPerSegment, long minimumSequence) throws IOException {
+        if (recordsPerSegment < 1) {
+            throw new IllegalArgumentException("a segment should hold at least one record");
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+
+        lastSequence = minimumSequence;
+        if (!segments.isEmpty()) {
+            long first = segments.get(segments.size() - 1);
+            active = map(first);
+            int valid = scan(active, first, null);
+            long end = first + valid - 1;
+            if (end >= lastSequence) {
+                lastSequence = end;
+                active.position(valid * RECORD_SIZE);
+                truncate(active, valid);
+            } else {
+                // the segments are behind the checkpoint, start a new one after it
+                active = null;
+            }
+        }
+        if (active == null) {
+            roll();
+        }
+    }
+
+    /**
+     * appends a record, it is durable once force() returns
+     * @param type
+     * @param originCard - paying card of a transfer, null otherwise
+     * @param receptorCard - card that gets the money, or the closed card
+     * @param amount
+     * @return the sequence number of the record
+     * @throws IOException if a new segment was needed and it could not be created
+     */
+    public long append(Type type, CardNumber originCard, CardNumber receptorCard, long amount) throws IOException {
+        if (!active.hasRemaining()) {
+            roll();
+        }
+        long sequence = lastSequence + 1;
+        int start = active.position();
+        active.putLong(start + SEQUENCE_OFFSET, sequence);
+        active.putLong(start + TIMESTAMP_OFFSET, System.currentTimeMillis());
+        active.putLong(start + ORIGIN_OFFSET, originCard == null ? NO_CARD : originCard.getValue());
+        active.putLong(start + RECEPTOR_OFFSET, receptorCard.getValue());
+        active.putLong(start + AMOUNT_OFFSET, amount);
+        active.putInt(start + TYPE_OFFSET, type.ordinal());
+        active.putInt(start + CRC_OFFSET, checksum(active, start));
+        active.position(start + RECORD_SIZE);
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * writes the appended records to disk
+     */
+    public void force() {
+        active.force();
+    }
+
+    /**
+     * reads every record after a sequence number, oldest first
+     * @param afterSequence - records up to this one are skipped
+     * @param consumer
+     * @throws IOException if a segment can not be read
+     */
+    public void replay(long afterSequence, Consumer<Record> consumer) throws IOException {
+        for (int i = 0; i < segments.size(); i++) {
+            long first = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            if (!last && segments.get(i + 1) <= afterSequence + 1) {
+                continue; // every record of this segment is older
+            }
+            MappedByteBuffer segment = last ? active : map(first);
+            scan(segment.duplicate(), first, record -> {
+                if (record.sequence > afterSequence) {
+                    consumer.accept(record);
+                }
+            });
+        }
+    }
+
+    /**
+     * deletes the segments that only have records up to a checkpoint, the active one is kept
+     * @param checkpointSequence - last sequence number already applied to the database
+     * @return how many segments were deleted
+     */
+    public int compact(long checkpointSequence) {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.get(1) <= checkpointSequence + 1) {
+            try {
+                Files.deleteIfExists(segmentPath(segments.get(0)));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("failed while deleting an old journal segment");
+                break;
+            }
+            segments.remove(0);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * forces the pending records to disk, the journal can not be used after this
+     */
+    public void close() {
+        if (active != null) {
+            active.force();
+            active = null;
+        }
+    }
+
+    /**
+     * forces the active segment and starts a new one after the last sequence number
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        long first = lastSequence + 1;
+        active = map(first);
+        segments.add(first);
+    }
+
+    /**
+     * maps a segment file, the file is created with its full size if it does not exist
+     */
+    private MappedByteBuffer map(long firstSequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(firstSequence), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * clears what is left after the last valid record (a torn record and anything after it),
+     * so an old record can not look like a continuation of the new ones
+     */
+    private void truncate(MappedByteBuffer segment, int validRecords) {
+        boolean cleared = false;
+        for (int start = validRecords * RECORD_SIZE; start < segment.capacity(); start += RECORD_SIZE) {
+            if (segment.getLong(start + SEQUENCE_OFFSET) == 0 && segment.getInt(start + CRC_OFFSET) == 0) {
+                break; // never written
+            }
+            for (int i = 0; i < RECORD_SIZE; i += 8) {
+                segment.putLong(start + i, 0);
+            }
+            cleared = true;
+        }
+        if (cleared) {
+            segment.force();
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * reads the valid records of a segment, it stops at the first empty, torn or out of order record
+     * @param segment
+     * @param firstSequence - sequence number the first record should have
+     * @param consumer - gets each record, null to only count them
+     * @return how many valid records the segment has
+     */
+    private int scan(ByteBuffer segment, long firstSequence, Consumer<Record> consumer) {
+        int records = segment.capacity() / RECORD_SIZE;
+        for (int i = 0; i < records; i++) {
+            int start = i * RECORD_SIZE;
+            int typeIndex = segment.getInt(start + TYPE_OFFSET);
+            if (segment.getLong(start + SEQUENCE_OFFSET) != firstSequence + i
+                    || segment.getInt(start + CRC_OFFSET) != checksum(segment, start)
+                    || typeIndex < 0 || typeIndex >= Type.values().length) {
+                return i;
+            }
+            if (consumer != null) {
+                long origin = segment.getLong(start + ORIGIN_OFFSET);
+                consumer.accept(new Record(firstSequence + i, segment.getLong(start + TIMESTAMP_OFFSET),
+                        Type.values()[typeIndex], origin == NO_CARD ? null : CardNumber.of(origin),
+                        CardNumber.of(segment.getLong(start + RECEPTOR_OFFSET)),
+                        segment.getLong(start + AMOUNT_OFFSET)));
+            }
+        }
+        return records;
+    }
+
+    private int checksum(ByteBuffer segment, int start) {
+        crc.reset();
+        crc.update(segment.duplicate().position(start).limit(start + CRC_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    public enum Type {
+        INCOME,
+        TRANSFER,
+        CLOSE
+    }
+
+    /**
+     * One journal entry
+     */
+    public static class Record {
+        private final long sequence;
+        private final long timestamp;
+        private final Type type;
+        private final CardNumber originCard;
+        private final CardNumber receptorCard;
+        private final long amount;
+
+        Record(long sequence, long timestamp, Type type, CardNumber originCard, CardNumber receptorCard, long amount) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.originCard = originCard;
+            this.receptorCard = receptorCard;
+            this.amount = amount;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the paying card of a transfer, null for other records
+         */
+        public CardNumber getOriginCard() {
+            return originCard;
+        }
+
+        /**
+         * @return the card that gets the money, or the closed card
+         */
+        public CardNumber getReceptorCard() {
+            return receptorCard;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+    }
+}
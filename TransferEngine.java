@@ -0,0 +1,242 @@
+package banking;
+
+import banking.dto.CardNumber;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Striped per card locking for balance changes.
+ * Every card maps to one of a fixed set of locks, so operations on unrelated cards
+ * run in parallel while operations on the same card are serialized. Operations on two cards
+ * take both locks in stripe order, so two transfers in opposite directions can not deadlock.
+ *
+ * It also counts transfers, lock contention and lock wait time.
+ */
+public class TransferEngine {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantLock[] stripes;
+    private final long startedAt = System.nanoTime();
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder insufficientFunds = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    /**
+     * @param stripeCount - number of locks, rounded up to a power of two
+     */
+    public TransferEngine(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * runs an action holding the lock of a card
+     * @param cardNumber
+     * @param action
+     * @return the result of the action
+     */
+    public <T> T withCardLock(CardNumber cardNumber, Supplier<T> action) {
+        ReentrantLock lock = stripes[stripe(cardNumber)];
+        acquire(lock);
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * runs an action holding the locks of two cards, taken in stripe order
+     * @param firstCard
+     * @param secondCard
+     * @param action
+     * @return the result of the action
+     */
+    public <T> T withCardLocks(CardNumber firstCard, CardNumber secondCard, Supplier<T> action) {
+        int first = stripe(firstCard);
+        int second = stripe(secondCard);
+        if (first == second) {
+            return withCardLock(firstCard, action);
+        }
+        ReentrantLock lower = stripes[Math.min(first, second)];
+        ReentrantLock higher = stripes[Math.max(first, second)];
+        acquire(lower);
+        try {
+            acquire(higher);
+            try {
+                return action.get();
+            } finally {
+                higher.unlock();
+            }
+        } finally {
+            lower.unlock();
+        }
+    }
+
+    /**
+     * runs an action holding the locks of many cards, taken in stripe order.
+     * Used to write a whole batch of balance changes at once
+     * @param cardNumbers
+     * @param action
+     * @return the result of the action
+     */
+    public <T> T withCardLocks(Collection<CardNumber> cardNumbers, Supplier<T> action) {
+        boolean[] needed = new boolean[stripes.length];
+        for (CardNumber cardNumber : cardNumbers) {
+            needed[stripe(cardNumber)] = true;
+        }
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                if (needed[locked]) {
+                    acquire(stripes[locked]);
+                }
+            }
+            return action.get();
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * records the outcome of a transfer in the statistics
+     * @param result
+     */
+    public void recordTransfer(TransferResult result) {
+        transfers.increment();
+        switch (result) {
+            case SUCCESS:
+                succeeded.increment();
+                break;
+            case INSUFFICIENT_FUNDS:
+                insufficientFunds.increment();
+                break;
+            default:
+                failed.increment();
+                break;
+        }
+    }
+
+    private void acquire(ReentrantLock lock) {
+        lockAcquisitions.increment();
+        if (lock.tryLock()) {
+            return;
+        }
+        contendedAcquisitions.increment();
+        long start = System.nanoTime();
+        lock.lock();
+        lockWaitNanos.add(System.nanoTime() - start);
+    }
+
+    private int stripe(CardNumber cardNumber) {
+        int hash = cardNumber.hashCode();
+        hash ^= hash >>> 16; // spread the bits, the table size is a power of two
+        return hash & (stripes.length - 1);
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * @return a snapshot of the transfer and contention statistics
+     */
+    public Stats getStats() {
+        return new Stats(transfers.sum(), succeeded.sum(), insufficientFunds.sum(), failed.sum(),
+                lockAcquisitions.sum(), contendedAcquisitions.sum(), lockWaitNanos.sum(),
+                System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Transfer engine statistics at a given point in time
+     */
+    public static class Stats {
+        private final long transfers;
+        private final long succeeded;
+        private final long insufficientFunds;
+        private final long failed;
+        private final long lockAcquisitions;
+        private final long contendedAcquisitions;
+        private final long lockWaitNanos;
+        private final long uptimeNanos;
+
+        Stats(long transfers, long succeeded, long insufficientFunds, long failed, long lockAcquisitions,
+              long contendedAcquisitions, long lockWaitNanos, long uptimeNanos) {
+            this.transfers = transfers;
+            this.succeeded = succeeded;
+            this.insufficientFunds = insufficientFunds;
+            this.failed = failed;
+            this.lockAcquisitions = lockAcquisitions;
+            this.contendedAcquisitions = contendedAcquisitions;
+            this.lockWaitNanos = lockWaitNanos;
+            this.uptimeNanos = uptimeNanos;
+        }
+
+        public long getTransfers() {
+            return transfers;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getInsufficientFunds() {
+            return insufficientFunds;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getLockAcquisitions() {
+            return lockAcquisitions;
+        }
+
+        public long getContendedAcquisitions() {
+            return contendedAcquisitions;
+        }
+
+        public long getLockWaitNanos() {
+            return lockWaitNanos;
+        }
+
+        /**
+         * @return transfers per second since the engine was created
+         */
+        public double getThroughput() {
+            return uptimeNanos == 0 ? 0 : transfers / (uptimeNanos / 1e9);
+        }
+
+        /**
+         * @return fraction of lock acquisitions that had to wait
+         */
+        public double getContentionRate() {
+            return lockAcquisitions == 0 ? 0 : contendedAcquisitions / (double) lockAcquisitions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("transfers=%d succeeded=%d insufficientFunds=%d failed=%d throughput=%.1f/s "
+                            + "contention=%.2f%% lockWait=%dms",
+                    transfers, succeeded, insufficientFunds, failed, getThroughput(), getContentionRate() * 100,
+                    TimeUnit.NANOSECONDS.toMillis(lockWaitNanos));
+        }
+    }
+}
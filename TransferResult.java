@@ -0,0 +1,13 @@
+package banking;
+
+/**
+ * Outcome of a money transfer
+ */
+public enum TransferResult {
+    SUCCESS,
+    INSUFFICIENT_FUNDS,
+    NO_SUCH_CARD,
+    SAME_CARD,
+    INVALID_AMOUNT,
+    FAILED
+}
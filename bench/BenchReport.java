@@ -0,0 +1,142 @@
+package banking.bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects benchmark results and writes them as CSV or JSON,
+ * so runs can be compared by scripts
+ */
+public class BenchReport {
+
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * adds a result computed from latency samples
+     * @param benchmark - benchmark name
+     * @param operation - measured operation
+     * @param dataset - number of cards in the database
+     * @param threads - concurrent callers
+     * @param operations - operations done by all threads
+     * @param elapsedNanos - wall time of the run
+     * @param samples - latency of a sample of the operations, in nanoseconds
+     * @return the result added
+     */
+    public synchronized Result add(String benchmark, String operation, long dataset, int threads,
+                                   long operations, long elapsedNanos, long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        Result result = new Result(benchmark, operation, dataset, threads, operations,
+                operations / (elapsedNanos / 1e9), percentile(sorted, 0.50), percentile(sorted, 0.99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+        results.add(result);
+        return result;
+    }
+
+    public synchronized List<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * writes every result to a file, the format is picked from the extension (.json or .csv)
+     * @param path
+     * @throws IOException
+     */
+    public void write(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+            if (path.endsWith(".json")) {
+                writeJson(writer);
+            } else {
+                writeCsv(writer);
+            }
+        }
+    }
+
+    public synchronized void writeCsv(PrintWriter writer) {
+        writer.println(Result.CSV_HEADER);
+        for (Result result : results) {
+            writer.println(result.toCsv());
+        }
+        writer.flush();
+    }
+
+    public synchronized void writeJson(PrintWriter writer) {
+        writer.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            writer.print("  " + results.get(i).toJson());
+            writer.println(i < results.size() - 1 ? "," : "");
+        }
+        writer.println("]");
+        writer.flush();
+    }
+
+    public void printCsv(PrintStream out) {
+        writeCsv(new PrintWriter(out));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    /**
+     * One measured operation
+     */
+    public static class Result {
+        static final String CSV_HEADER = "benchmark,operation,dataset,threads,operations,ops_per_sec,p50_us,p99_us,max_us";
+
+        private final String benchmark;
+        private final String operation;
+        private final long dataset;
+        private final int threads;
+        private final long operations;
+        private final double opsPerSecond;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long maxNanos;
+
+        Result(String benchmark, String operation, long dataset, int threads, long operations,
+               double opsPerSecond, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.benchmark = benchmark;
+            this.operation = operation;
+            this.dataset = dataset;
+            this.threads = threads;
+            this.operations = operations;
+            this.opsPerSecond = opsPerSecond;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public double getOpsPerSecond() {
+            return opsPerSecond;
+        }
+
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%.1f,%.2f,%.2f,%.2f", benchmark, operation, dataset,
+                    threads, operations, opsPerSecond, p50Nanos / 1000.0, p99Nanos / 1000.0, maxNanos / 1000.0);
+        }
+
+        public String toJson() {
+            return String.format(Locale.ROOT, "{\"benchmark\": \"%s\", \"operation\": \"%s\", \"dataset\": %d, "
+                            + "\"threads\": %d, \"operations\": %d, \"opsPerSecond\": %.1f, \"p50Micros\": %.2f, "
+                            + "\"p99Micros\": %.2f, \"maxMicros\": %.2f}",
+                    benchmark, operation, dataset, threads, operations, opsPerSecond,
+                    p50Nanos / 1000.0, p99Nanos / 1000.0, maxNanos / 1000.0);
+        }
+    }
+}
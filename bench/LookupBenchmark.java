@@ -0,0 +1,137 @@
+package banking.bench;
+
+import banking.BankDb;
+import banking.dto.CardNumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures card and account lookup latency for growing database sizes.
+ * With the unique indexes lookups are B-tree seeks, so the latency should stay
+ * roughly flat when the number of cards grows.
+ *
+ * Usage: LookupBenchmark [comma separated sizes] [lookups per size]
+ * for example: LookupBenchmark 10000,100000,1000000,10000000 20000
+ */
+public class LookupBenchmark {
+
+    private static final long BIN = 400000L;
+
+    public static void main(String[] args) throws Exception {
+        String sizesArg = args.length > 0 ? args[0] : "10000,100000,1000000";
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        System.out.println("cards,operation,lookups,avg_us,p50_us,p99_us");
+        for (String size : sizesArg.split(",")) {
+            run(Integer.parseInt(size.trim()), lookups);
+        }
+    }
+
+    private static void run(int cards, int lookups) throws SQLException, IOException {
+        File file = File.createTempFile("bank-lookup-bench", ".db");
+        file.deleteOnExit();
+        try {
+            BankDb db = new BankDb(file.getAbsolutePath()); // creates the schema through the migrations
+            populate(file.getAbsolutePath(), cards);
+
+            Random random = new Random(42);
+            long[] getCardTimes = new long[lookups];
+            long[] getAccountTimes = new long[lookups];
+            long[] missingTimes = new long[lookups];
+
+            // warm up the page cache and the JIT
+            for (int i = 0; i < Math.min(lookups, 5000); i++) {
+                db.getCard(cardNumber(random.nextInt(cards)));
+            }
+
+            for (int i = 0; i < lookups; i++) {
+                int index = random.nextInt(cards);
+
+                long start = System.nanoTime();
+                db.getCard(cardNumber(index));
+                getCardTimes[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                db.getAccount(accountNumber(index));
+                getAccountTimes[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                db.getCard(cardNumber(cards + index));
+                missingTimes[i] = System.nanoTime() - start;
+            }
+
+            print(cards, "getCard", getCardTimes);
+            print(cards, "getAccount", getAccountTimes);
+            print(cards, "getCard(missing)", missingTimes);
+            db.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * inserts the cards with a raw connection in big transactions,
+     * much faster than going through BankDb one card at a time
+     */
+    private static void populate(String path, int cards) throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + path)) {
+            con.setAutoCommit(false);
+            try (PreparedStatement card = con.prepareStatement(
+                    "INSERT INTO card (id, number, pin, balance) VALUES (?, ?, ?, ?)");
+                 PreparedStatement account = con.prepareStatement(
+                         "INSERT INTO account (id, account) VALUES (?, ?)")) {
+                for (int i = 0; i < cards; i++) {
+                    card.setInt(1, i);
+                    card.setLong(2, cardNumber(i).getValue());
+                    card.setInt(3, 1234);
+                    card.setLong(4, 0);
+                    card.addBatch();
+
+                    account.setInt(1, i);
+                    account.setString(2, accountNumber(i));
+                    account.addBatch();
+
+                    if (i % 10000 == 9999) {
+                        card.executeBatch();
+                        account.executeBatch();
+                        con.commit();
+                    }
+                }
+                card.executeBatch();
+                account.executeBatch();
+                con.commit();
+            }
+        }
+    }
+
+    /**
+     * the numbers do not need a valid checksum for lookups, a fixed trailing digit is enough
+     */
+    private static CardNumber cardNumber(int index) {
+        return CardNumber.of((BIN * 1_000_000_000L + 100_000_000L + index) * 10);
+    }
+
+    private static String accountNumber(int index) {
+        return Integer.toString(100_000_000 + index);
+    }
+
+    private static void print(int cards, String operation, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+        System.out.println(String.format("%d,%s,%d,%.2f,%.2f,%.2f", cards, operation, sorted.length,
+                total / (double) sorted.length / 1000.0,
+                sorted[sorted.length / 2] / 1000.0,
+                sorted[(int) (sorted.length * 0.99)] / 1000.0));
+    }
+}
@@ -0,0 +1,118 @@
+package banking.bench;
+
+import banking.Luhn;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the Luhn engine with the string based implementation BankService used before it.
+ * For each variant it reports the time per card number and the bytes allocated per card number
+ * (when the JVM exposes per thread allocation counters).
+ *
+ * Usage: LuhnBenchmark [card numbers] [rounds]
+ */
+public class LuhnBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Random random = new Random(42);
+        String[] numbers = new String[count];
+        long[] longNumbers = new long[count];
+        for (int i = 0; i < count; i++) {
+            long payload = 400000L * 1_000_000_000L + 100_000_000 + random.nextInt(900_000_000);
+            // roughly one in ten numbers ends up valid
+            long number = payload * 10 + random.nextInt(10);
+            numbers[i] = Long.toString(number);
+            longNumbers[i] = number;
+        }
+        boolean[] results = new boolean[count];
+
+        System.out.println("variant,round,numbers,ns_per_number,bytes_per_number,valid");
+        for (int round = 0; round < rounds; round++) {
+            run("legacy-string", round, count, () -> {
+                int valid = 0;
+                for (String number : numbers) {
+                    if (LegacyLuhn.checkCardNumberValid(number)) {
+                        valid++;
+                    }
+                }
+                return valid;
+            });
+            run("luhn-charsequence", round, count, () -> Luhn.validate(numbers, results));
+            run("luhn-long", round, count, () -> Luhn.validate(longNumbers, results));
+            run("legacy-generate", round, count, () -> {
+                int sum = 0;
+                for (String number : numbers) {
+                    sum += LegacyLuhn.generateChecksum(number);
+                }
+                return sum;
+            });
+            run("luhn-generate-long", round, count, () -> {
+                int sum = 0;
+                for (long number : longNumbers) {
+                    sum += Luhn.checkDigit(number);
+                }
+                return sum;
+            });
+        }
+    }
+
+    private static void run(String variant, int round, int count, Task task) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int result = task.run();
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%s,%d,%d,%.2f,%.2f,%d", variant, round, count,
+                elapsed / (double) count, allocatedBefore < 0 ? Double.NaN : allocated / (double) count, result));
+    }
+
+    /**
+     * @return bytes allocated by the current thread, -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Task {
+        int run();
+    }
+
+    /**
+     * The checksum code BankService had before the Luhn engine, kept as the baseline
+     */
+    private static class LegacyLuhn {
+
+        static int generateChecksum(String cardNumberWithoutChecksum) {
+            int sum = 0;
+            int checksum = -1;
+            for (int i = 0; i < cardNumberWithoutChecksum.length(); i++) {
+                int currentNumber = Character.getNumericValue(cardNumberWithoutChecksum.charAt(i));
+                int digitToSum = (i + 1) % 2 == 0 ? currentNumber : currentNumber * 2;
+                digitToSum = digitToSum > 9 ? (digitToSum - 9) : digitToSum;
+                sum += digitToSum;
+            }
+            for (int i = 0; i < 10; i++) {
+                if ((sum + i) % 10 == 0) {
+                    checksum = i;
+                    break;
+                }
+            }
+            return checksum;
+        }
+
+        static boolean checkCardNumberValid(String cardNumber) {
+            String cardNumberWithoutChecksum = cardNumber.substring(0, cardNumber.length() - 1);
+            int checksum = generateChecksum(cardNumberWithoutChecksum);
+            return checksum >= 0 && (cardNumberWithoutChecksum + checksum).equalsIgnoreCase(cardNumber);
+        }
+    }
+}
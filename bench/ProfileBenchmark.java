@@ -0,0 +1,168 @@
+package banking.bench;
+
+import banking.BankDb;
+import banking.DurabilityProfile;
+import banking.dto.Card;
+import banking.dto.CardNumber;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the write and read throughput of every durability profile.
+ * Each profile gets a fresh temporary database with the same cards. Writes are incomes
+ * (one committed transaction each), reads are card lookups by number.
+ * The results are printed as CSV and optionally written to a CSV or JSON file.
+ *
+ * Usage: ProfileBenchmark [-cards 10000] [-threads 1,4] [-seconds 3] [-profiles durable,throughput]
+ *        [-out results.json]
+ */
+public class ProfileBenchmark {
+
+    private static final long BIN = 400000L;
+    private static final int MAX_SAMPLES_PER_THREAD = 200_000;
+
+    private int cards = 10_000;
+    private int[] threadCounts = {1, 4};
+    private double seconds = 3;
+    private DurabilityProfile[] profiles = DurabilityProfile.values();
+    private String output = null;
+
+    public static void main(String[] args) throws Exception {
+        ProfileBenchmark benchmark = new ProfileBenchmark();
+        benchmark.parseArguments(args);
+        BenchReport report = benchmark.run();
+        report.printCsv(System.out);
+        if (benchmark.output != null) {
+            report.write(benchmark.output);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-cards":
+                    cards = Integer.parseInt(value);
+                    break;
+                case "-threads":
+                    String[] parts = value.split(",");
+                    threadCounts = new int[parts.length];
+                    for (int t = 0; t < parts.length; t++) {
+                        threadCounts[t] = Integer.parseInt(parts[t].trim());
+                    }
+                    break;
+                case "-seconds":
+                    seconds = Double.parseDouble(value);
+                    break;
+                case "-profiles":
+                    String[] names = value.split(",");
+                    profiles = new DurabilityProfile[names.length];
+                    for (int p = 0; p < names.length; p++) {
+                        profiles[p] = DurabilityProfile.fromName(names[p].trim());
+                        if (profiles[p] == null) {
+                            throw new IllegalArgumentException("unknown profile " + names[p]);
+                        }
+                    }
+                    break;
+                case "-out":
+                    output = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * measures writes and reads for every profile and thread count
+     * @return the collected results
+     */
+    public BenchReport run() throws Exception {
+        BenchReport report = new BenchReport();
+        List<Card> dataset = new ArrayList<>(cards);
+        for (int i = 0; i < cards; i++) {
+            Card card = new Card();
+            card.setNumber(CardNumber.of((BIN * 1_000_000_000L + 100_000_000L + i) * 10));
+            card.setPin(1234);
+            card.setAccount(Integer.toString(100_000_000 + i));
+            dataset.add(card);
+        }
+
+        for (DurabilityProfile profile : profiles) {
+            File file = File.createTempFile("bank-profile-bench", ".db");
+            file.deleteOnExit();
+            int maxThreads = Arrays.stream(threadCounts).max().orElse(1);
+            BankDb db = new BankDb(file.getAbsolutePath(), Math.max(4, maxThreads), null, profile);
+            try {
+                db.createCards(dataset, 5000);
+                for (int threads : threadCounts) {
+                    String name = profile.name().toLowerCase();
+                    measure(report, name, "write", threads,
+                            () -> db.updateBalance(randomCard(dataset).getNumber(), 1));
+                    measure(report, name, "read", threads,
+                            () -> db.getCard(randomCard(dataset).getNumber()));
+                }
+            } finally {
+                db.close();
+                file.delete();
+                new File(file.getAbsolutePath() + "-wal").delete();
+                new File(file.getAbsolutePath() + "-shm").delete();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * runs the operation from the given number of threads for the configured time
+     */
+    private void measure(BenchReport report, String profile, String operation, int threads, Runnable task)
+            throws InterruptedException {
+        long[][] samples = new long[threads][];
+        long[] counts = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+
+        long start = System.nanoTime();
+        long deadline = start + (long) (seconds * 1e9);
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                long[] latencies = new long[MAX_SAMPLES_PER_THREAD];
+                long done = 0;
+                long now = System.nanoTime();
+                while (now < deadline) {
+                    task.run();
+                    long end = System.nanoTime();
+                    if (done < latencies.length) {
+                        latencies[(int) done] = end - now;
+                    }
+                    done++;
+                    now = end;
+                }
+                counts[index] = done;
+                samples[index] = Arrays.copyOf(latencies, (int) Math.min(done, latencies.length));
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        long[] merged = Arrays.stream(samples).flatMapToLong(Arrays::stream).toArray();
+        BenchReport.Result result = report.add(profile, operation, cards, threads, total, elapsed, merged);
+        System.err.println(result.toCsv());
+    }
+
+    private static Card randomCard(List<Card> cards) {
+        return cards.get(ThreadLocalRandom.current().nextInt(cards.size()));
+    }
+}
@@ -0,0 +1,295 @@
+package banking.bench;
+
+import banking.BankDb;
+import banking.BankService;
+import banking.CardStore;
+import banking.MemoryCardStore;
+import banking.ShardedCardStore;
+import banking.dto.Card;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmarks the BankService and storage hot paths, against temporary SQLite files (store "sqlite")
+ * against MemoryCardStore (store "memory") and against a ShardedCardStore of SHARDS temporary files
+ * (store "sharded"), so the backends can be compared.
+ * Every operation runs for a fixed time for each store, dataset size and thread count,
+ * and the results are printed as CSV and optionally written to a CSV or JSON file.
+ * The benchmark column of the results is "service-" plus the store.
+ * With -commits single,group every operation also runs with group commit enabled, reported as the
+ * store plus "-group", so one transaction per operation can be compared with batched commits.
+ *
+ * Usage: ServiceBenchmark [-stores sqlite,memory,sharded] [-sizes 1000,100000] [-threads 1,4] [-seconds 3]
+ *        [-warmup 1] [-operations getCard,transfer] [-commits single,group] [-batch 64] [-batchWait 2]
+ *        [-out results.json]
+ */
+public class ServiceBenchmark {
+
+    static final String[] ALL_OPERATIONS = {"createAccount", "getCard", "checkPinNumber", "getBalance",
+            "addIncome", "transfer", "deleteAccount"};
+    static final String[] ALL_STORES = {"sqlite", "memory", "sharded"};
+    static final String[] ALL_COMMITS = {"single", "group"};
+    static final int SHARDS = 4;
+    private static final int MAX_SAMPLES_PER_THREAD = 200_000;
+
+    private String[] stores = ALL_STORES;
+    private long[] sizes = {1_000, 100_000};
+    private int[] threadCounts = {1, 4};
+    private double seconds = 3;
+    private double warmupSeconds = 1;
+    private String[] operations = ALL_OPERATIONS;
+    private String[] commits = {"single"};
+    private int batchSize = 64;
+    private long batchWaitMillis = 2;
+    private String output = null;
+
+    public static void main(String[] args) throws Exception {
+        ServiceBenchmark benchmark = new ServiceBenchmark();
+        benchmark.parseArguments(args);
+        BenchReport report = benchmark.run();
+        report.printCsv(System.out);
+        if (benchmark.output != null) {
+            report.write(benchmark.output);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-stores":
+                    stores = value.split(",");
+                    break;
+                case "-sizes":
+                    sizes = parseLongs(value);
+                    break;
+                case "-threads":
+                    long[] threads = parseLongs(value);
+                    threadCounts = new int[threads.length];
+                    for (int t = 0; t < threads.length; t++) {
+                        threadCounts[t] = (int) threads[t];
+                    }
+                    break;
+                case "-seconds":
+                    seconds = Double.parseDouble(value);
+                    break;
+                case "-warmup":
+                    warmupSeconds = Double.parseDouble(value);
+                    break;
+                case "-operations":
+                    operations = value.split(",");
+                    break;
+                case "-commits":
+                    commits = value.split(",");
+                    break;
+                case "-batch":
+                    batchSize = Integer.parseInt(value);
+                    break;
+                case "-batchWait":
+                    batchWaitMillis = Long.parseLong(value);
+                    break;
+                case "-out":
+                    output = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * runs every operation for every store, dataset size and thread count
+     * @return the collected results
+     */
+    public BenchReport run() throws IOException, InterruptedException {
+        BenchReport report = new BenchReport();
+        for (String store : stores) {
+            for (long size : sizes) {
+                List<File> files = new ArrayList<>();
+                CardStore db;
+                switch (store) {
+                    case "sqlite":
+                        files.add(tempFile());
+                        db = new BankDb(files.get(0).getAbsolutePath(), 8);
+                        break;
+                    case "sharded":
+                        List<String> shardUrls = new ArrayList<>();
+                        for (int i = 0; i <= SHARDS; i++) {
+                            files.add(tempFile());
+                            shardUrls.add(files.get(i).getAbsolutePath());
+                        }
+                        String directoryUrl = shardUrls.remove(0);
+                        db = new ShardedCardStore(directoryUrl, shardUrls, 8, null);
+                        break;
+                    case "memory":
+                        db = new MemoryCardStore((int) size);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown store " + store);
+                }
+                try {
+                    BankService service = BankService.getInstance();
+                    service.setDataBase(db);
+
+                    List<Card> cards = service.createAccounts((int) size).collect(Collectors.toList());
+                    for (String commit : commits) {
+                        String label = store;
+                        switch (commit) {
+                            case "single":
+                                service.disableGroupCommit();
+                                break;
+                            case "group":
+                                service.enableGroupCommit(batchSize, batchWaitMillis);
+                                label = store + "-group";
+                                break;
+                            default:
+                                throw new IllegalArgumentException("unknown commit mode " + commit);
+                        }
+                        for (String operation : operations) {
+                            for (int threads : threadCounts) {
+                                Operation task = prepare(operation, service, db, cards);
+                                measure(task, threads, warmupSeconds, null, label, operation, size);
+                                task = prepare(operation, service, db, cards);
+                                measure(task, threads, seconds, report, label, operation, size);
+                            }
+                        }
+                    }
+                } finally {
+                    BankService.getInstance().disableGroupCommit();
+                    db.close();
+                    files.forEach(File::delete);
+                }
+            }
+        }
+        return report;
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("bank-service-bench", ".db");
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * builds the operation to measure, picking random cards of the dataset
+     */
+    private Operation prepare(String operation, BankService service, CardStore db, List<Card> cards) {
+        switch (operation) {
+            case "createAccount":
+                return service::createAccount;
+            case "getCard":
+                return () -> db.getCard(randomCard(cards).getNumber());
+            case "checkPinNumber":
+                return () -> {
+                    Card card = randomCard(cards);
+                    service.checkPinNumber(card.getNumber(), card.getPin());
+                };
+            case "getBalance":
+                return () -> service.getBalance(randomCard(cards).getNumber());
+            case "addIncome":
+                return () -> service.addIncome(randomCard(cards).getNumber(), 1);
+            case "transfer":
+                // cards start with no balance, a transfer without funds still runs the whole locked transfer path
+                return () -> service.transferMoney(randomCard(cards).getNumber(), randomCard(cards).getNumber(), 1);
+            case "deleteAccount":
+                // every run deletes fresh cards, created up front so creation is not measured
+                List<Card> victims = service.createAccounts(20_000).collect(Collectors.toList());
+                AtomicInteger next = new AtomicInteger();
+                return () -> {
+                    int index = next.getAndIncrement();
+                    if (index >= victims.size()) {
+                        throw new IllegalStateException("no more cards to delete");
+                    }
+                    service.deleteAccount(victims.get(index).getNumber());
+                };
+            default:
+                throw new IllegalArgumentException("unknown operation " + operation);
+        }
+    }
+
+    /**
+     * runs the operation from the given number of threads for the given time
+     * @param report - where to add the result, null for a warm up run
+     * @param store - name of the storage backend, for the report
+     */
+    private void measure(Operation task, int threads, double runSeconds, BenchReport report,
+                         String store, String operation, long size) throws InterruptedException {
+        long durationNanos = (long) (runSeconds * 1e9);
+        long[][] samples = new long[threads][];
+        long[] counts = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                long[] latencies = new long[MAX_SAMPLES_PER_THREAD];
+                long done = 0;
+                try {
+                    long now = System.nanoTime();
+                    while (now < deadline) {
+                        task.run();
+                        long end = System.nanoTime();
+                        if (done < latencies.length) {
+                            latencies[(int) done] = end - now;
+                        }
+                        done++;
+                        now = end;
+                    }
+                } catch (IllegalStateException exhausted) {
+                    // the operation ran out of data, report what was measured
+                }
+                counts[index] = done;
+                samples[index] = Arrays.copyOf(latencies, (int) Math.min(done, latencies.length));
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (report != null) {
+            long total = 0;
+            int sampleCount = 0;
+            for (int t = 0; t < threads; t++) {
+                total += counts[t];
+                sampleCount += samples[t].length;
+            }
+            long[] merged = new long[sampleCount];
+            int position = 0;
+            for (long[] threadSamples : samples) {
+                System.arraycopy(threadSamples, 0, merged, position, threadSamples.length);
+                position += threadSamples.length;
+            }
+            BenchReport.Result result = report.add("service-" + store, operation, size, threads, total, elapsed, merged);
+            System.err.println(result.toCsv());
+        }
+    }
+
+    private static Card randomCard(List<Card> cards) {
+        return cards.get(ThreadLocalRandom.current().nextInt(cards.size()));
+    }
+
+    private static long[] parseLongs(String value) {
+        String[] parts = value.split(",");
+        long[] numbers = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Long.parseLong(parts[i].trim());
+        }
+        return numbers;
+    }
+
+    private interface Operation {
+        void run();
+    }
+}
@@ -0,0 +1,87 @@
+package banking.bench;
+
+import banking.BankDb;
+import banking.BankService;
+import banking.CustomerSession;
+import banking.DurabilityProfile;
+import banking.SessionExecutor;
+import banking.dto.Card;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Runs many simulated customers at the same time, each one in its own session
+ * driving the terminal menu with a scripted input: log in, add income, check the balance,
+ * transfer to another customer and exit.
+ *
+ * Usage: SessionBenchmark [sessions] [rounds per session]
+ * for example: SessionBenchmark 5000 10
+ */
+public class SessionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        File file = File.createTempFile("bank-session-bench", ".db");
+        file.deleteOnExit();
+        // WAL, so the many readers never make a writer wait until it gives up
+        BankDb db = new BankDb(file.getAbsolutePath(), 8, null, DurabilityProfile.BALANCED);
+        try {
+            BankService service = BankService.getInstance();
+            service.setDataBase(db);
+            List<Card> cards = service.createAccounts(sessions).collect(Collectors.toList());
+
+            SessionExecutor executor = new SessionExecutor();
+            PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+            List<CompletableFuture<Void>> running = new ArrayList<>(sessions);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                String script = script(cards.get(i), cards.get((i + 1) % sessions), rounds);
+                CustomerSession session = new CustomerSession(service,
+                        new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), discard);
+                running.add(executor.run(session));
+            }
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown(10_000);
+
+            // every round has 4 menu operations against the service
+            long operations = (long) sessions * rounds * 4;
+            System.out.println("sessions,rounds,virtual_threads,seconds,operations_per_sec");
+            System.out.println(String.format("%d,%d,%b,%.2f,%.1f", sessions, rounds, executor.isVirtualThreads(),
+                    elapsed / 1e9, operations / (elapsed / 1e9)));
+        } finally {
+            db.close();
+            file.delete();
+            new File(file.getAbsolutePath() + "-wal").delete();
+            new File(file.getAbsolutePath() + "-shm").delete();
+        }
+    }
+
+    /**
+     * the keys a customer types: log in, then income, balance, transfer and balance again each round
+     */
+    private static String script(Card card, Card receptor, int rounds) {
+        StringBuilder script = new StringBuilder();
+        script.append("2\n").append(card.getNumber()).append('\n')
+                .append(String.format("%04d", card.getPin())).append('\n');
+        for (int round = 0; round < rounds; round++) {
+            script.append("2\n10\n");
+            script.append("1\n");
+            script.append("3\n").append(receptor.getNumber()).append("\n5\n");
+            script.append("1\n");
+        }
+        script.append("0\n");
+        return script.toString();
+    }
+}
@@ -1,12 +1,13 @@
 package banking.dto;
 
 public class Card {
-    private int id;
-    private String number;
-    private String pin;
+    private long id;
+    private CardNumber number;
+    private int pin; // 4 digits, 0 to 9999
     private long balance;
+    private String account;
 
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -14,27 +15,35 @@ public class Card {
         return balance;
     }
 
-    public String getNumber() {
+    public CardNumber getNumber() {
         return number;
     }
 
-    public String getPin() {
+    public int getPin() {
         return pin;
     }
 
+    public String getAccount() {
+        return account;
+    }
+
     public void setBalance(long balance) {
         this.balance = balance;
     }
 
-    public void setId(int id) {
+    public void setId(long id) {
         this.id = id;
     }
 
-    public void setNumber(String number) {
+    public void setNumber(CardNumber number) {
         this.number = number;
     }
 
-    public void setPin(String pin) {
+    public void setPin(int pin) {
         this.pin = pin;
     }
+
+    public void setAccount(String account) {
+        this.account = account;
+    }
 }
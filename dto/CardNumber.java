@@ -0,0 +1,109 @@
+package banking.dto;
+
+import banking.Luhn;
+
+/**
+ * A 16 digit card number kept as a long, so it is compared, hashed and stored as a number.
+ * It only becomes text at the edges: typed by a customer, printed, or written to a CSV file.
+ * Leading zeros are kept by toString, it always prints 16 digits
+ */
+public final class CardNumber implements Comparable<CardNumber> {
+
+    public static final int LENGTH = 16;
+    public static final long MAX_VALUE = 9_999_999_999_999_999L;
+
+    private final long value;
+
+    private CardNumber(long value) {
+        this.value = value;
+    }
+
+    /**
+     * @param value - the 16 digits as a number
+     * @return the card number
+     * @throws IllegalArgumentException if it is negative or has more than 16 digits
+     */
+    public static CardNumber of(long value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new IllegalArgumentException(value + " is not a 16 digit card number");
+        }
+        return new CardNumber(value);
+    }
+
+    /**
+     * reads a card number typed by someone, the check digit is not verified
+     * @param text
+     * @return the card number, null if it is not exactly 16 digits
+     */
+    public static CardNumber parse(CharSequence text) {
+        if (text == null || text.length() != LENGTH) {
+            return null;
+        }
+        long value = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            value = value * 10 + digit;
+        }
+        return new CardNumber(value);
+    }
+
+    /**
+     * builds the card number BIN + account number + check digit
+     * @param bin - the 6 digits issuer number
+     * @param accountNumber - the 9 digits account number
+     * @return the card number
+     */
+    public static CardNumber build(int bin, int accountNumber) {
+        return of(Luhn.appendCheckDigit(bin * 1_000_000_000L + accountNumber));
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * @return the 9 digits between the BIN and the check digit
+     */
+    public int getAccountNumber() {
+        return (int) (value / 10 % 1_000_000_000);
+    }
+
+    /**
+     * @return true if the check digit is correct
+     */
+    public boolean isValid() {
+        return Luhn.isValid(value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CardNumber && ((CardNumber) other).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
+    }
+
+    @Override
+    public int compareTo(CardNumber other) {
+        return Long.compare(value, other.value);
+    }
+
+    /**
+     * @return the 16 digits, with leading zeros
+     */
+    @Override
+    public String toString() {
+        char[] digits = new char[LENGTH];
+        long rest = value;
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,68 @@
+package banking.dto;
+
+/**
+ * One line of a card statement, a balance change of that card
+ */
+public class Transaction {
+
+    public enum Type {
+        INCOME,
+        TRANSFER_IN,
+        TRANSFER_OUT
+    }
+
+    private long id;
+    private CardNumber card;
+    private long time; // epoch milliseconds
+    private Type type;
+    private long amount; // change of the balance, negative for a transfer out
+    private CardNumber counterparty; // the other card of a transfer, null for an income
+
+    public long getId() {
+        return id;
+    }
+
+    public CardNumber getCard() {
+        return card;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public CardNumber getCounterparty() {
+        return counterparty;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setCard(CardNumber card) {
+        this.card = card;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public void setAmount(long amount) {
+        this.amount = amount;
+    }
+
+    public void setCounterparty(CardNumber counterparty) {
+        this.counterparty = counterparty;
+    }
+}
@@ -0,0 +1,196 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BalanceLedgerTest {
+
+    @TempDir
+    Path directory;
+
+    private final BankService service = BankService.getInstance();
+    private BankDb dataBase;
+
+    @BeforeEach
+    void openDataBase() {
+        dataBase = openBankDb();
+    }
+
+    @AfterEach
+    void closeDataBase() {
+        service.closeBalanceLedger();
+        dataBase.close();
+    }
+
+    private BankDb openBankDb() {
+        BankDb db = new BankDb(directory.resolve("bank.db").toString(), 4, null, DurabilityProfile.BALANCED);
+        service.setDataBase(db);
+        return db;
+    }
+
+    /**
+     * closes the ledger and the database like the bank does on exit, and starts them again
+     */
+    private boolean restart(Path ledgerFile) {
+        service.closeBalanceLedger();
+        dataBase.close();
+        dataBase = openBankDb();
+        return service.useBalanceLedger(ledgerFile);
+    }
+
+    private void assertLedgerMatchesStore(List<Card> cards) {
+        BalanceLedger ledger = service.getBalanceLedger();
+        assertNotNull(ledger);
+        for (Card card : cards) {
+            long stored = dataBase.getCard(card.getNumber()).getBalance();
+            assertEquals(stored, ledger.getBalance(card.getNumber()), card.getNumber().toString());
+            assertEquals(stored, service.getBalance(card.getNumber()));
+        }
+    }
+
+    @Test
+    void balancesSurviveARestart() {
+        List<Card> cards = service.createAccounts(50).collect(Collectors.toList());
+        Path ledgerFile = directory.resolve("balances.ledger");
+        assertFalse(service.useBalanceLedger(ledgerFile), "a new ledger is filled from the store");
+
+        for (Card card : cards) {
+            assertTrue(service.addIncome(card.getNumber(), 100));
+        }
+        assertEquals(TransferResult.SUCCESS, service.transfer(cards.get(0).getNumber(), cards.get(1).getNumber(), 60));
+        assertEquals(TransferResult.INSUFFICIENT_FUNDS,
+                service.transfer(cards.get(0).getNumber(), cards.get(2).getNumber(), 41));
+        assertTrue(service.deleteAccount(cards.get(3).getNumber()));
+
+        assertTrue(restart(ledgerFile), "a ledger closed cleanly is reused");
+        assertEquals(40, service.getBalance(cards.get(0).getNumber()));
+        assertEquals(160, service.getBalance(cards.get(1).getNumber()));
+        assertEquals(-1, service.getBalanceLedger().getBalance(cards.get(3).getNumber()));
+        List<Card> remaining = new ArrayList<>(cards);
+        remaining.remove(3);
+        assertLedgerMatchesStore(remaining);
+    }
+
+    @Test
+    void aLedgerLeftOpenIsLoadedAgain() throws Exception {
+        List<Card> cards = service.createAccounts(20).collect(Collectors.toList());
+        Path ledgerFile = directory.resolve("balances.ledger");
+        service.useBalanceLedger(ledgerFile);
+        assertTrue(service.addIncome(cards.get(0).getNumber(), 70));
+
+        // a crash: the file is closed without being marked synced
+        BalanceLedger ledger = service.getBalanceLedger();
+        ledger.close();
+        try (BalanceLedger reopened = BalanceLedger.open(ledgerFile)) {
+            assertFalse(reopened.isSynced());
+        }
+        dataBase.close();
+        dataBase = openBankDb(); // drops the old ledger without marking it
+        assertFalse(service.useBalanceLedger(ledgerFile));
+        assertLedgerMatchesStore(cards);
+    }
+
+    @Test
+    void changesMadeWithoutTheLedgerReloadIt() {
+        List<Card> cards = service.createAccounts(20).collect(Collectors.toList());
+        Path ledgerFile = directory.resolve("balances.ledger");
+        service.useBalanceLedger(ledgerFile);
+        service.closeBalanceLedger();
+
+        assertTrue(service.addIncome(cards.get(5).getNumber(), 30)); // the ledger does not see it
+
+        assertFalse(restart(ledgerFile));
+        assertEquals(30, service.getBalanceLedger().getBalance(cards.get(5).getNumber()));
+        assertLedgerMatchesStore(cards);
+    }
+
+    @Test
+    void closedCardsTakeNoMoney() throws Exception {
+        try (BalanceLedger ledger = BalanceLedger.create(directory.resolve("cards.ledger"), 10)) {
+            CardNumber card = CardNumber.build(400000, 123);
+            assertTrue(ledger.openCard(card, 50));
+            assertFalse(ledger.openCard(card, 10), "already open");
+            assertEquals(TransferResult.INSUFFICIENT_FUNDS, ledger.debit(card, 51));
+            assertEquals(TransferResult.SUCCESS, ledger.debit(card, 50));
+            assertTrue(ledger.closeCard(card));
+            assertEquals(TransferResult.NO_SUCH_CARD, ledger.add(card, 10));
+            assertEquals(TransferResult.NO_SUCH_CARD, ledger.debit(card, 1));
+            assertEquals(-1, ledger.getBalance(card));
+
+            assertTrue(ledger.openCard(card, 0), "a closed card can be opened again");
+            assertEquals(TransferResult.SUCCESS, ledger.add(card, BalanceLedger.MAX_BALANCE));
+            assertEquals(TransferResult.FAILED, ledger.add(card, 1));
+        }
+    }
+
+    @Test
+    void fillsUpAtThreeQuarters() throws Exception {
+        try (BalanceLedger ledger = BalanceLedger.create(directory.resolve("full.ledger"), 1)) {
+            long capacity = ledger.getCapacity();
+            int opened = 0;
+            for (int account = 1; ledger.openCard(CardNumber.build(400000, account), 1); account++) {
+                opened++;
+            }
+            assertTrue(ledger.isFull());
+            assertEquals(capacity / 4 * 3, opened);
+            for (int account = 1; account <= opened; account++) {
+                assertEquals(1, ledger.getBalance(CardNumber.build(400000, account)));
+            }
+        }
+    }
+
+    @Test
+    void concurrentTransfersKeepTheTotal() throws Exception {
+        try (BalanceLedger ledger = BalanceLedger.create(directory.resolve("concurrent.ledger"), 100)) {
+            CardNumber[] cards = new CardNumber[100];
+            for (int i = 0; i < cards.length; i++) {
+                cards[i] = CardNumber.build(400000, i + 1);
+                assertTrue(ledger.openCard(cards[i], 1000));
+            }
+            ExecutorService threads = Executors.newFixedThreadPool(8);
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                done.add(threads.submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 20_000; i++) {
+                        CardNumber origin = cards[random.nextInt(cards.length)];
+                        CardNumber receptor = cards[random.nextInt(cards.length)];
+                        long amount = random.nextInt(1, 300);
+                        if (ledger.debit(origin, amount) == TransferResult.SUCCESS) {
+                            assertEquals(TransferResult.SUCCESS, ledger.add(receptor, amount));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+            threads.shutdown();
+            long total = 0;
+            for (CardNumber card : cards) {
+                long balance = ledger.getBalance(card);
+                assertTrue(balance >= 0);
+                total += balance;
+            }
+            assertEquals(100_000, total);
+        }
+    }
+}
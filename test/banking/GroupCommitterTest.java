@@ -0,0 +1,188 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitterTest {
+
+    private static final CardNumber CARD = CardNumber.build(400000, 1);
+
+    private static TransferResult[] succeed(List<BalanceOperation> operations) {
+        TransferResult[] results = new TransferResult[operations.size()];
+        Arrays.fill(results, TransferResult.SUCCESS);
+        return results;
+    }
+
+    @Test
+    void shutdownWritesWhatIsQueued() throws Exception {
+        CountDownLatch firstBatch = new CountDownLatch(1);
+        AtomicInteger written = new AtomicInteger();
+        GroupCommitter committer = new GroupCommitter(operations -> {
+            try {
+                firstBatch.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            written.addAndGet(operations.size());
+            return succeed(operations);
+        }, 8, 1);
+
+        List<CompletableFuture<TransferResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(committer.submit(BalanceOperation.income(CARD, 1)));
+        }
+        Thread stopper = new Thread(committer::shutdown);
+        stopper.start();
+        stopper.join(100);
+        assertTrue(stopper.isAlive(), "shutdown waits for the queued operations");
+        assertFalse(committer.isRunning());
+        assertNull(committer.submit(BalanceOperation.income(CARD, 1)), "nothing is accepted once stopping");
+
+        firstBatch.countDown();
+        stopper.join(10_000);
+        assertFalse(stopper.isAlive());
+        for (CompletableFuture<TransferResult> future : futures) {
+            assertEquals(TransferResult.SUCCESS, future.getNow(null));
+        }
+        assertEquals(100, written.get());
+        assertTrue(committer.getStats().getMaxBatchSize() <= 8);
+        committer.shutdown(); // a second call returns right away
+    }
+
+    @Test
+    void submitsRacingShutdownAreWrittenOrRefused() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            AtomicInteger written = new AtomicInteger();
+            GroupCommitter committer = new GroupCommitter(operations -> {
+                written.addAndGet(operations.size());
+                return succeed(operations);
+            }, 16, 0);
+            ExecutorService threads = Executors.newFixedThreadPool(4);
+            AtomicInteger accepted = new AtomicInteger();
+            List<Future<List<CompletableFuture<TransferResult>>>> submitted = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                submitted.add(threads.submit(() -> {
+                    List<CompletableFuture<TransferResult>> futures = new ArrayList<>();
+                    for (int i = 0; i < 500; i++) {
+                        CompletableFuture<TransferResult> future = committer.submit(BalanceOperation.income(CARD, 1));
+                        if (future == null) {
+                            break; // stopped, the caller writes it itself
+                        }
+                        accepted.incrementAndGet();
+                        futures.add(future);
+                    }
+                    return futures;
+                }));
+            }
+            committer.shutdown();
+            for (Future<List<CompletableFuture<TransferResult>>> done : submitted) {
+                for (CompletableFuture<TransferResult> future : done.get()) {
+                    assertEquals(TransferResult.SUCCESS, future.get(10, TimeUnit.SECONDS));
+                }
+            }
+            threads.shutdown();
+            assertEquals(accepted.get(), written.get(), "every accepted operation was written once");
+        }
+    }
+
+    @Test
+    void anInterruptedShutdownStillWaitsForTheWriter() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        GroupCommitter committer = new GroupCommitter(operations -> {
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return succeed(operations);
+        }, 4, 0);
+        CompletableFuture<TransferResult> future = committer.submit(BalanceOperation.income(CARD, 1));
+        AtomicBoolean interruptKept = new AtomicBoolean();
+        Thread stopper = new Thread(() -> {
+            committer.shutdown();
+            interruptKept.set(Thread.currentThread().isInterrupted());
+        });
+        stopper.start();
+        stopper.interrupt();
+        stopper.join(100);
+        assertTrue(stopper.isAlive());
+
+        release.countDown();
+        stopper.join(10_000);
+        assertEquals(TransferResult.SUCCESS, future.getNow(null));
+        assertTrue(interruptKept.get(), "the interrupt is given back to the caller");
+    }
+
+    @Test
+    void aFailingWriterCompletesTheBatchWithFailed() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        GroupCommitter committer = new GroupCommitter(operations -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("disk full");
+            }
+            return succeed(operations);
+        }, 100, 20);
+        CompletableFuture<TransferResult> failed = committer.submit(BalanceOperation.income(CARD, 1));
+        assertEquals(TransferResult.FAILED, failed.get(10, TimeUnit.SECONDS));
+        CompletableFuture<TransferResult> next = committer.submit(BalanceOperation.income(CARD, 1));
+        assertEquals(TransferResult.SUCCESS, next.get(10, TimeUnit.SECONDS), "the writer keeps going");
+        committer.shutdown();
+    }
+
+    @Test
+    void disablingGroupCommitUnderLoadLosesNothing() throws Exception {
+        BankService service = BankService.getInstance();
+        service.setDataBase(new MemoryCardStore());
+        List<CardNumber> cards = service.createAccounts(20).map(Card::getNumber).collect(Collectors.toList());
+        for (CardNumber card : cards) {
+            assertTrue(service.addIncome(card, 1000));
+        }
+        service.enableGroupCommit(16, 1);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t;
+            done.add(threads.submit(() -> {
+                for (int i = 0; i < 300; i++) {
+                    CardNumber origin = cards.get((i + offset) % cards.size());
+                    CardNumber receptor = cards.get((i * 7 + offset + 1) % cards.size());
+                    TransferResult result = service.transfer(origin, receptor, 5);
+                    assertTrue(result == TransferResult.SUCCESS || result == TransferResult.SAME_CARD
+                            || result == TransferResult.INSUFFICIENT_FUNDS, result.name());
+                    assertTrue(service.addIncome(origin, 1));
+                }
+            }));
+        }
+        Thread.sleep(20);
+        service.disableGroupCommit(); // callers in flight fall back to writing directly
+        for (Future<?> future : done) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        threads.shutdown();
+        long total = 0;
+        for (CardNumber card : cards) {
+            total += service.getBalance(card);
+        }
+        assertEquals(20 * 1000 + 4 * 300, total, "every income was written once, transfers move money around");
+        assertFalse(service.isGroupCommitEnabled());
+    }
+}
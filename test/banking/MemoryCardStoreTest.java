@@ -0,0 +1,141 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryCardStoreTest {
+
+    private static CardNumber card(int account) {
+        return CardNumber.build(400000, account);
+    }
+
+    /**
+     * checks every card of the model can be found by number and by account, with its balance,
+     * and that the deleted ones can not
+     */
+    private static void assertMatches(MemoryCardStore store, Map<Integer, Long> model, int accounts) {
+        assertEquals(model.size(), store.countCards());
+        for (int account = 1; account <= accounts; account++) {
+            Long balance = model.get(account);
+            String accountNumber = Integer.toString(account);
+            if (balance == null) {
+                assertFalse(store.checkCardNumber(card(account)), accountNumber);
+                assertNull(store.getCard(card(account)));
+                assertEquals("", store.getAccount(accountNumber));
+            } else {
+                Card stored = store.getCard(card(account));
+                assertNotNull(stored, accountNumber);
+                assertEquals(balance.longValue(), stored.getBalance());
+                assertEquals(account % 10_000, stored.getPin());
+                assertEquals(card(account), store.getCardFromAccount(accountNumber).getNumber());
+            }
+        }
+    }
+
+    @Test
+    void deletesKeepEveryOtherCardReachable() {
+        // a small table that never grows, so runs of neighbours wrap around its end and shift back often
+        MemoryCardStore store = new MemoryCardStore(16);
+        Map<Integer, Long> model = new HashMap<>();
+        Random random = new Random(7);
+        int accounts = 40;
+        for (int i = 0; i < 20_000; i++) {
+            int account = random.nextInt(accounts) + 1;
+            if (model.containsKey(account)) {
+                assertEquals(Integer.toString(account), store.deleteAccount(card(account)));
+                model.remove(account);
+            } else if (model.size() < 19) {
+                assertTrue(store.createCard(card(account), account % 10_000, Integer.toString(account)));
+                long balance = random.nextInt(1000);
+                if (balance > 0) {
+                    assertTrue(store.updateBalance(card(account), balance));
+                }
+                model.put(account, balance);
+            }
+            if (i % 500 == 0) {
+                assertMatches(store, model, accounts);
+            }
+        }
+        assertMatches(store, model, accounts);
+    }
+
+    @Test
+    void deletesWhileGrowing() {
+        MemoryCardStore store = new MemoryCardStore(16);
+        Map<Integer, Long> model = new HashMap<>();
+        for (int account = 1; account <= 5000; account++) {
+            assertTrue(store.createCard(card(account), account % 10_000, Integer.toString(account)));
+            assertTrue(store.updateBalance(card(account), account));
+            model.put(account, (long) account);
+            if (account % 3 == 0) {
+                assertNotNull(store.deleteAccount(card(account / 3)));
+                model.remove(account / 3);
+            }
+        }
+        assertMatches(store, model, 5000);
+        assertNull(store.deleteAccount(card(1)), "already deleted");
+        assertTrue(store.createCard(card(1), 1, "1"), "a deleted card and its account can come back");
+        assertEquals(1, store.getCard(card(1)).getPin());
+    }
+
+    @Test
+    void pagesSkipDeletedCardsAndKeepIds() {
+        MemoryCardStore store = new MemoryCardStore();
+        for (int account = 1; account <= 100; account++) {
+            assertTrue(store.createCard(card(account), 1234, Integer.toString(account)));
+        }
+        for (int account = 2; account <= 100; account += 2) {
+            assertEquals(Integer.toString(account), store.deleteAccount(card(account)));
+        }
+        assertTrue(store.createCard(card(200), 1234, "200"));
+
+        List<Card> cards = new ArrayList<>();
+        long afterId = -1;
+        List<Card> page;
+        do {
+            page = store.getCardPage(afterId, 7);
+            cards.addAll(page);
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == 7);
+        assertEquals(51, cards.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(card(i * 2 + 1), cards.get(i).getNumber());
+            assertEquals(i * 2, cards.get(i).getId(), "ids are not reused");
+            assertEquals(Integer.toString(i * 2 + 1), cards.get(i).getAccount());
+        }
+        assertEquals(100, cards.get(50).getId());
+
+        int[] visited = {0};
+        assertTrue(store.forEachCardAndAccount((number, account) -> visited[0]++));
+        assertEquals(51, visited[0]);
+    }
+
+    @Test
+    void transfersBetweenCards() {
+        MemoryCardStore store = new MemoryCardStore();
+        assertTrue(store.createCard(card(1), 1, "1"));
+        assertTrue(store.createCard(card(2), 2, "2"));
+        assertTrue(store.updateBalance(card(1), 50));
+        assertEquals(TransferResult.INSUFFICIENT_FUNDS, store.transferIfFunds(card(1), card(2), 51));
+        assertEquals(TransferResult.SUCCESS, store.transferIfFunds(card(1), card(2), 50));
+        assertEquals(TransferResult.NO_SUCH_CARD, store.transferIfFunds(card(2), card(3), 1));
+        assertEquals(0, store.getCard(card(1)).getBalance());
+        assertEquals(50, store.getCard(card(2)).getBalance());
+        assertFalse(store.createCard(card(3), 3, "2"), "the account is taken");
+    }
+}
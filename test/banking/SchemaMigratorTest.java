@@ -0,0 +1,169 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import banking.dto.Transaction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaMigratorTest {
+
+    private static final CardNumber FIRST = CardNumber.parse("4000001111111111");
+    private static final CardNumber SECOND = CardNumber.parse("4000002222222222");
+
+    @TempDir
+    Path directory;
+
+    /**
+     * a database written by the first version of the program: text numbers and pins, no indexes,
+     * an account row of a deleted card and two account rows for one card
+     */
+    private String baseline() throws SQLException {
+        String url = directory.resolve("baseline.db").toString();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + url);
+             Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE card (id integer NOT NULL PRIMARY KEY, number text NOT NULL, "
+                    + "pin text NOT NULL, balance INTEGER DEFAULT 0)");
+            statement.execute("CREATE TABLE account (id integer NOT NULL, account text NOT NULL)");
+            statement.execute("INSERT INTO card VALUES (0, '4000001111111111', '0042', 5), "
+                    + "(2, '4000002222222222', '1234', 7)");
+            statement.execute("INSERT INTO account VALUES (0, '111111111'), (1, '999999999'), (2, '000000000'), "
+                    + "(2, '222222222')");
+        }
+        return url;
+    }
+
+    private static List<String> names(Connection con, String type) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = '" + type
+                     + "' AND name NOT LIKE 'sqlite_%' ORDER BY name")) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void upgradesTheBaselineToTheLatestVersion() throws Exception {
+        String url = baseline();
+        SchemaMigrator migrator = new SchemaMigrator();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + url)) {
+            assertEquals(0, migrator.getCurrentVersion(con));
+            assertEquals(migrator.getLatestVersion(), migrator.migrate(con));
+            assertEquals(9, migrator.getCurrentVersion(con));
+            assertEquals(9, migrator.migrate(con), "running it again changes nothing");
+
+            List<String> tables = names(con, "table");
+            for (String table : new String[]{"card", "account", "id_sequence", "journal_checkpoint",
+                    "card_change_log", "card_change_log_start", "transaction_history", "transfer_hold"}) {
+                assertTrue(tables.contains(table), table);
+            }
+            assertFalse(tables.contains("card_new"));
+            assertFalse(tables.contains("account_new"));
+            // the change log triggers were replaced by card versions, the history trigger stays
+            assertEquals(List.of("card_delete_history"), names(con, "trigger"));
+            List<String> indexes = names(con, "index");
+            for (String index : new String[]{"card_number_idx", "account_account_idx", "card_bucket_idx",
+                    "card_version_idx", "card_change_log_sequence_idx", "transaction_history_card_time_idx"}) {
+                assertTrue(indexes.contains(index), index);
+            }
+
+            try (Statement statement = con.createStatement();
+                 ResultSet rs = statement.executeQuery(
+                         "SELECT typeof(number), typeof(pin), number, pin, balance, version FROM card ORDER BY id")) {
+                assertTrue(rs.next());
+                assertEquals("integer", rs.getString(1));
+                assertEquals("integer", rs.getString(2));
+                assertEquals(FIRST.getValue(), rs.getLong(3));
+                assertEquals(42, rs.getInt(4));
+                assertEquals(5, rs.getLong(5));
+                assertEquals(0, rs.getLong(6));
+                assertTrue(rs.next());
+                assertFalse(rs.next());
+            }
+            try (Statement statement = con.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT next_value FROM id_sequence WHERE name = 'card'")) {
+                assertEquals(3, rs.getLong(1), "new ids start after the highest one");
+            }
+        }
+    }
+
+    @Test
+    void theUpgradedDatabaseWorks() throws Exception {
+        BankDb db = new BankDb(baseline());
+        try {
+            assertEquals("222222222", db.getAccount("222222222"), "the newest account row of a card wins");
+            assertEquals("", db.getAccount("000000000"));
+            assertEquals("", db.getAccount("999999999"), "the account of a deleted card is dropped");
+            Card first = db.getCardFromAccount("111111111");
+            assertEquals(FIRST, first.getNumber());
+            assertEquals(42, first.getPin());
+
+            long sequence = db.getChangeSequence();
+            assertTrue(sequence >= 0);
+            assertEquals(TransferResult.SUCCESS, db.transferIfFunds(SECOND, FIRST, 3));
+            assertEquals(8, db.getCard(FIRST).getBalance());
+            assertEquals(4, db.getCard(SECOND).getBalance());
+            List<Transaction> statement = db.getStatementPage(FIRST, Long.MIN_VALUE, -1, Long.MAX_VALUE, 10);
+            assertEquals(1, statement.size());
+
+            Map<CardNumber, Card> changed = new HashMap<>();
+            assertTrue(db.forEachChangedCard(sequence, changed::put));
+            assertEquals(2, changed.size(), "both cards of the transfer got a new version");
+            assertNotNull(db.deleteAccount(FIRST));
+            changed.clear();
+            assertTrue(db.forEachChangedCard(sequence, changed::put));
+            assertTrue(changed.containsKey(FIRST));
+            assertNull(changed.get(FIRST), "a deleted card shows as a tombstone");
+            assertTrue(db.createCard(CardNumber.build(400000, 333), 1111, "333"));
+            assertEquals(3, db.getCard(CardNumber.build(400000, 333)).getId());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    void refusesANewerSchema() throws Exception {
+        String url = baseline();
+        SchemaMigrator migrator = new SchemaMigrator();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + url);
+             Statement statement = con.createStatement()) {
+            statement.execute("PRAGMA user_version = " + (migrator.getLatestVersion() + 1));
+            assertThrows(SQLException.class, () -> migrator.migrate(con));
+        }
+    }
+
+    @Test
+    void aFailedMigrationIsRolledBack() throws Exception {
+        String url = baseline();
+        SchemaMigrator migrator = new SchemaMigrator();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + url);
+             Statement statement = con.createStatement()) {
+            // migration 3 creates id_sequence, it fails if the table is there already
+            statement.execute("CREATE TABLE id_sequence (name text)");
+            assertThrows(SQLException.class, () -> migrator.migrate(con));
+            assertEquals(2, migrator.getCurrentVersion(con), "the migrations before it are kept");
+            assertTrue(names(con, "index").contains("card_number_idx"));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package banking;
+
+import banking.dto.Card;
+import banking.dto.CardNumber;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedCardStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private final BankService service = BankService.getInstance();
+    private ShardedCardStore store;
+    private List<CardNumber> cards;
+
+    @BeforeEach
+    void createCards() {
+        store = open(2);
+        service.setDataBase(store);
+        cards = service.createAccounts(200).map(Card::getNumber).collect(Collectors.toList());
+        for (CardNumber card : cards) {
+            assertTrue(service.addIncome(card, 100));
+        }
+    }
+
+    @AfterEach
+    void closeStore() {
+        store.close();
+    }
+
+    private ShardedCardStore open(int shards) {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            urls.add(directory.resolve("shard" + i + ".db").toString());
+        }
+        return new ShardedCardStore(directory.resolve("directory.db").toString(), urls);
+    }
+
+    private long total() {
+        long total = 0;
+        for (CardNumber card : cards) {
+            Card stored = store.getCard(card);
+            if (stored != null) {
+                total += stored.getBalance();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return a card on the shard, and one on another shard
+     */
+    private CardNumber[] cardsOnTwoShards() {
+        CardNumber origin = null;
+        CardNumber receptor = null;
+        for (CardNumber card : cards) {
+            if (store.getShardOf(card) == 0 && origin == null) {
+                origin = card;
+            } else if (store.getShardOf(card) == 1 && receptor == null) {
+                receptor = card;
+            }
+        }
+        assertNotNull(origin);
+        assertNotNull(receptor);
+        return new CardNumber[]{origin, receptor};
+    }
+
+    /**
+     * leaves a transfer prepared on both shards, as if the process stopped before finishing it
+     */
+    private void prepareTransfer(long transferId, CardNumber origin, CardNumber receptor, long amount, String state)
+            throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("directory.db"));
+             Statement statement = con.createStatement()) {
+            statement.execute("INSERT INTO transfer_log (id, origin, origin_shard, receptor, receptor_shard, amount, "
+                    + "state) VALUES (" + transferId + ", " + origin.getValue() + ", 0, " + receptor.getValue()
+                    + ", 1, " + amount + ", '" + state + "')");
+        }
+        assertEquals(TransferResult.SUCCESS,
+                store.getShard(0).prepareTransferOut(transferId, origin, receptor, amount, true, 1));
+        assertEquals(TransferResult.SUCCESS, store.getShard(1).prepareTransferIn(transferId, receptor, origin, amount, 1));
+    }
+
+    private long holds(int shard) throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("shard" + shard + ".db"));
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM transfer_hold")) {
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    void committedTransfersAreFinishedOnTheNextStart() throws Exception {
+        CardNumber[] pair = cardsOnTwoShards();
+        prepareTransfer(9001, pair[0], pair[1], 30, "COMMITTED");
+        assertEquals(70, store.getCard(pair[0]).getBalance());
+        assertEquals(100, store.getCard(pair[1]).getBalance(), "the credit waits for the second phase");
+
+        store.close();
+        store = open(2);
+        assertEquals(70, store.getCard(pair[0]).getBalance());
+        assertEquals(130, store.getCard(pair[1]).getBalance());
+        assertEquals(0, holds(0) + holds(1));
+        assertEquals(200 * 100, total());
+    }
+
+    @Test
+    void preparedTransfersAreRolledBackOnTheNextStart() throws Exception {
+        CardNumber[] pair = cardsOnTwoShards();
+        prepareTransfer(9002, pair[0], pair[1], 30, "PREPARED");
+
+        store.close();
+        store = open(2);
+        assertEquals(100, store.getCard(pair[0]).getBalance());
+        assertEquals(100, store.getCard(pair[1]).getBalance());
+        assertEquals(0, holds(0) + holds(1));
+    }
+
+    @Test
+    void aCardWithAHoldIsNotDeleted() throws Exception {
+        CardNumber[] pair = cardsOnTwoShards();
+        prepareTransfer(9003, pair[0], pair[1], 30, "COMMITTED");
+
+        assertNull(store.deleteAccount(pair[0]), "the origin waits for the abort or commit");
+        assertNull(store.deleteAccount(pair[1]), "the receptor waits for its credit");
+
+        store.close();
+        store = open(2);
+        assertEquals(130, store.getCard(pair[1]).getBalance());
+        assertNotNull(store.deleteAccount(pair[1]));
+        assertNotNull(store.deleteAccount(pair[0]));
+    }
+
+    @Test
+    void theHoldOfAMissingCardIsKept() throws Exception {
+        CardNumber[] pair = cardsOnTwoShards();
+        prepareTransfer(9004, pair[0], pair[1], 30, "COMMITTED");
+        // removed behind the store's back, the credit has nowhere to go
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + directory.resolve("shard1.db"));
+             Statement statement = con.createStatement()) {
+            statement.execute("DELETE FROM account WHERE id = (SELECT id FROM card WHERE number = "
+                    + pair[1].getValue() + ")");
+            statement.execute("DELETE FROM card WHERE number = " + pair[1].getValue());
+        }
+        assertFalse(store.getShard(1).finishTransfer(9004, true));
+        assertEquals(1, holds(1), "the money stays in the hold");
+        assertTrue(store.getShard(0).finishTransfer(9004, true));
+        assertEquals(0, holds(0));
+    }
+
+    @Test
+    void addShardMovesBucketsAndKeepsBalances() {
+        for (int i = 0; i < 100; i++) {
+            CardNumber origin = cards.get(i);
+            CardNumber receptor = cards.get(199 - i);
+            assertTrue(store.transfer(origin, receptor, 40));
+        }
+        long countBefore = store.countCards();
+
+        assertTrue(store.addShard(directory.resolve("shard2.db").toString()));
+        assertEquals(3, store.getShardCount());
+        assertTrue(store.getShard(2).countCards() > 0, "some buckets moved to the new shard");
+        assertEquals(countBefore, store.countCards());
+        assertEquals(countBefore, store.getShard(0).countCards() + store.getShard(1).countCards()
+                + store.getShard(2).countCards(), "moved cards are deleted from their old shard");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(60, store.getCard(cards.get(i)).getBalance());
+            assertEquals(140, store.getCard(cards.get(199 - i)).getBalance());
+        }
+
+        store.close();
+        store = open(3);
+        assertEquals(countBefore, store.countCards());
+        assertEquals(200 * 100, total());
+        int moved = 0;
+        for (CardNumber card : cards) {
+            if (store.getShardOf(card) == 2) {
+                moved++;
+            }
+        }
+        assertNotEquals(0, moved);
+    }
+}
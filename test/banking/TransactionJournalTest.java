@@ -0,0 +1,151 @@
+package banking;
+
+import banking.dto.CardNumber;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransactionJournalTest {
+
+    private static final CardNumber FIRST = CardNumber.build(400000, 1);
+    private static final CardNumber SECOND = CardNumber.build(400000, 2);
+    private static final CardNumber THIRD = CardNumber.build(400000, 3);
+
+    @TempDir
+    Path directory;
+
+    private List<TransactionJournal.Record> replay(TransactionJournal journal, long afterSequence) throws Exception {
+        List<TransactionJournal.Record> records = new ArrayList<>();
+        journal.replay(afterSequence, records::add);
+        return records;
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void aTornRecordAtTheEndIsIgnored() throws Exception {
+        TransactionJournal journal = new TransactionJournal(directory, 8, 0);
+        journal.append(TransactionJournal.Type.INCOME, null, FIRST, 100);
+        journal.append(TransactionJournal.Type.TRANSFER, FIRST, SECOND, 30);
+        journal.append(TransactionJournal.Type.INCOME, null, SECOND, 5);
+        journal.close();
+
+        // the third record was half written when the process died
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 2L * TransactionJournal.RECORD_SIZE + 32);
+        }
+
+        journal = new TransactionJournal(directory, 8, 0);
+        assertEquals(2, journal.getLastSequence());
+        List<TransactionJournal.Record> records = replay(journal, 0);
+        assertEquals(2, records.size());
+        assertEquals(TransactionJournal.Type.TRANSFER, records.get(1).getType());
+        assertEquals(FIRST, records.get(1).getOriginCard());
+        assertEquals(30, records.get(1).getAmount());
+
+        assertEquals(3, journal.append(TransactionJournal.Type.INCOME, null, THIRD, 7), "the torn slot is reused");
+        journal.close();
+        journal = new TransactionJournal(directory, 8, 0);
+        records = replay(journal, 0);
+        assertEquals(3, records.size());
+        assertEquals(THIRD, records.get(2).getReceptorCard());
+        journal.close();
+    }
+
+    @Test
+    void rollsOverAndCompactsSegments() throws Exception {
+        TransactionJournal journal = new TransactionJournal(directory, 8, 0);
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, journal.append(TransactionJournal.Type.INCOME, null, FIRST, i));
+        }
+        assertEquals(3, journal.getSegmentCount());
+        assertEquals(14, replay(journal, 6).size());
+
+        assertEquals(2, journal.compact(16), "the segments before the one of record 17 go");
+        assertEquals(1, segments().size());
+        List<TransactionJournal.Record> records = replay(journal, 16);
+        assertEquals(4, records.size());
+        assertEquals(17, records.get(0).getSequence());
+        journal.close();
+
+        // a checkpoint ahead of the journal, the segments were lost: numbering goes on after it
+        for (Path segment : segments()) {
+            Files.delete(segment);
+        }
+        journal = new TransactionJournal(directory, 8, 25);
+        assertEquals(26, journal.append(TransactionJournal.Type.INCOME, null, FIRST, 1));
+        journal.close();
+    }
+
+    @Test
+    void bankDbReplaysTheJournalAfterACrash() {
+        String url = directory.resolve("bank.db").toString();
+        String journalDirectory = directory.resolve("journal").toString();
+        BankDb crashed = new BankDb(url, 2, journalDirectory);
+        crashed.setCheckpointInterval(1000); // nothing reaches the card table before the crash
+        assertTrue(crashed.createCard(FIRST, 1111, "1"));
+        assertTrue(crashed.createCard(SECOND, 2222, "2"));
+        assertTrue(crashed.createCard(THIRD, 3333, "3"));
+        assertTrue(crashed.updateBalance(FIRST, 100));
+        assertTrue(crashed.updateBalance(SECOND, 50));
+        assertTrue(crashed.updateBalance(THIRD, 10));
+        assertEquals(TransferResult.SUCCESS, crashed.transferIfFunds(FIRST, SECOND, 30));
+        assertEquals(TransferResult.INSUFFICIENT_FUNDS, crashed.transferIfFunds(SECOND, FIRST, 500));
+        assertEquals("3", crashed.deleteAccount(THIRD));
+        assertEquals(70, crashed.getCard(FIRST).getBalance());
+        // crashed is never closed, so its pending changes are only in the journal
+
+        BankDb recovered = new BankDb(url, 2, journalDirectory);
+        assertEquals(70, recovered.getCard(FIRST).getBalance());
+        assertEquals(80, recovered.getCard(SECOND).getBalance());
+        assertNull(recovered.getCard(THIRD), "the journaled close is applied");
+        assertEquals("", recovered.getAccount("3"));
+        assertEquals(2, recovered.getStatementPage(FIRST, Long.MIN_VALUE, -1, Long.MAX_VALUE, 10).size(),
+                "the history is written from the journal");
+        recovered.close();
+
+        // the replay was checkpointed, opening again applies nothing twice
+        BankDb reopened = new BankDb(url, 2, journalDirectory);
+        assertEquals(70, reopened.getCard(FIRST).getBalance());
+        assertEquals(80, reopened.getCard(SECOND).getBalance());
+        assertEquals(2, reopened.getStatementPage(FIRST, Long.MIN_VALUE, -1, Long.MAX_VALUE, 10).size());
+        reopened.close();
+    }
+
+    @Test
+    void onlyTheRecordsAfterTheCheckpointAreReplayed() {
+        String url = directory.resolve("bank.db").toString();
+        String journalDirectory = directory.resolve("journal").toString();
+        BankDb crashed = new BankDb(url, 2, journalDirectory);
+        crashed.setCheckpointInterval(3);
+        assertTrue(crashed.createCard(FIRST, 1111, "1"));
+        assertTrue(crashed.createCard(SECOND, 2222, "2"));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(crashed.updateBalance(FIRST, 10));
+            assertEquals(TransferResult.SUCCESS, crashed.transferIfFunds(FIRST, SECOND, 3));
+        }
+
+        BankDb recovered = new BankDb(url, 2, journalDirectory);
+        assertEquals(70, recovered.getCard(FIRST).getBalance());
+        assertEquals(30, recovered.getCard(SECOND).getBalance());
+        assertEquals(20, recovered.getStatementPage(FIRST, Long.MIN_VALUE, -1, Long.MAX_VALUE, 100).size());
+        recovered.close();
+    }
+}